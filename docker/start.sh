@@ -2,7 +2,7 @@
 
 set -e
 
-frog --skip=mptcla -S 9999 -X &
-sleep 5     # wait for Frog to start
-
-bin/rananostra server docker/config.yml
+# Rana Nostra starts Frog itself (see supervisor in docker/config.yml) and waits
+# for it to come up before warming up. The admin port's /healthcheck reports
+# whether it is ready.
+exec bin/rananostra server docker/config.yml
@@ -0,0 +1,62 @@
+package nl.knaw.huc.rananostra;
+
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+// Parsing of Frog responses: the recorded ones in src/test/resources/folia and a long synthetic one.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class FoliaParserBenchmark {
+  @Param({"henk.xml", "haanstra.xml", "synthetic"})
+  public String response;
+
+  private byte[] folia;
+
+  @Setup
+  public void setup() throws IOException {
+    if (!response.equals("synthetic")) {
+      try (InputStream in = FoliaParserBenchmark.class.getResourceAsStream("/folia/" + response)) {
+        folia = ByteStreams.toByteArray(in);
+      }
+      return;
+    }
+
+    // 50 paragraphs of 20 tokens, a quarter of them capitalized.
+    List<String> lines = new ArrayList<>();
+    for (int p = 0; p < 50; p++) {
+      for (int i = 0; i < 20; i++) {
+        lines.add(i % 4 == 0 ? "Naam" + i : "woord" + i);
+      }
+      lines.add("");
+    }
+    folia = FakeFrog.folia(lines).getBytes(UTF_8);
+  }
+
+  @Benchmark
+  public TokenSpans parse() throws IOException {
+    return FoliaParser.parse(new ByteArrayInputStream(folia));
+  }
+}
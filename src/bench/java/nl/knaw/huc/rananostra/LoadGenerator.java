@@ -0,0 +1,123 @@
+package nl.knaw.huc.rananostra;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/*
+ * Open-loop load generator for the /xml endpoint.
+ *
+ * Requests are started at a fixed rate, however fast they are answered, and their latencies
+ * are recorded in an HdrHistogram. Latency is measured from the time a request was due, not
+ * from when a worker got around to sending it, so that a stalling server shows up in the
+ * percentiles instead of slowing down the generator (coordinated omission).
+ *
+ * Usage: LoadGenerator url [rate [seconds [paragraphs]]]
+ */
+final class LoadGenerator {
+  private static final String SENTENCE =
+    "Op maandag zag Jan de Vries in Amsterdam zijn oude vriend Piet, die bij Philips werkt.";
+
+  private final URL url;
+  private final byte[] body;
+  private final int rate;    // Requests per second.
+  private final int workers; // Maximum number of requests in flight.
+
+  private final Histogram latencies = new ConcurrentHistogram(3); // Microseconds.
+  private final AtomicInteger errors = new AtomicInteger();
+
+  LoadGenerator(URL url, int paragraphs, int rate, int workers) throws IOException {
+    this.url = url;
+    this.body = requestBody(paragraphs);
+    this.rate = rate;
+    this.workers = workers;
+  }
+
+  // An /xml request for a document of the given number of paragraphs, one sentence each.
+  static byte[] requestBody(int paragraphs) throws IOException {
+    StringBuilder xml = new StringBuilder("<text>");
+    for (int i = 0; i < paragraphs; i++) {
+      xml.append("<p n=\"").append(i).append("\">").append(SENTENCE).append("</p>");
+    }
+    xml.append("</text>");
+    return new ObjectMapper().writeValueAsBytes(ImmutableMap.of(
+      "xml", xml.toString(), "xpath", "//p", "starttag", "start", "endtag", "end", "classattr", "type"));
+  }
+
+  void run(int seconds, PrintStream report) throws InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(workers);
+    long period = SECONDS.toNanos(1) / rate;
+    long total = (long) rate * seconds;
+    long start = System.nanoTime();
+    for (long i = 0; i < total; i++) {
+      long due = start + i * period;
+      NANOSECONDS.sleep(due - System.nanoTime());
+      pool.execute(() -> send(due));
+    }
+    pool.shutdown();
+    pool.awaitTermination(Long.MAX_VALUE, NANOSECONDS);
+    double elapsed = (System.nanoTime() - start) / 1e9;
+
+    long ok = latencies.getTotalCount() - errors.get();
+    report.printf("%d requests in %.1f s at %d/s target: %d ok, %d errors, %.1f ok/s%n",
+      total, elapsed, rate, ok, errors.get(), ok / elapsed);
+    report.printf("latency (ms): p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+      millis(50), millis(90), millis(99), millis(99.9), latencies.getMaxValue() / 1e3);
+    latencies.outputPercentileDistribution(report, 1e3);
+  }
+
+  private double millis(double percentile) {
+    return latencies.getValueAtPercentile(percentile) / 1e3;
+  }
+
+  private void send(long due) {
+    try {
+      HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestMethod("POST");
+      conn.setRequestProperty("Content-Type", "application/json");
+      conn.setDoOutput(true);
+      try (OutputStream out = conn.getOutputStream()) {
+        out.write(body);
+      }
+      int status = conn.getResponseCode();
+      try (InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+        if (in != null) {
+          ByteStreams.exhaust(in);
+        }
+      }
+      if (status != 200) {
+        errors.incrementAndGet();
+      }
+    } catch (IOException e) {
+      errors.incrementAndGet();
+    }
+    latencies.recordValue((System.nanoTime() - due) / 1000);
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("usage: LoadGenerator url [rate [seconds [paragraphs]]]");
+      System.exit(1);
+    }
+    URL url = new URL(args[0]);
+    int rate = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+    int paragraphs = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+    new LoadGenerator(url, paragraphs, rate, 256).run(seconds, System.out);
+  }
+}
@@ -0,0 +1,64 @@
+package nl.knaw.huc.rananostra;
+
+import com.google.common.io.ByteStreams;
+import nl.knaw.huc.rananostra.rest.Server;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * End-to-end load test without a real Frog: starts a FakeFrog and the Dropwizard server
+ * in this JVM, then drives the server's /xml endpoint with a LoadGenerator. What is left
+ * of the latency is Rana Nostra's own: Jetty, JSON, XOM, tokenization and the Frog client.
+ *
+ * Usage: LoadTest [rate [seconds [frogLatencyMillis [entityEvery [paragraphs]]]]]
+ */
+final class LoadTest {
+  public static void main(String[] args) throws Exception {
+    int rate = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+    long frogLatency = args.length > 2 ? Long.parseLong(args[2]) : 5;
+    int entityEvery = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+    int paragraphs = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+
+    FakeFrog frog = new FakeFrog();
+    frog.latencyMillis = frogLatency;
+    frog.entityEvery = entityEvery;
+
+    int port = freePort();
+    File config = File.createTempFile("rananostra-loadtest", ".yml");
+    config.deleteOnExit();
+    Files.write(config.toPath(), String.join("\n",
+      "host: localhost",
+      "port: " + frog.getPort(),
+      "server:",
+      "  type: simple",
+      "  applicationContextPath: /",
+      "  adminContextPath: /admin",
+      "  connector: {type: http, port: " + port + "}",
+      "logging:",
+      "  level: WARN",
+      "").getBytes(UTF_8));
+    new Server().run("server", config.getPath());
+
+    URL url = new URL("http://localhost:" + port + "/xml");
+    // Warm up the JIT before measuring.
+    new LoadGenerator(url, paragraphs, rate, 256).run(Math.min(seconds, 10),
+      new PrintStream(ByteStreams.nullOutputStream()));
+    new LoadGenerator(url, paragraphs, rate, 256).run(seconds, System.out);
+    System.out.printf("Fake Frog served %d requests on %d connections%n",
+      frog.requests.get(), frog.connections.get());
+    System.exit(0);
+  }
+
+  private static int freePort() throws Exception {
+    try (ServerSocket s = new ServerSocket(0)) {
+      return s.getLocalPort();
+    }
+  }
+}
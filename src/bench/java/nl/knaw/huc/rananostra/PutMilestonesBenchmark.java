@@ -0,0 +1,73 @@
+package nl.knaw.huc.rananostra;
+
+import nu.xom.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+/*
+ * Milestone insertion on synthetic documents: an element with many children ("wide")
+ * and a chain of nested elements ("deep"), each with an entity in every text node.
+ *
+ * PutMilestones modifies the tree, so every invocation works on a fresh copy;
+ * the copy benchmark measures that overhead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class PutMilestonesBenchmark {
+  private static final String TEXT = "Jan zag "; // Entity "Jan" in every text node.
+
+  private static final FrogSocketClient.XMLOptions OPTIONS =
+    new FrogSocketClient.XMLOptions("", "", null, "start", "end", "type", null);
+
+  @Param({"wide", "deep"})
+  public String shape;
+
+  @Param({"100", "1000"})
+  public int size;
+
+  private Element doc;
+  private Entities spans;
+
+  @Setup
+  public void setup() {
+    doc = new Element("p");
+    spans = new Entities(size);
+    Element parent = doc;
+    for (int i = 0; i < size; i++) {
+      parent.appendChild(TEXT);
+      Element child = new Element("hi");
+      parent.appendChild(child);
+      if (shape.equals("deep")) {
+        parent = child;
+      }
+      spans.add(TEXT.length() * i, TEXT.length() * i + 3, Entities.typeId("per"));
+    }
+  }
+
+  @Benchmark
+  public Element copy() {
+    return (Element) doc.copy();
+  }
+
+  @Benchmark
+  public Element putMilestones() {
+    Element copy = (Element) doc.copy();
+    new PutMilestones(OPTIONS, spans).traverse(copy);
+    return copy;
+  }
+}
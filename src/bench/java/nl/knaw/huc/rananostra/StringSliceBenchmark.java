@@ -0,0 +1,62 @@
+package nl.knaw.huc.rananostra;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// StringSlice against String.substring: taking a slice, and taking one and hashing it.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class StringSliceBenchmark {
+  @Param({"16", "1024", "65536"})
+  public int length;
+
+  private String str;
+  private int from;
+  private int to;
+
+  @Setup
+  public void setup() {
+    char[] chars = new char[length];
+    Arrays.fill(chars, 'x');
+    str = new String(chars);
+    from = 1;
+    to = length - 1;
+  }
+
+  @Benchmark
+  public String substring() {
+    return str.substring(from, to);
+  }
+
+  @Benchmark
+  public StringSlice slice() {
+    return StringSlice.fromTo(str, from, to);
+  }
+
+  @Benchmark
+  public int substringHash() {
+    return str.substring(from, to).hashCode();
+  }
+
+  @Benchmark
+  public int sliceHash() {
+    return StringSlice.fromTo(str, from, to).hashCode();
+  }
+}
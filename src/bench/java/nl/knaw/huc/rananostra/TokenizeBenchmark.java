@@ -0,0 +1,69 @@
+package nl.knaw.huc.rananostra;
+
+import opennlp.tools.tokenize.TokenizerME;
+import opennlp.tools.tokenize.TokenizerModel;
+import opennlp.tools.util.Span;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+// Tokenization and request encoding, i.e., what FrogSocketClient.apply does before calling Frog.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Thread)
+public class TokenizeBenchmark {
+  private static final String SENTENCE =
+    "Op 12 januari 1672 schreef Constantijn Huygens uit Den Haag een brief aan zijn zoon Christiaan, " +
+      "die toen in Parijs verbleef. ";
+
+  @Param({"1", "20"})
+  public int sentences;
+
+  private String text;
+  private TokenizedText tokens;
+  private TokenizerME tokenizer; // Stateful, hence Scope.Thread.
+
+  @Setup
+  public void setup() throws IOException {
+    try (InputStream in = TokenizeBenchmark.class.getResourceAsStream("/nl-token.bin")) {
+      tokenizer = new TokenizerME(new TokenizerModel(in));
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < sentences; i++) {
+      sb.append(SENTENCE);
+    }
+    text = sb.toString();
+    tokens = TokenizedText.of(text, tokenizer.tokenizePos(text));
+  }
+
+  @Benchmark
+  public Span[] tokenize() {
+    return tokenizer.tokenizePos(text);
+  }
+
+  @Benchmark
+  public TokenizedText tokenizeRules() {
+    return DutchTokenizer.INSTANCE.tokenize(text);
+  }
+
+  @Benchmark
+  public String encode() {
+    return tokens.encode(0, tokens.size());
+  }
+}
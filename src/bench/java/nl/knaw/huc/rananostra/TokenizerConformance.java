@@ -0,0 +1,145 @@
+package nl.knaw.huc.rananostra;
+
+import opennlp.tools.tokenize.TokenizerME;
+import opennlp.tools.tokenize.TokenizerModel;
+import opennlp.tools.util.Span;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+
+/*
+ * Reports how closely DutchTokenizer agrees with OpenNLP's nl-token.bin model: token precision
+ * and recall (a token agrees if both tokenizers produce exactly the same span), the fraction of
+ * lines tokenized identically, the most frequent disagreements and the time each tokenizer takes.
+ *
+ * Usage: TokenizerConformance [file...]
+ *
+ * Each line of the files is tokenized separately. Without files, a few built-in sentences are used;
+ * for a meaningful report, pass a few megabytes of the text that is to be annotated.
+ */
+final class TokenizerConformance {
+  private static final String[] SAMPLE = {
+    "Op 12 januari 1672 schreef Constantijn Huygens uit Den Haag een brief aan zijn zoon Christiaan, " +
+      "die toen in Parijs verbleef.",
+    "Dhr. J. Jansen (1850-1921) woonde o.a. in 's-Gravenhage en Noord-Holland, d.w.z. tot '80.",
+    "\"Kom je vanavond?\", vroeg ze. 't Was al laat... Hij zei: 'zo'n avond vergeet je niet!'",
+    "De omzet steeg met 3,5% tot EUR 12.000.000 (zie blz. 4, fig. 2; vgl. bijv. het vorige jaar).",
+    "Zie https://www.knaw.nl/ of mail naar info@huc.knaw.nl voor meer informatie.",
+  };
+
+  public static void main(String[] args) throws IOException {
+    List<String> lines = new ArrayList<>();
+    if (args.length == 0) {
+      lines.addAll(asList(SAMPLE));
+    }
+    for (String file : args) {
+      for (String line : Files.readAllLines(Paths.get(file), UTF_8)) {
+        if (!line.trim().isEmpty()) {
+          lines.add(line);
+        }
+      }
+    }
+
+    TokenizerME model;
+    try (InputStream in = TokenizerConformance.class.getResourceAsStream("/nl-token.bin")) {
+      model = new TokenizerME(new TokenizerModel(in));
+    }
+    TextTokenizer rules = DutchTokenizer.INSTANCE;
+
+    // Warm up both, then time them separately.
+    for (int i = 0; i < 3; i++) {
+      for (String line : lines) {
+        model.tokenizePos(line);
+        rules.tokenize(line).toSpans();
+      }
+    }
+    long chars = 0;
+    long t = System.nanoTime();
+    List<Span[]> expected = new ArrayList<>(lines.size());
+    for (String line : lines) {
+      expected.add(model.tokenizePos(line));
+      chars += line.length();
+    }
+    long modelNanos = System.nanoTime() - t;
+    t = System.nanoTime();
+    List<Span[]> actual = new ArrayList<>(lines.size());
+    for (String line : lines) {
+      actual.add(rules.tokenize(line).toSpans());
+    }
+    long rulesNanos = System.nanoTime() - t;
+
+    long nexpected = 0;
+    long nactual = 0;
+    long matched = 0;
+    int identical = 0;
+    Map<String, Integer> differences = new HashMap<>();
+    for (int k = 0; k < lines.size(); k++) {
+      String line = lines.get(k);
+      Span[] e = expected.get(k);
+      Span[] a = actual.get(k);
+      nexpected += e.length;
+      nactual += a.length;
+      int m = 0;
+      // Walk both token lists in order; a disagreement is the stretch of text until they line up again.
+      int i = 0;
+      int j = 0;
+      while (i < e.length && j < a.length) {
+        if (e[i].equals(a[j])) {
+          m++;
+          i++;
+          j++;
+          continue;
+        }
+        int si = i;
+        int sj = j;
+        do {
+          if (e[i].getEnd() <= a[j].getEnd()) {
+            i++;
+          } else {
+            j++;
+          }
+        } while (i < e.length && j < a.length && e[i].getStart() != a[j].getStart());
+        String diff = join(line, e, si, i) + "  vs  " + join(line, a, sj, j);
+        differences.merge(diff, 1, Integer::sum);
+      }
+      matched += m;
+      if (m == e.length && m == a.length) {
+        identical++;
+      }
+    }
+
+    System.out.printf(Locale.ROOT, "%d lines, %d characters%n", lines.size(), chars);
+    System.out.printf(Locale.ROOT, "tokens: %d from nl-token.bin, %d from rules, %d the same%n",
+      nexpected, nactual, matched);
+    System.out.printf(Locale.ROOT, "precision %.4f, recall %.4f, identical lines %.4f%n",
+      (double) matched / nactual, (double) matched / nexpected, (double) identical / lines.size());
+    System.out.printf(Locale.ROOT, "time: nl-token.bin %.1f ns/char, rules %.1f ns/char%n",
+      (double) modelNanos / chars, (double) rulesNanos / chars);
+
+    System.out.println();
+    System.out.println("Most frequent differences (nl-token.bin  vs  rules):");
+    differences.entrySet().stream()
+      .sorted(Map.Entry.<String, Integer>comparingByValue(Comparator.reverseOrder()))
+      .limit(30)
+      .forEach(d -> System.out.printf(Locale.ROOT, "%6d  %s%n", d.getValue(), d.getKey()));
+  }
+
+  private static String join(String line, Span[] tokens, int from, int to) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = from; i < to; i++) {
+      sb.append(i > from ? "|" : "").append(tokens[i].getCoveredText(line));
+    }
+    return sb.toString();
+  }
+}
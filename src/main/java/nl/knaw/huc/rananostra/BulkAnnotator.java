@@ -0,0 +1,373 @@
+package nl.knaw.huc.rananostra;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.util.concurrent.Uninterruptibles;
+import nu.xom.Document;
+import nu.xom.Node;
+import nu.xom.Nodes;
+import nu.xom.Text;
+import nu.xom.XPathContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.validation.constraints.Min;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Arrays.asList;
+
+/**
+ * Annotates many XML documents with the same options, writing the results to a directory.
+ * <p>
+ * The work is done by a pipeline of stages connected by bounded queues: read, parse (including
+ * the XPath query), tokenize, Frog, annotate (milestones and serialization) and write. Each stage
+ * has its own number of threads, so that, e.g., a few huge documents being parsed do not leave
+ * Frog idle. Documents that fail are logged and skipped. Finished documents are recorded in a
+ * {@link Checkpoint}, so that an interrupted run can be resumed.
+ */
+public final class BulkAnnotator {
+  public static class Config {
+    @JsonProperty
+    @Min(1)
+    public int parseThreads = 2;
+
+    @JsonProperty
+    @Min(1)
+    public int tokenizeThreads = 2;
+
+    /**
+     * Number of documents being sent to Frog at once.
+     */
+    @JsonProperty
+    @Min(1)
+    public int frogThreads = 8;
+
+    @JsonProperty
+    @Min(1)
+    public int annotateThreads = 2;
+
+    @JsonProperty
+    @Min(1)
+    public int writeThreads = 1;
+
+    /**
+     * Capacity of the queue in front of each stage, in documents.
+     */
+    @JsonProperty
+    @Min(1)
+    public int queueSize = 16;
+  }
+
+  /**
+   * A document to be annotated.
+   */
+  public static final class Input {
+    public final String name;  // Relative path of the output file.
+    final byte[] content;
+
+    public Input(String name, byte[] content) {
+      this.name = name;
+      this.content = content;
+    }
+  }
+
+  /**
+   * A sequence of documents.
+   */
+  public interface Source extends Closeable {
+    /**
+     * Returns the next document whose name is not skipped, or null at the end.
+     */
+    Input next(Predicate<String> skip) throws IOException;
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(BulkAnnotator.class);
+
+  private final FrogSocketClient frog;
+  private final FrogSocketClient.XMLOptions options;
+  private final Config config;
+
+  private final AtomicLong documents = new AtomicLong();
+  private final AtomicLong sentences = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private final AtomicReference<Error> error = new AtomicReference<>(); // First Error in a stage.
+
+  public BulkAnnotator(FrogSocketClient frog, FrogSocketClient.XMLOptions options, Config config) {
+    this.frog = frog;
+    this.options = options;
+    this.config = config;
+  }
+
+  /**
+   * Returns the files under dir whose names end in suffix.
+   */
+  public static Source directory(Path dir, String suffix) throws IOException {
+    Stream<Path> paths = Files.walk(dir);
+    Iterator<Path> files = paths.filter(p -> p.toString().endsWith(suffix) && Files.isRegularFile(p)).iterator();
+    return new Source() {
+      @Override
+      public Input next(Predicate<String> skip) throws IOException {
+        while (files.hasNext()) {
+          Path file = files.next();
+          String name = dir.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+          if (!skip.test(name)) {
+            return new Input(name, Files.readAllBytes(file));
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public void close() {
+        paths.close();
+      }
+    };
+  }
+
+  /**
+   * Returns the regular files in the tar stream whose names end in suffix.
+   */
+  public static Source tar(InputStream in, String suffix) {
+    return new TarSource(in, suffix);
+  }
+
+  public long documents() {
+    return documents.get();
+  }
+
+  public long sentences() {
+    return sentences.get();
+  }
+
+  public long failures() {
+    return failures.get();
+  }
+
+  // Documents skipped because the checkpoint says they have been done before.
+  public long skipped() {
+    return skipped.get();
+  }
+
+  /**
+   * Annotates the documents from source, writing each to the file in outDir named after it.
+   * Documents already in checkpoint are skipped. Returns when all documents are done.
+   * <p>
+   * A document that fails with an Error, such as a StackOverflowError on deeply nested XML,
+   * counts as a failure like any other, but the first such Error is rethrown once all
+   * documents are done.
+   */
+  public void run(Source source, Path outDir, Checkpoint checkpoint) throws Exception {
+    Path out = outDir.toAbsolutePath().normalize();
+    List<Stage> stages = asList(
+      new Stage("parse", config.parseThreads, this::parse),
+      new Stage("tokenize", config.tokenizeThreads, this::tokenize),
+      new Stage("frog", config.frogThreads, this::ner),
+      new Stage("annotate", config.annotateThreads, this::annotate),
+      new Stage("write", config.writeThreads, d -> write(d, out, checkpoint)));
+    for (int i = 0; i < stages.size(); i++) {
+      stages.get(i).start(i + 1 < stages.size() ? stages.get(i + 1).in : null);
+    }
+
+    // Reading is the first stage, on this thread.
+    BlockingQueue<Doc> first = stages.get(0).in;
+    try {
+      Predicate<String> skip = name -> {
+        if (checkpoint.isDone(name)) {
+          skipped.incrementAndGet();
+          return true;
+        }
+        return false;
+      };
+      for (Input input; (input = source.next(skip)) != null; ) {
+        first.put(new Doc(input));
+      }
+    } finally {
+      first.put(END);
+      for (Stage stage : stages) {
+        stage.join();
+      }
+    }
+    Error e = error.getAndSet(null);
+    if (e != null) {
+      throw e;
+    }
+  }
+
+  private void parse(Doc d) throws Exception {
+    d.doc = XmlParser.fromBytes(d.input.content);
+    d.input = new Input(d.input.name, null); // Let go of the bytes.
+
+    XPathContext ctx = new XPathContext();
+    if (options.namespaces != null) {
+      options.namespaces.forEach(ctx::addNamespace);
+    }
+    Nodes nodes = d.doc.query(options.xpath, ctx);
+    d.nodes = new ArrayList<>(nodes.size());
+    for (int i = 0; i < nodes.size(); i++) {
+      d.nodes.add(nodes.get(i));
+    }
+  }
+
+  // Tokenizes each node's text and, if so configured, splits it into sentences.
+  private void tokenize(Doc d) {
+    int n = d.nodes.size();
+    TextTokenizer tok = frog.newTokenizer(options.tokenizer);
+    d.tokens = new TokenizedText[n];
+    d.starts = new int[n][];
+    List<String> encoded = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      TokenizedText tokens = tok.tokenize(d.nodes.get(i).getValue());
+      d.tokens[i] = tokens;
+      d.starts[i] = frog.sentenceStarts(tokens, options.splitSentences);
+      encoded.addAll(asList(frog.encodeSentences(tokens, d.starts[i])));
+    }
+    d.encoded = encoded.toArray(new String[0]);
+    d.ntokens = new int[d.encoded.length];
+    for (int i = 0, k = 0; i < n; i++) {
+      for (int s = 0; s < d.starts[i].length - 1; s++) {
+        d.ntokens[k++] = d.starts[i][s + 1] - d.starts[i][s];
+      }
+    }
+  }
+
+  private void ner(Doc d) throws Exception {
+    d.found = frog.nerAll(d.encoded, d.ntokens, new Timings());
+    d.encoded = null;
+    sentences.addAndGet(d.found.length);
+  }
+
+  private void annotate(Doc d) {
+    for (int i = 0, k = 0; i < d.nodes.size(); i++) {
+      Node node = d.nodes.get(i);
+      if (node instanceof Text) {
+        node = node.getParent();
+      }
+      new PutMilestones(options, frog.mergeSentences(d.tokens[i], d.starts[i], d.found, k)).traverse(node);
+      k += d.starts[i].length - 1;
+    }
+    d.output = d.doc.toXML().getBytes(UTF_8);
+    d.doc = null;
+    d.nodes = null;
+    d.tokens = null;
+    d.starts = null;
+  }
+
+  // Writes to a temporary file first, so that no partial output is left if we are killed.
+  private void write(Doc d, Path outDir, Checkpoint checkpoint) throws IOException {
+    Path target = outDir.resolve(d.input.name).normalize();
+    if (!target.startsWith(outDir) || target.equals(outDir)) {
+      throw new IOException("name points outside the output directory");
+    }
+    Files.createDirectories(target.getParent());
+    Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+    Files.write(tmp, d.output);
+    Files.move(tmp, target, ATOMIC_MOVE, REPLACE_EXISTING);
+    checkpoint.add(d.input.name);
+    documents.incrementAndGet();
+  }
+
+  // A document on its way through the pipeline. Each stage fills in some fields and clears others.
+  private static final class Doc {
+    Input input;
+    Document doc;
+    List<Node> nodes;
+    TokenizedText[] tokens;
+    int[][] starts; // Per node, the first token of each sentence, then the number of tokens.
+    String[] encoded;  // Per sentence.
+    int[] ntokens;
+    TokenSpans[] found;
+    byte[] output;
+
+    Doc(Input input) {
+      this.input = input;
+    }
+  }
+
+  private static final Doc END = new Doc(null);
+
+  private interface Step {
+    void apply(Doc d) throws Exception;
+  }
+
+  /*
+   * Threads that take documents from in, apply a step to them and pass them on. END is passed
+   * on by the last thread to see it, after the others have finished.
+   */
+  private final class Stage {
+    final BlockingQueue<Doc> in = new ArrayBlockingQueue<>(config.queueSize);
+    private final String name;
+    private final Step step;
+    private final Thread[] threads;
+    private final AtomicInteger running;
+
+    Stage(String name, int nthreads, Step step) {
+      this.name = name;
+      this.step = step;
+      threads = new Thread[nthreads];
+      running = new AtomicInteger(nthreads);
+    }
+
+    void start(BlockingQueue<Doc> out) {
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = new Thread(() -> work(out), "bulk-" + name + "-" + i);
+        threads[i].setDaemon(true);
+        threads[i].start();
+      }
+    }
+
+    private void work(BlockingQueue<Doc> out) {
+      boolean sawEnd = false;
+      try {
+        for (Doc d; (d = in.take()) != END; ) {
+          try {
+            step.apply(d);
+          } catch (Throwable e) {
+            failures.incrementAndGet();
+            LOG.warn("Failed to {} {}: {}", name, d.input.name, e.toString());
+            if (e instanceof Error) {
+              error.compareAndSet(null, (Error) e);
+            }
+            continue;
+          }
+          if (out != null) {
+            out.put(d);
+          }
+        }
+        sawEnd = true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        // The next stage waits for END, so it is passed on however this thread stops.
+        if (sawEnd) {
+          Uninterruptibles.putUninterruptibly(in, END); // For the other threads of this stage.
+        }
+        if (running.decrementAndGet() == 0 && out != null) {
+          Uninterruptibles.putUninterruptibly(out, END);
+        }
+      }
+    }
+
+    void join() throws InterruptedException {
+      for (Thread t : threads) {
+        t.join();
+      }
+    }
+  }
+}
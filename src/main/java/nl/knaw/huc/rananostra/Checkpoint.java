@@ -0,0 +1,62 @@
+package nl.knaw.huc.rananostra;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+/**
+ * Log of the documents that a {@link BulkAnnotator} has finished, one name per line, so that
+ * an interrupted run can skip them when restarted.
+ * <p>
+ * Each name is flushed to the file as soon as its document has been written. A name cut short
+ * by a crash does not match anything, so at worst one document is done twice.
+ */
+public final class Checkpoint implements Closeable {
+  private final Set<String> done = new HashSet<>();
+  private final Writer log;
+
+  /**
+   * Opens the checkpoint in file, creating it if it does not exist.
+   */
+  public Checkpoint(Path file) throws IOException {
+    if (Files.exists(file)) {
+      done.addAll(Files.readAllLines(file, UTF_8));
+    }
+    log = new BufferedWriter(Files.newBufferedWriter(file, UTF_8, CREATE, APPEND));
+  }
+
+  public synchronized boolean isDone(String name) {
+    return done.contains(name);
+  }
+
+  /**
+   * Returns the number of documents finished, including those of earlier runs.
+   */
+  public synchronized int size() {
+    return done.size();
+  }
+
+  synchronized void add(String name) throws IOException {
+    if (name.indexOf('\n') >= 0) {
+      return; // Cannot be recorded; will be redone next time.
+    }
+    done.add(name);
+    log.write(name);
+    log.write('\n');
+    log.flush();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    log.close();
+  }
+}
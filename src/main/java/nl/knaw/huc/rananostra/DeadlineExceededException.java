@@ -0,0 +1,12 @@
+package nl.knaw.huc.rananostra;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request to Frog is not done before the deadline set in its {@link Timings}.
+ */
+public class DeadlineExceededException extends IOException {
+  public DeadlineExceededException() {
+    super("deadline exceeded");
+  }
+}
@@ -0,0 +1,154 @@
+package nl.knaw.huc.rananostra;
+
+/*
+ * Rule-based tokenizer for Dutch, meant to split text the way OpenNLP does with nl-token.bin,
+ * without evaluating a model at every candidate split.
+ *
+ * Text is split at whitespace. From each of the resulting chunks, opening brackets and quotes
+ * are split off at the start and closing punctuation at the end; what remains is a single token.
+ * A final period stays with the token if it looks like an abbreviation ("bijv.", "o.a.", "J.").
+ * An apostrophe stays at the start of Dutch clitics and years ("'s", "'t", "'n", "'s-Gravenhage",
+ * "'80"). A run of periods ("...") is one token.
+ *
+ * Stateless, so one instance can be shared between threads.
+ */
+final class DutchTokenizer implements TextTokenizer {
+  static final DutchTokenizer INSTANCE = new DutchTokenizer();
+
+  // Abbreviations that end in a period, without it. Those with periods inside ("o.a.", "d.w.z.")
+  // and single letters are recognized by their shape. Words that commonly end a sentence
+  // ("jan", "gem", "red") are left out.
+  private static final String[] ABBREVIATIONS = {
+    "afb", "al", "blz", "bijv", "bv", "ca", "cf", "dhr", "dr", "drs", "enz", "etc", "fig", "hfst",
+    "ing", "ir", "jhr", "jl", "jr", "lic", "mej", "mevr", "mgr", "mr", "mw", "nl", "nr", "pag",
+    "prof", "resp", "sr", "st", "str", "vgl", "vnl", "vs", "zgn",
+  };
+
+  private static final String OPENING = "([{\"'`\u2018\u201c\u201e\u00ab\u2039\u00bf\u00a1";
+  private static final String CLOSING = ")]}\"'`\u2019\u201d\u00bb\u203a.,;:!?\u2026";
+
+  private DutchTokenizer() {
+  }
+
+  // Tokenizes text in place; a StringSlice is not copied.
+  @Override
+  public TokenizedText tokenize(CharSequence text) {
+    int len = text.length();
+    TokenizedText tokens = new TokenizedText(text, len / 5 + 1);
+    for (int i = 0; i < len; ) {
+      if (isSpace(text.charAt(i))) {
+        i++;
+        continue;
+      }
+      int end = i + 1;
+      while (end < len && !isSpace(text.charAt(end))) {
+        end++;
+      }
+      chunk(text, i, end, tokens);
+      i = end;
+    }
+    return tokens;
+  }
+
+  // Tokenizes the whitespace-free text[from, to).
+  private static void chunk(CharSequence text, int from, int to, TokenizedText tokens) {
+    // The core token is text[start, end). Punctuation before and after it is split off.
+    int end = to;
+    while (end > from && CLOSING.indexOf(text.charAt(end - 1)) >= 0) {
+      end--;
+    }
+    int start = from;
+    while (start < end && OPENING.indexOf(text.charAt(start)) >= 0 && !isClitic(text, start, end)) {
+      start++;
+    }
+    if (start == end) {
+      // All punctuation. Leave it to the loop below, keeping runs of periods together.
+      end = start = from;
+    } else if (end < to && text.charAt(end) == '.' && (end + 1 == to || text.charAt(end + 1) != '.')
+      && isAbbreviation(text, start, end)) {
+      end++;
+    }
+
+    for (int i = from; i < start; i++) {
+      tokens.add(i, i + 1);
+    }
+    if (start < end) {
+      tokens.add(start, end);
+    }
+    for (int i = end; i < to; ) {
+      int j = i + 1;
+      if (text.charAt(i) == '.') {
+        while (j < to && text.charAt(j) == '.') {
+          j++;
+        }
+      }
+      tokens.add(i, j);
+      i = j;
+    }
+  }
+
+  // Reports whether the apostrophe at text[i] starts a clitic or year in text[i, end).
+  private static boolean isClitic(CharSequence text, int i, int end) {
+    char c = text.charAt(i);
+    if ((c != '\'' && c != '\u2019') || i + 1 >= end) {
+      return false;
+    }
+    int n = end - i - 1;
+    char first = Character.toLowerCase(text.charAt(i + 1));
+    if (n == 1) {
+      return "sktnmr".indexOf(first) >= 0;
+    }
+    if (first == 's' && text.charAt(i + 2) == '-') {
+      return true; // 's-Gravenhage
+    }
+    return n == 2 && Character.isDigit(text.charAt(i + 1)) && Character.isDigit(text.charAt(i + 2));
+  }
+
+  // Reports whether text[from, to) followed by a period is an abbreviation.
+  private static boolean isAbbreviation(CharSequence text, int from, int to) {
+    int n = to - from;
+    if (n == 1) {
+      return Character.isLetter(text.charAt(from));
+    }
+
+    // Groups of one to three letters separated by periods.
+    boolean dotted = false;
+    int group = 0;
+    for (int i = from; i < to; i++) {
+      char c = text.charAt(i);
+      if (c == '.' && group > 0) {
+        dotted = true;
+        group = 0;
+      } else if (Character.isLetter(c) && group < 3) {
+        group++;
+      } else {
+        dotted = false;
+        break;
+      }
+    }
+    if (dotted && group > 0) {
+      return true;
+    }
+
+    for (String abbr : ABBREVIATIONS) {
+      if (abbr.length() == n && regionMatchesIgnoreCase(text, from, abbr)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean regionMatchesIgnoreCase(CharSequence text, int from, String lower) {
+    for (int i = 0; i < lower.length(); i++) {
+      if (Character.toLowerCase(text.charAt(from + i)) != lower.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Same definition of whitespace as OpenNLP's.
+  static boolean isSpace(char c) {
+    return Character.isWhitespace(c) || Character.getType(c) == Character.SPACE_SEPARATOR;
+  }
+}
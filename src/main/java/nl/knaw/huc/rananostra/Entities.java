@@ -0,0 +1,101 @@
+package nl.knaw.huc.rananostra;
+
+import opennlp.tools.util.Span;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Entities found in a text, as parallel arrays of start and end offsets and entity classes.
+ * Entities are appended with add, in text order; after that, the instance is not modified.
+ *
+ * Entity classes are stored as indices into a table shared by all instances. Frog has only
+ * a handful of classes, so the table stays small, and each class name is kept once instead
+ * of once per entity.
+ */
+final class Entities {
+  private static final ConcurrentMap<String, Integer> TYPE_IDS = new ConcurrentHashMap<>();
+  private static volatile String[] typeNames = new String[0]; // Guarded by Entities.class for writes.
+
+  private int[] starts;
+  private int[] ends;
+  private int[] types;
+  private int size;
+
+  Entities(int capacity) {
+    starts = new int[Math.max(capacity, 4)];
+    ends = new int[starts.length];
+    types = new int[starts.length];
+  }
+
+  // Converts from the public API. Spans without a type get the class "".
+  static Entities of(List<Span> spans) {
+    Entities e = new Entities(spans.size());
+    for (Span span : spans) {
+      e.add(span.getStart(), span.getEnd(), typeId(span.getType() == null ? "" : span.getType()));
+    }
+    return e;
+  }
+
+  // Returns the index of an entity class in the shared table, adding it if needed.
+  static int typeId(String name) {
+    Integer id = TYPE_IDS.get(name);
+    return id != null ? id : addType(name);
+  }
+
+  static String typeName(int id) {
+    return typeNames[id];
+  }
+
+  private static synchronized int addType(String name) {
+    Integer id = TYPE_IDS.get(name);
+    if (id == null) {
+      // Publish the name before its index, so that typeName never sees an index it does not know.
+      String[] names = Arrays.copyOf(typeNames, typeNames.length + 1);
+      id = typeNames.length;
+      names[id] = name;
+      typeNames = names;
+      TYPE_IDS.put(name, id);
+    }
+    return id;
+  }
+
+  void add(int start, int end, int type) {
+    if (size == starts.length) {
+      starts = Arrays.copyOf(starts, 2 * size);
+      ends = Arrays.copyOf(ends, 2 * size);
+      types = Arrays.copyOf(types, 2 * size);
+    }
+    starts[size] = start;
+    ends[size] = end;
+    types[size] = type;
+    size++;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int start(int i) {
+    return starts[i];
+  }
+
+  int end(int i) {
+    return ends[i];
+  }
+
+  String type(int i) {
+    return typeNames[types[i]];
+  }
+
+  List<Span> toSpans() {
+    List<Span> spans = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      spans.add(new Span(starts[i], ends[i], type(i)));
+    }
+    return spans;
+  }
+}
@@ -0,0 +1,167 @@
+package nl.knaw.huc.rananostra;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+/*
+ * Single-pass StAX parser for the FoLiA documents that Frog produces.
+ *
+ * Only the parts we need are looked at: the xml:id of every folia:w, in document
+ * order, and the folia:wref children of every folia:entity with a class, e.g.,
+ *
+ * <entity xml:id="untitled.p.1.s.1.entities.1.entity.1" class="per" confidence="0">
+ *   <wref id="untitled.p.1.s.1.w.3" t="Ben"/>
+ *   <wref id="untitled.p.1.s.1.w.4" t="Hur"/>
+ * </entity>
+ *
+ * We need the check for @class, because when the MWU detector is not skipped,
+ * Frog produces entities without a class (which are not really named entities).
+ */
+final class FoliaParser {
+  private FoliaParser() {
+    throw new AssertionError("Class cannot be instantiated, static use only.");
+  }
+
+  static final String FOLIA_NS = "http://ilk.uvt.nl/folia";
+
+  private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+  static {
+    FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    FACTORY.setProperty(XMLInputFactory.IS_COALESCING, false);
+    FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  /*
+   * Parses a single FoLiA document from in, which must end where the document ends.
+   * The tokens (folia:w) are numbered from zero in document order.
+   */
+  static TokenSpans parse(InputStream in) throws IOException {
+    TokenSpans.Builder result = new TokenSpans.Builder();
+    IdIndex ids = new IdIndex();
+    int ntokens = 0;
+
+    // The wref ids of the first and last token of each entity, resolved once all
+    // tokens have been seen. Let's assume each entity mention is a contiguous span of
+    // tokens, served to us in textual order, so we only need to look at the first and the last.
+    List<String> wrefs = new ArrayList<>();
+    List<String> types = new ArrayList<>();
+    String type = null;  // Class of current entity, if any.
+    String firstRef = null;
+    String lastRef = null;
+
+    XMLStreamReader r = null;
+    try {
+      r = FACTORY.createXMLStreamReader(in);
+      while (r.hasNext()) {
+        int event = r.next();
+        if (event == START_ELEMENT && FOLIA_NS.equals(r.getNamespaceURI())) {
+          switch (r.getLocalName()) {
+            case "w":
+              ids.put(r.getAttributeValue(XMLConstants.XML_NS_URI, "id"), ntokens++);
+              break;
+            case "entity":
+              type = r.getAttributeValue(null, "class");
+              firstRef = lastRef = null;
+              break;
+            case "wref":
+              if (type != null) {
+                lastRef = r.getAttributeValue(null, "id");
+                if (firstRef == null) {
+                  firstRef = lastRef;
+                }
+              }
+              break;
+            default:
+          }
+        } else if (event == END_ELEMENT && type != null && r.getLocalName().equals("entity")
+          && FOLIA_NS.equals(r.getNamespaceURI())) {
+          if (firstRef != null) {
+            wrefs.add(firstRef);
+            wrefs.add(lastRef);
+            types.add(type);
+          }
+          type = null;
+        }
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException("invalid FoLiA from Frog: " + e.getMessage(), e);
+    } finally {
+      if (r != null) {
+        try {
+          r.close();
+        } catch (XMLStreamException e) {
+          // Doesn't close the underlying stream, so nothing to clean up.
+        }
+      }
+    }
+
+    for (int i = 0; i < types.size(); i++) {
+      result.add(ids.resolve(wrefs.get(2 * i)), ids.resolve(wrefs.get(2 * i + 1)), types.get(i));
+    }
+    return result.ntokens(ntokens).build();
+  }
+
+  // Open-addressing hash table from token id to token index, to avoid boxing.
+  private static final class IdIndex {
+    private String[] keys = new String[64];
+    private int[] values = new int[64];
+    private int size;
+
+    void put(String id, int index) throws IOException {
+      if (id == null) {
+        throw new IOException("invalid FoLiA from Frog: w without xml:id");
+      }
+      if (2 * (size + 1) > keys.length) {
+        grow();
+      }
+      insert(id, index);
+    }
+
+    int resolve(String id) throws IOException {
+      int mask = keys.length - 1;
+      for (int i = id.hashCode() & mask; keys[i] != null; i = (i + 1) & mask) {
+        if (keys[i].equals(id)) {
+          return values[i];
+        }
+      }
+      throw new IOException("invalid FoLiA from Frog: wref to unknown token " + id);
+    }
+
+    private void insert(String id, int index) {
+      int mask = keys.length - 1;
+      int i = id.hashCode() & mask;
+      while (keys[i] != null && !keys[i].equals(id)) {
+        i = (i + 1) & mask;
+      }
+      if (keys[i] == null) {
+        size++;
+      }
+      keys[i] = id;
+      values[i] = index;
+    }
+
+    private void grow() {
+      String[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new String[2 * oldKeys.length];
+      values = new int[2 * oldKeys.length];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != null) {
+          insert(oldKeys[i], oldValues[i]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,206 @@
+package nl.knaw.huc.rananostra;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+
+import static java.util.Collections.singletonList;
+
+/*
+ * A single Frog server in a FrogCluster: its connection pool plus the routing and
+ * health state that the cluster keeps for it. The mutable state is guarded by the
+ * cluster's lock.
+ *
+ * The number of requests in flight is capped by limit, which adapts to Frog's latency
+ * (AIMD): it grows by one per limit requests that complete in good time while the backend
+ * is busy, and shrinks by DECREASE when the recent time per token exceeds tolerance times
+ * its usual value, or a request fails. Once Frog's run queue grows, we queue here instead.
+ */
+final class FrogBackend {
+  private static final double DECREASE = 0.9;
+
+  // Frog's fixed cost per request, in tokens, roughly. Keeps short sentences from looking slow.
+  private static final int REQUEST_OVERHEAD_TOKENS = 8;
+
+  // Weight of each sample in the recent latency, to smooth out single slow requests.
+  private static final double RECENT_WEIGHT = 1.0 / 8;
+
+  // Weight of a slower recent latency in the baseline, which thus follows a slower Frog after a while.
+  private static final double BASELINE_DRIFT = 1.0 / 512;
+
+  final FrogConnectionPool pool;
+
+  int outstanding;     // Requests currently in flight.
+  int failures;        // Consecutive failed requests or health checks.
+  long ejectedUntil;   // System.nanoTime until which the backend is avoided, if ejected.
+  boolean ejected;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final double tolerance;
+  private double limit;
+  private double recent;     // Moving average of nanoseconds per token; 0 if unknown.
+  private double baseline;   // Nanoseconds per token when Frog is not overloaded; 0 if unknown.
+  private long lastDecrease; // System.nanoTime.
+
+  // If tolerance is zero, the limit stays at maxLimit.
+  FrogBackend(FrogConnectionPool pool, int minLimit, int maxLimit, double tolerance) {
+    this.pool = pool;
+    this.minLimit = Math.min(minLimit, maxLimit);
+    this.maxLimit = maxLimit;
+    this.tolerance = tolerance;
+    limit = maxLimit;
+    lastDecrease = System.nanoTime();
+  }
+
+  boolean isAvailable(long now) {
+    return !ejected || now - ejectedUntil >= 0;
+  }
+
+  int limit() {
+    return (int) limit;
+  }
+
+  // The expected cost of sending requests to Frog, in tokens: one per line, plus the overhead.
+  static int cost(List<String> requests) {
+    int cost = 0;
+    for (String r : requests) {
+      cost += REQUEST_OVERHEAD_TOKENS;
+      for (int i = r.indexOf('\n'); i >= 0; i = r.indexOf('\n', i + 1)) {
+        cost++;
+      }
+    }
+    return cost;
+  }
+
+  /*
+   * Adapts the limit to a request of the given cost that took nanos, with outstanding
+   * including the request itself.
+   */
+  void recordLatency(long nanos, int cost) {
+    if (tolerance == 0) {
+      return;
+    }
+    double sample = (double) nanos / cost;
+    recent = recent == 0 ? sample : recent + (sample - recent) * RECENT_WEIGHT;
+    if (baseline == 0 || recent < baseline) {
+      baseline = recent;
+    } else {
+      baseline += (recent - baseline) * BASELINE_DRIFT;
+    }
+
+    if (recent > tolerance * baseline) {
+      decrease(nanos);
+    } else if (2 * outstanding >= limit) {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+  }
+
+  void recordFailure() {
+    if (tolerance > 0) {
+      decrease(0);
+    }
+  }
+
+  // Decreases the limit, but only once per round trip of nanos, as the requests in flight
+  // at the time of a decrease were sent at the old limit.
+  private void decrease(long nanos) {
+    long now = System.nanoTime();
+    if (now - lastDecrease >= nanos) {
+      limit = Math.max(minLimit, limit * DECREASE);
+      lastDecrease = now;
+    }
+  }
+
+  /*
+   * Sends requests over a single pooled connection and returns Frog's responses.
+   * The exchange can be aborted from another thread through call, if not null.
+   */
+  List<TokenSpans> exchange(List<String> requests, Timings timings, Call call)
+    throws IOException, InterruptedException {
+    for (boolean retry = true; ; retry = false) {
+      FrogConnection conn = pool.borrow(timings);
+      boolean ok = false;
+      try {
+        if (call != null) {
+          call.start(this, conn);
+        }
+        long connect = conn.takeConnectNanos();
+        if (connect > 0) {
+          timings.add(Timings.Stage.CONNECT, connect);
+        }
+        List<TokenSpans> responses = conn.exchange(requests, timings);
+        ok = true;
+        return responses;
+      } catch (IOException e) {
+        // Frog may have closed (or been restarted) while the connection was idle.
+        // NER has no side effects, so we can safely try again on a new connection.
+        // A timeout means Frog is stuck rather than gone, so a new connection won't help.
+        if (!retry || !conn.isReused() || e instanceof DeadlineExceededException
+          || e instanceof SocketTimeoutException || call != null && call.isCancelled()) {
+          throw e;
+        }
+        pool.clearIdle();
+      } finally {
+        if (call != null) {
+          call.finish();
+        }
+        pool.release(conn, ok);
+      }
+    }
+  }
+
+  /*
+   * Handle for aborting an exchange from another thread. Cancelling closes the connection,
+   * which makes the exchange fail with an IOException. Once the connection goes back to the
+   * pool, cancelling no longer touches it.
+   */
+  static final class Call {
+    private FrogBackend backend; // Guarded by this.
+    private FrogConnection conn; // Guarded by this.
+    private boolean cancelled;   // Guarded by this.
+
+    synchronized void start(FrogBackend backend, FrogConnection conn) {
+      this.backend = backend;
+      this.conn = conn;
+      if (cancelled) {
+        conn.close();
+      }
+    }
+
+    synchronized void finish() {
+      conn = null;
+    }
+
+    synchronized void cancel() {
+      cancelled = true;
+      if (conn != null) {
+        conn.close();
+      }
+    }
+
+    // The backend that the exchange was last sent to, or null if it has not started.
+    synchronized FrogBackend backend() {
+      return backend;
+    }
+
+    synchronized boolean isCancelled() {
+      return cancelled;
+    }
+  }
+
+  /*
+   * Checks whether Frog answers a trivial request on a new connection within the timeout.
+   * Uses a connection outside the pool, so that a saturated pool does not count as failure.
+   */
+  void probe(int timeoutMillis) throws IOException {
+    try (FrogConnection conn = new FrogConnection(pool.getHost(), pool.getPort(), false, timeoutMillis)) {
+      conn.exchange(singletonList("Test\nEOT\n"));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return pool.getHost() + ":" + pool.getPort();
+  }
+}
@@ -0,0 +1,98 @@
+package nl.knaw.huc.rananostra;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/*
+ * Collects sentences from concurrent callers into batched Frog requests.
+ *
+ * A batch is sent when it holds batchSize sentences or when its first sentence has
+ * waited for lingerMillis, whichever comes first. A full batch is sent by the caller
+ * that filled it; a lingering one by a thread from the given executor.
+ */
+final class FrogBatcher {
+  private final FrogTransport frog;
+  private final Executor executor;
+  private final int batchSize;
+  private final long lingerMillis;
+
+  private List<Pending> batch = new ArrayList<>(); // Guarded by this.
+
+  private static final class Pending {
+    final String tokens; // As produced by TokenizedText.encode, without EOT.
+    final int ntokens;
+    final CompletableFuture<TokenSpans> result = new CompletableFuture<>();
+
+    Pending(String tokens, int ntokens) {
+      this.tokens = tokens;
+      this.ntokens = ntokens;
+    }
+  }
+
+  FrogBatcher(FrogTransport frog, Executor executor, int batchSize, long lingerMillis) {
+    this.frog = frog;
+    this.executor = executor;
+    this.batchSize = batchSize;
+    this.lingerMillis = lingerMillis;
+  }
+
+  CompletableFuture<TokenSpans> submit(String tokens, int ntokens) {
+    Pending p = new Pending(tokens, ntokens);
+    List<Pending> full = null;
+    synchronized (this) {
+      batch.add(p);
+      if (batch.size() >= batchSize) {
+        full = batch;
+        batch = new ArrayList<>();
+      } else if (batch.size() == 1) {
+        List<Pending> first = batch;
+        Housekeeping.SCHEDULER.schedule(() -> linger(first), lingerMillis, MILLISECONDS);
+      }
+    }
+    if (full != null) {
+      send(full);
+    }
+    return p.result;
+  }
+
+  // Sends the given batch if it is still waiting.
+  private void linger(List<Pending> expected) {
+    synchronized (this) {
+      if (batch != expected) {
+        return; // Already sent because it filled up.
+      }
+      batch = new ArrayList<>();
+    }
+    executor.execute(() -> send(expected));
+  }
+
+  private void send(List<Pending> sentences) {
+    int[] ntokens = new int[sentences.size()];
+    StringBuilder request = new StringBuilder();
+    for (int i = 0; i < ntokens.length; i++) {
+      if (i > 0) {
+        request.append('\n');
+      }
+      request.append(sentences.get(i).tokens);
+      ntokens[i] = sentences.get(i).ntokens;
+    }
+    request.append("EOT\n");
+
+    try {
+      TokenSpans[] results = frog.exchange(singletonList(request.toString()), new Timings()).get(0).split(ntokens);
+      for (int i = 0; i < results.length; i++) {
+        sentences.get(i).result.complete(results[i]);
+      }
+    } catch (Exception e) {
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      sentences.forEach(p -> p.result.completeExceptionally(e));
+    }
+  }
+}
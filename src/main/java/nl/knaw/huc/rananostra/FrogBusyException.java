@@ -0,0 +1,13 @@
+package nl.knaw.huc.rananostra;
+
+import java.io.IOException;
+
+/**
+ * Thrown when no Frog backend has room for another request within
+ * {@link FrogCluster.Config#maxQueueMillis}, because all are at their in-flight limit.
+ */
+public class FrogBusyException extends IOException {
+  public FrogBusyException() {
+    super("all Frog backends are at their in-flight limit");
+  }
+}
@@ -0,0 +1,671 @@
+package nl.knaw.huc.rananostra;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.hibernate.validator.constraints.NotEmpty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Load balancer for one or more Frog servers.
+ * <p>
+ * Each request goes to the available backend with the fewest outstanding requests.
+ * The number of requests in flight per backend is limited adaptively: the limit drops when
+ * Frog's latency rises and creeps back up to {@link Config#maxInFlight} while it stays low.
+ * Requests that find all backends at their limit wait up to {@link Config#maxQueueMillis}.
+ * A backend that fails {@link Config#failureThreshold} times in a row is ejected for
+ * {@link Config#ejectMillis}; after that, it is tried again. Periodic health checks
+ * eject unresponsive backends and readmit recovered ones early.
+ * <p>
+ * If all backends are ejected, requests are routed to them anyway rather than failed.
+ * <p>
+ * Optionally, a request that takes longer than {@link Config#hedgePercentile} percent of recent
+ * requests (relative to its size) is hedged: sent again to another backend, if one has room.
+ * The first answer is used and the other request is cancelled.
+ */
+public final class FrogCluster implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(FrogCluster.class);
+
+  public static class Endpoint {
+    @JsonProperty
+    @NotEmpty
+    public String host;
+
+    @JsonProperty
+    @Min(1)
+    public int port;
+
+    public Endpoint() {
+    }
+
+    public Endpoint(String host, int port) {
+      this.host = host;
+      this.port = port;
+    }
+  }
+
+  public static class Config {
+    /**
+     * Maximum number of concurrent requests per backend.
+     */
+    @JsonProperty
+    @Min(1)
+    public int maxInFlight = 8;
+
+    /**
+     * Adapt each backend's in-flight limit, between minInFlight and maxInFlight, to its latency.
+     * If false, the limit is maxInFlight.
+     */
+    @JsonProperty
+    public boolean adaptiveLimit = true;
+
+    /**
+     * Lowest in-flight limit per backend that adaptation may set.
+     */
+    @JsonProperty
+    @Min(1)
+    public int minInFlight = 1;
+
+    /**
+     * Latency per token, as a percentage of its usual value, above which a backend's in-flight
+     * limit is lowered.
+     */
+    @JsonProperty
+    @Min(100)
+    public int latencyTolerancePercent = 200;
+
+    /**
+     * How long a request may wait for a backend below its in-flight limit before failing with
+     * FrogBusyException. Zero means it waits as long as its deadline allows.
+     */
+    @JsonProperty
+    @Min(0)
+    public long maxQueueMillis = 1_000;
+
+    /**
+     * Number of consecutive failures after which a backend is ejected.
+     */
+    @JsonProperty
+    @Min(1)
+    public int failureThreshold = 3;
+
+    /**
+     * Time for which an ejected backend receives no requests, unless a health check readmits it.
+     */
+    @JsonProperty
+    @Min(0)
+    public long ejectMillis = 10_000;
+
+    /**
+     * Interval between active health checks. Zero disables them.
+     */
+    @JsonProperty
+    @Min(0)
+    public long healthCheckMillis = 5_000;
+
+    /**
+     * Connect and read timeout for health checks.
+     */
+    @JsonProperty
+    @Min(1)
+    public int healthCheckTimeoutMillis = 2_000;
+
+    /**
+     * Whether to send a duplicate of a request to another backend when it takes longer than
+     * most, and use whichever answer comes first.
+     */
+    @JsonProperty
+    public boolean hedge = false;
+
+    /**
+     * Percentile of recent latencies, scaled to the request's size, after which a request is hedged.
+     */
+    @JsonProperty
+    @Min(50)
+    @Max(99)
+    public int hedgePercentile = 95;
+
+    /**
+     * Maximum number of hedges, as a percentage of all requests.
+     */
+    @JsonProperty
+    @Min(0)
+    @Max(100)
+    public int hedgeBudgetPercent = 10;
+  }
+
+  private final Config config;
+  private final FrogConnectionPool.Config poolConfig;
+  private final MetricRegistry metrics;
+  // Copy-on-write, so that it can be read without locking; replaced while holding the lock.
+  private volatile List<FrogBackend> backends = Collections.emptyList();
+  private final Map<FrogBackend, ScheduledFuture<?>> healthChecks = new HashMap<>(); // Guarded by this.
+  private final Set<FrogBackend> probing = new HashSet<>(); // Guarded by this.
+  private final Meter rejected;
+  private final Meter exchanges;
+  private final Meter hedges;
+  private final Meter hedgesWon;
+  private final HedgeDelay hedgeDelay; // Null if hedging is disabled.
+  private final ExecutorService hedgeExecutor;
+  private int next;    // For breaking ties between equally loaded backends. Guarded by this.
+  private int waiting; // Requests waiting for a backend with room. Guarded by this.
+
+  public FrogCluster(List<Endpoint> endpoints, Config config, FrogConnectionPool.Config poolConfig) {
+    this(endpoints, config, poolConfig, new MetricRegistry());
+  }
+
+  /**
+   * Creates a cluster that reports each backend's in-flight limit and requests, and the number
+   * of requests rejected because all backends were at their limit, in the given registry.
+   */
+  public FrogCluster(List<Endpoint> endpoints, Config config, FrogConnectionPool.Config poolConfig,
+                     MetricRegistry metrics) {
+    this(config, poolConfig, metrics);
+    if (endpoints.isEmpty()) {
+      throw new IllegalArgumentException("need at least one Frog backend");
+    }
+    for (Endpoint e : endpoints) {
+      add(e);
+    }
+  }
+
+  /*
+   * Creates a cluster without backends, for FrogSupervisor to add them to as Frog processes
+   * come up. Until then, requests wait as when all backends are busy.
+   */
+  FrogCluster(Config config, FrogConnectionPool.Config poolConfig, MetricRegistry metrics) {
+    this.config = requireNonNull(config);
+    this.poolConfig = requireNonNull(poolConfig);
+    this.metrics = metrics;
+
+    rejected = metrics.meter(MetricRegistry.name(FrogCluster.class, "rejected"));
+    exchanges = metrics.meter(MetricRegistry.name(FrogCluster.class, "exchanges"));
+    hedges = metrics.meter(MetricRegistry.name(FrogCluster.class, "hedges"));
+    hedgesWon = metrics.meter(MetricRegistry.name(FrogCluster.class, "hedgesWon"));
+    if (config.hedge) {
+      hedgeDelay = new HedgeDelay(config.hedgePercentile);
+      hedgeExecutor = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("frog-hedge-%d").build());
+    } else {
+      hedgeDelay = null;
+      hedgeExecutor = null;
+    }
+  }
+
+  /*
+   * Adds a backend, which receives requests right away. Its current in-flight limit and
+   * number of requests in flight are reported as gauges.
+   */
+  synchronized FrogBackend add(Endpoint e) {
+    FrogBackend b = new FrogBackend(new FrogConnectionPool(e.host, e.port, poolConfig), config.minInFlight,
+      config.maxInFlight, config.adaptiveLimit ? config.latencyTolerancePercent / 100.0 : 0);
+    String prefix = MetricRegistry.name(FrogCluster.class, b.toString());
+    metrics.register(MetricRegistry.name(prefix, "limit"), (Gauge<Integer>) () -> {
+      synchronized (this) {
+        return b.limit();
+      }
+    });
+    metrics.register(MetricRegistry.name(prefix, "inFlight"), (Gauge<Integer>) () -> {
+      synchronized (this) {
+        return b.outstanding;
+      }
+    });
+    if (config.healthCheckMillis > 0) {
+      healthChecks.put(b, Housekeeping.SCHEDULER.scheduleWithFixedDelay(() -> startHealthCheck(b),
+        config.healthCheckMillis, config.healthCheckMillis, MILLISECONDS));
+    }
+
+    List<FrogBackend> backends = new ArrayList<>(this.backends);
+    backends.add(b);
+    this.backends = Collections.unmodifiableList(backends);
+    notifyAll();
+    return b;
+  }
+
+  /*
+   * Stops sending requests to a backend. Requests in flight complete normally, after which
+   * their connections are closed.
+   */
+  void remove(FrogBackend b) {
+    synchronized (this) {
+      List<FrogBackend> backends = new ArrayList<>(this.backends);
+      if (!backends.remove(b)) {
+        return;
+      }
+      this.backends = Collections.unmodifiableList(backends);
+      ScheduledFuture<?> healthCheck = healthChecks.remove(b);
+      if (healthCheck != null) {
+        healthCheck.cancel(false);
+      }
+      String prefix = MetricRegistry.name(FrogCluster.class, b.toString());
+      metrics.remove(MetricRegistry.name(prefix, "limit"));
+      metrics.remove(MetricRegistry.name(prefix, "inFlight"));
+    }
+    b.pool.close();
+  }
+
+  List<FrogBackend> backends() {
+    return backends;
+  }
+
+  /**
+   * Returns the current number of backends.
+   */
+  public int size() {
+    return backends.size();
+  }
+
+  // The number of requests in flight to b.
+  synchronized int outstanding(FrogBackend b) {
+    return b.outstanding;
+  }
+
+  // Reports whether b has failed failureThreshold times in a row, and not succeeded since.
+  synchronized boolean isEjected(FrogBackend b) {
+    return b.ejected;
+  }
+
+  // The number of requests in flight and the sum of the in-flight limits, over all backends.
+  synchronized int[] load() {
+    int outstanding = 0;
+    int capacity = 0;
+    for (FrogBackend b : backends) {
+      outstanding += b.outstanding;
+      capacity += b.limit();
+    }
+    return new int[]{outstanding, capacity};
+  }
+
+  // The number of requests currently waiting for a backend with room.
+  synchronized int waiting() {
+    return waiting;
+  }
+
+  int pipelineDepth() {
+    return poolConfig.pipelineDepth;
+  }
+
+  /**
+   * Returns the number of requests that failed with FrogBusyException.
+   */
+  public long rejected() {
+    return rejected.getCount();
+  }
+
+  /**
+   * Returns the number of duplicate requests sent because the original was slow.
+   */
+  public long hedges() {
+    return hedges.getCount();
+  }
+
+  /**
+   * Returns the number of hedges that answered before the original request.
+   */
+  public long hedgesWon() {
+    return hedgesWon.getCount();
+  }
+
+  /**
+   * Sends requests to a single backend and returns the responses.
+   * <p>
+   * If the backend fails, the requests are tried once more on a different backend.
+   */
+  List<TokenSpans> exchange(List<String> requests) throws IOException, InterruptedException {
+    return exchange(requests, new Timings());
+  }
+
+  // Like exchange(requests), recording connection and Frog times in timings.
+  List<TokenSpans> exchange(List<String> requests, Timings timings) throws IOException, InterruptedException {
+    exchanges.mark();
+    int cost = FrogBackend.cost(requests);
+    long delay = hedgeDelay == null ? -1 : hedgeDelay.nanos(cost);
+    if (delay < 0 || hedges.getCount() * 100 >= exchanges.getCount() * config.hedgeBudgetPercent) {
+      return exchange(requests, cost, timings, null, null, false);
+    }
+    return hedged(requests, cost, timings, delay);
+  }
+
+  /*
+   * Sends requests as in exchange(requests, timings), and if they have not been answered
+   * after delay nanoseconds, sends them again to another backend (or connection).
+   * The first answer wins; the other exchange is cancelled.
+   */
+  private List<TokenSpans> hedged(List<String> requests, int cost, Timings timings, long delay)
+    throws IOException, InterruptedException {
+    FrogBackend.Call primary = new FrogBackend.Call();
+    FrogBackend.Call hedge = new FrogBackend.Call();
+    AtomicBoolean decided = new AtomicBoolean();
+    AtomicBoolean launched = new AtomicBoolean(); // Set by whoever decides whether the hedge is sent.
+    CompletableFuture<List<TokenSpans>> hedgeResult = new CompletableFuture<>(); // null if not sent.
+
+    Runnable sendHedge = () -> {
+      try {
+        List<TokenSpans> responses = hedge.isCancelled() ? null
+          : exchange(requests, cost, timings, hedge, primary.backend(), true);
+        if (responses != null && decided.compareAndSet(false, true)) {
+          hedgesWon.mark();
+          primary.cancel();
+        }
+        hedgeResult.complete(responses);
+      } catch (Exception e) {
+        hedgeResult.completeExceptionally(e);
+      }
+    };
+    ScheduledFuture<?> timer = Housekeeping.SCHEDULER.schedule(() -> {
+      if (!launched.compareAndSet(false, true)) {
+        return; // The original request failed already.
+      }
+      try {
+        hedgeExecutor.execute(sendHedge);
+      } catch (RejectedExecutionException e) { // Closed.
+        hedgeResult.complete(null);
+      }
+    }, delay, NANOSECONDS);
+
+    List<TokenSpans> responses;
+    try {
+      responses = exchange(requests, cost, timings, primary, null, false);
+    } catch (IOException e) {
+      if (launched.compareAndSet(false, true)) {
+        timer.cancel(false);
+        throw e;
+      }
+      try {
+        // Waits for the hedge, if any, which may yet succeed where we failed.
+        List<TokenSpans> hedged = hedgeResult.get();
+        if (hedged != null) {
+          return hedged;
+        }
+      } catch (ExecutionException hedgeFailed) {
+        e.addSuppressed(hedgeFailed.getCause());
+      } catch (InterruptedException ie) {
+        hedge.cancel();
+        throw ie;
+      }
+      throw e;
+    } catch (InterruptedException | RuntimeException e) {
+      timer.cancel(false);
+      hedge.cancel();
+      throw e;
+    }
+
+    // If the hedge won, we got an answer before it could cancel us, which is just as good.
+    if (decided.compareAndSet(false, true)) {
+      timer.cancel(false);
+      hedge.cancel();
+    }
+    return responses;
+  }
+
+  /*
+   * Sends requests to a single backend, avoiding the given one if possible, and retries once
+   * on another backend if that fails. If call is not null, the exchange can be cancelled
+   * through it. A hedge is not retried, and is not sent at all, returning null, if it would
+   * have to wait for a backend.
+   */
+  private List<TokenSpans> exchange(List<String> requests, int cost, Timings timings, FrogBackend.Call call,
+                                    FrogBackend avoid, boolean isHedge) throws IOException, InterruptedException {
+    FrogBackend failed = avoid;
+    for (int attempt = 0; ; attempt++) {
+      FrogBackend backend = acquire(failed, timings, isHedge);
+      if (backend == null) {
+        return null;
+      }
+      if (isHedge) {
+        hedges.mark();
+      }
+      boolean ok = false;
+      boolean sample = false;
+      long start = System.nanoTime();
+      try {
+        List<TokenSpans> responses = backend.exchange(requests, timings, call);
+        ok = true;
+        sample = true;
+        return responses;
+      } catch (DeadlineExceededException e) {
+        ok = true; // Not the backend's fault.
+        throw e;
+      } catch (IOException e) {
+        if (call != null && call.isCancelled()) {
+          ok = true; // We closed the connection ourselves.
+          throw e;
+        }
+        if (isHedge || attempt > 0 || backends.size() == 1) {
+          throw e;
+        }
+        LOG.warn("Frog backend {} failed, retrying elsewhere: {}", backend, e.toString());
+        failed = backend;
+      } finally {
+        release(backend, ok, sample ? cost : 0, System.nanoTime() - start);
+      }
+    }
+  }
+
+  /*
+   * Picks the backend with the fewest outstanding requests, avoiding the given backend
+   * (if possible) and ejected ones (unless all are ejected). Blocks while all
+   * candidates are at their in-flight limit, for at most maxQueueMillis and until
+   * the deadline in timings, or returns null right away if noWait is set.
+   */
+  private synchronized FrogBackend acquire(FrogBackend avoid, Timings timings, boolean noWait)
+    throws FrogBusyException, DeadlineExceededException, InterruptedException {
+    long queueDeadline = System.nanoTime() + MILLISECONDS.toNanos(config.maxQueueMillis);
+    while (true) {
+      List<FrogBackend> backends = this.backends;
+      int remaining = timings.remainingMillis();
+      long now = System.nanoTime();
+      boolean anyAvailable = false;
+      for (FrogBackend b : backends) {
+        if (b != avoid && b.isAvailable(now)) {
+          anyAvailable = true;
+          break;
+        }
+      }
+
+      FrogBackend best = null;
+      int n = backends.size();
+      for (int i = 0; i < n; i++) {
+        FrogBackend b = backends.get((next + i) % n);
+        if (anyAvailable && (b == avoid || !b.isAvailable(now))) {
+          continue;
+        }
+        if (b.outstanding < b.limit() && (best == null || b.outstanding < best.outstanding)) {
+          best = b;
+        }
+      }
+      if (best != null) {
+        next = (next + 1) % n;
+        best.outstanding++;
+        return best;
+      }
+      if (noWait) {
+        return null;
+      }
+      // Also wake up periodically, because ejected backends become available over time.
+      long timeout = Math.max(config.ejectMillis, 1);
+      if (config.maxQueueMillis > 0) {
+        long queueRemaining = MILLISECONDS.convert(queueDeadline - now, NANOSECONDS);
+        if (queueRemaining <= 0) {
+          rejected.mark();
+          throw new FrogBusyException();
+        }
+        timeout = Math.min(timeout, queueRemaining);
+      }
+      waiting++;
+      try {
+        wait(remaining == 0 ? timeout : Math.min(timeout, remaining));
+      } finally {
+        waiting--;
+      }
+    }
+  }
+
+  // cost is zero if the request failed or was cut short; nanos is the time it took.
+  private synchronized void release(FrogBackend backend, boolean ok, int cost, long nanos) {
+    if (cost > 0) {
+      backend.recordLatency(nanos, cost);
+      if (hedgeDelay != null) {
+        hedgeDelay.add((double) nanos / cost);
+      }
+    } else if (!ok) {
+      backend.recordFailure();
+    }
+    backend.outstanding--;
+    if (ok) {
+      readmit(backend);
+    } else {
+      recordFailure(backend);
+    }
+    notifyAll();
+  }
+
+  /**
+   * Sends a test sentence to each backend, over a fresh connection, and returns a description
+   * of each backend that failed to answer. Does not affect which backends are ejected.
+   */
+  public List<String> probe() {
+    List<String> failed = new ArrayList<>();
+    for (FrogBackend backend : backends) {
+      try {
+        backend.probe(config.healthCheckTimeoutMillis);
+      } catch (IOException | RuntimeException e) {
+        failed.add(backend + ": " + e);
+      }
+    }
+    return failed;
+  }
+
+  /*
+   * Runs on Housekeeping.SCHEDULER, whose timers must not wait for a hanging backend, so the
+   * probe itself runs on Housekeeping.PROBES. A check is skipped while the last one is running.
+   */
+  private void startHealthCheck(FrogBackend backend) {
+    synchronized (this) {
+      if (!probing.add(backend)) {
+        return;
+      }
+    }
+    Housekeeping.PROBES.execute(() -> {
+      try {
+        healthCheck(backend);
+      } finally {
+        synchronized (this) {
+          probing.remove(backend);
+        }
+      }
+    });
+  }
+
+  private void healthCheck(FrogBackend backend) {
+    boolean ok;
+    try {
+      backend.probe(config.healthCheckTimeoutMillis);
+      ok = true;
+    } catch (IOException | RuntimeException e) {
+      ok = false;
+    }
+    synchronized (this) {
+      if (ok) {
+        if (backend.ejected) {
+          LOG.info("Frog backend {} passed health check, readmitting", backend);
+        }
+        readmit(backend);
+        notifyAll();
+      } else {
+        backend.failures = Math.max(backend.failures, config.failureThreshold - 1);
+        recordFailure(backend);
+      }
+    }
+  }
+
+  // Must hold lock.
+  private void readmit(FrogBackend backend) {
+    backend.failures = 0;
+    backend.ejected = false;
+  }
+
+  // Must hold lock.
+  private void recordFailure(FrogBackend backend) {
+    backend.failures++;
+    if (backend.failures >= config.failureThreshold) {
+      if (!backend.ejected) {
+        LOG.warn("ejecting Frog backend {} after {} failures", backend, backend.failures);
+      }
+      backend.ejected = true;
+      backend.ejectedUntil = System.nanoTime() + MILLISECONDS.toNanos(config.ejectMillis);
+    }
+  }
+
+  /*
+   * Recent latencies per unit of request cost, from which the hedge delay is derived.
+   * The percentile is recomputed every RECOMPUTE samples, over the last SAMPLES.
+   */
+  private static final class HedgeDelay {
+    private static final int SAMPLES = 512;
+    private static final int RECOMPUTE = 64;
+
+    private final int percentile;
+    private final double[] samples = new double[SAMPLES]; // Ring buffer.
+    private long count;
+    private double nanosPerCost = -1; // Unknown until RECOMPUTE samples have been seen.
+
+    HedgeDelay(int percentile) {
+      this.percentile = percentile;
+    }
+
+    synchronized void add(double sample) {
+      samples[(int) (count % SAMPLES)] = sample;
+      count++;
+      if (count % RECOMPUTE == 0) {
+        int n = (int) Math.min(count, SAMPLES);
+        double[] sorted = Arrays.copyOf(samples, n);
+        Arrays.sort(sorted);
+        nanosPerCost = sorted[Math.min(n - 1, n * percentile / 100)];
+      }
+    }
+
+    // Returns the delay for a request of the given cost, or -1 if there are too few samples yet.
+    synchronized long nanos(int cost) {
+      return nanosPerCost < 0 ? -1 : (long) (nanosPerCost * cost);
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (this) {
+      healthChecks.values().forEach(f -> f.cancel(false));
+    }
+    if (hedgeExecutor != null) {
+      hedgeExecutor.shutdownNow();
+    }
+    backends.forEach(b -> b.pool.close());
+  }
+}
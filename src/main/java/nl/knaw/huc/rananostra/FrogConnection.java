@@ -0,0 +1,292 @@
+package nl.knaw.huc.rananostra;
+
+import com.google.common.base.Utf8;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * A single TCP connection to a Frog server.
+ *
+ * Frog keeps reading requests from a connection until the client closes it, so
+ * a connection can be used for any number of sentences. Instances are handed out
+ * by a FrogConnectionPool and are not thread-safe.
+ */
+final class FrogConnection implements Closeable {
+  private static final byte[] READY = "READY\n".getBytes(UTF_8);
+
+  private final Socket socket;
+  private final Writer out;
+  private final InputStream in;
+  private final int timeoutMillis; // Read timeout.
+  private final int maxPipelined; // Bytes of requests that may be written ahead of their responses.
+  private int soTimeout; // Current read timeout, to avoid setting it on every exchange.
+
+  // Input buffer. Bytes buf[pos:lim] have been read from the socket but not consumed.
+  private final byte[] buf = new byte[16384];
+  private int pos;
+  private int lim;
+
+  private int exchanges;  // Number of completed exchange calls.
+  private long lastUsed;  // System.nanoTime of last completed exchange.
+  private long connectNanos; // Time taken to connect, until reported by takeConnectNanos.
+
+  FrogConnection(String host, int port, boolean keepAlive) throws IOException {
+    this(host, port, keepAlive, 0);
+  }
+
+  /*
+   * Opens a connection with the given connect and read timeout in milliseconds.
+   * Zero means no timeout.
+   */
+  FrogConnection(String host, int port, boolean keepAlive, int timeoutMillis) throws IOException {
+    this(host, port, keepAlive, timeoutMillis, timeoutMillis);
+  }
+
+  // Like the above, with separate connect and read timeouts.
+  FrogConnection(String host, int port, boolean keepAlive, int connectTimeoutMillis, int timeoutMillis)
+    throws IOException {
+    long start = System.nanoTime();
+    this.timeoutMillis = timeoutMillis;
+    this.soTimeout = timeoutMillis;
+    socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+      socket.setSoTimeout(timeoutMillis);
+      socket.setKeepAlive(keepAlive);
+      socket.setTcpNoDelay(true);
+      maxPipelined = socket.getSendBufferSize();
+      out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF_8));
+      in = socket.getInputStream();
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    lastUsed = System.nanoTime();
+    connectNanos = lastUsed - start;
+  }
+
+  /**
+   * Sends the given requests, then reads and parses the responses in order.
+   * <p>
+   * Each request is a token list terminated by EOT, as produced by TokenizedText.encode.
+   * Requests are written ahead of the responses to earlier ones (pipelining), but only as long
+   * as the requests that have not been answered fit in the socket's send buffer. Frog does not
+   * read while it writes a response, so a write that does not fit could block until we read
+   * that response, which we would never get to. A request that does not fit is sent once
+   * the responses before it are in.
+   */
+  List<TokenSpans> exchange(List<String> requests) throws IOException {
+    return exchange(requests, new Timings());
+  }
+
+  /*
+   * Like exchange(requests), recording the time until each response starts as the FROG
+   * stage and the rest as FOLIA_PARSE. Frog writes a response all at once, so the latter
+   * is mostly our parsing.
+   *
+   * If timings has a deadline, reads time out when it passes and DeadlineExceededException
+   * is thrown. The connection is then in an unknown state and must not be reused.
+   */
+  List<TokenSpans> exchange(List<String> requests, Timings timings) throws IOException {
+    int remaining = timings.remainingMillis();
+    setReadTimeout(remaining);
+    try {
+      return exchange0(requests, timings);
+    } catch (SocketTimeoutException e) {
+      if (remaining != 0 && soTimeout == remaining) {
+        throw new DeadlineExceededException(); // Not the configured timeout.
+      }
+      throw e;
+    }
+  }
+
+  private List<TokenSpans> exchange0(List<String> requests, Timings timings) throws IOException {
+    long t = System.nanoTime();
+    int n = requests.size();
+    int[] sizes = new int[n];
+    int sent = 0;
+    int pipelined = 0; // Bytes of requests sent but not answered.
+
+    List<TokenSpans> responses = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      // Request i always goes out: everything before it has been answered.
+      while (sent < n) {
+        sizes[sent] = Utf8.encodedLength(requests.get(sent));
+        if (sent > i && pipelined + sizes[sent] > maxPipelined) {
+          break;
+        }
+        out.write(requests.get(sent));
+        pipelined += sizes[sent++];
+      }
+      out.flush();
+
+      fill(1); // Wait for the response to start.
+      t = timings.lap(Timings.Stage.FROG, t);
+      Response r = new Response();
+      responses.add(FoliaParser.parse(r));
+      r.skipRest();
+      pipelined -= sizes[i];
+      t = timings.lap(Timings.Stage.FOLIA_PARSE, t);
+    }
+    exchanges++;
+    lastUsed = System.nanoTime();
+    return responses;
+  }
+
+  // Sets the read timeout to the smaller of remaining and the configured timeout, zero meaning none.
+  private void setReadTimeout(int remaining) throws IOException {
+    int timeout = remaining == 0 ? timeoutMillis
+      : timeoutMillis == 0 ? remaining : Math.min(remaining, timeoutMillis);
+    if (timeout != soTimeout) {
+      socket.setSoTimeout(timeout);
+      soTimeout = timeout;
+    }
+  }
+
+  // Returns the time it took to open this connection the first time it is called, then zero.
+  long takeConnectNanos() {
+    long n = connectNanos;
+    connectNanos = 0;
+    return n;
+  }
+
+  // Reports whether this connection has been used for at least one exchange.
+  boolean isReused() {
+    return exchanges > 0;
+  }
+
+  long idleNanos(long now) {
+    return now - lastUsed;
+  }
+
+  /*
+   * Cheap check for connections that are known to be broken. A connection that Frog has
+   * closed while it was idle cannot be detected without reading from it, so callers
+   * must still be prepared to retry on a fresh connection.
+   */
+  boolean isUsable() {
+    if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+      return false;
+    }
+    try {
+      // Unread input means we've lost track of the request/response pairing.
+      return pos == lim && in.available() == 0;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  // Makes sure at least n bytes are buffered. Returns false if the stream ends first.
+  private boolean fill(int n) throws IOException {
+    if (lim - pos >= n) {
+      return true;
+    }
+    if (pos > 0) {
+      System.arraycopy(buf, pos, buf, 0, lim - pos);
+      lim -= pos;
+      pos = 0;
+    }
+    while (lim < n) {
+      int k = in.read(buf, lim, buf.length - lim);
+      if (k == -1) {
+        return false;
+      }
+      lim += k;
+    }
+    return true;
+  }
+
+  /*
+   * The bytes of a single response, up to but not including the READY line.
+   *
+   * Frog output is: an XML document, followed by "READY" on a line by itself, repeated
+   * ad infinitum. Every line is followed by at least the READY line, so we can look
+   * ahead for it at the start of a line without blocking.
+   */
+  private final class Response extends InputStream {
+    private boolean atLineStart = true;
+    private boolean done;
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (done) {
+        return -1;
+      }
+      if (len == 0) {
+        return 0;
+      }
+      if (atLineStart) {
+        if (!fill(READY.length)) {
+          throw new EOFException("Frog closed connection before sending READY");
+        }
+        if (atReady()) {
+          pos += READY.length;
+          done = true;
+          return -1;
+        }
+      } else if (pos == lim && !fill(1)) {
+        throw new EOFException("Frog closed connection before sending READY");
+      }
+
+      // Copy up to the end of the current line.
+      int n = Math.min(len, lim - pos);
+      int i = 0;
+      while (i < n) {
+        byte c = buf[pos + i++];
+        if (c == '\n') {
+          break;
+        }
+      }
+      System.arraycopy(buf, pos, b, off, i);
+      pos += i;
+      atLineStart = b[off + i - 1] == '\n';
+      return i;
+    }
+
+    private boolean atReady() {
+      for (int i = 0; i < READY.length; i++) {
+        if (buf[pos + i] != READY[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // Consumes the remainder of the response, if the parser stopped early.
+    void skipRest() throws IOException {
+      byte[] discard = new byte[1024];
+      while (read(discard, 0, discard.length) != -1) {
+        // Keep going.
+      }
+    }
+  }
+
+  // May be called from any thread, to abort an exchange in progress.
+  @Override
+  public void close() {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing we can do about this.
+    }
+  }
+}
@@ -0,0 +1,206 @@
+package nl.knaw.huc.rananostra;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Bounded pool of keep-alive connections to a single Frog server.
+ * <p>
+ * At most {@link Config#maxConnections} connections are open at any time; callers that want
+ * more block until a connection is returned. Connections that have been idle for longer than
+ * {@link Config#maxIdleMillis} are closed.
+ */
+public final class FrogConnectionPool implements Closeable {
+  public static class Config {
+    /**
+     * Maximum number of open connections.
+     */
+    @JsonProperty
+    @Min(1)
+    public int maxConnections = 16;
+
+    /**
+     * Idle connections are closed after this many milliseconds. Zero disables idle eviction.
+     */
+    @JsonProperty
+    @Min(0)
+    public long maxIdleMillis = 60_000;
+
+    /**
+     * Maximum number of sentences sent on a connection before their responses are read.
+     */
+    @JsonProperty
+    @Min(1)
+    public int pipelineDepth = 4;
+
+    /**
+     * Whether to enable TCP keep-alive on connections.
+     */
+    @JsonProperty
+    public boolean keepAlive = true;
+
+    /**
+     * Time allowed for opening a connection. Zero means no limit.
+     */
+    @JsonProperty
+    @Min(0)
+    public int connectTimeoutMillis = 5_000;
+
+    /**
+     * Time allowed for Frog to send (the next part of) a response. A request that takes longer
+     * fails, and is tried once more on another backend. Zero means no limit.
+     */
+    @JsonProperty
+    @Min(0)
+    public int readTimeoutMillis = 60_000;
+  }
+
+  private final String host;
+  private final int port;
+  private final Config config;
+
+  private final Semaphore permits;
+  private final Deque<FrogConnection> idle = new ArrayDeque<>(); // Guarded by this. Most recently used first.
+  private final ScheduledFuture<?> eviction;
+  private boolean closed; // Guarded by this.
+
+  public FrogConnectionPool(String host, int port, Config config) {
+    this.host = host;
+    this.port = port;
+    this.config = requireNonNull(config);
+    permits = new Semaphore(config.maxConnections, true);
+
+    if (config.maxIdleMillis > 0) {
+      long period = Math.max(config.maxIdleMillis / 2, 1);
+      eviction = Housekeeping.SCHEDULER.scheduleWithFixedDelay(this::evictIdle, period, period, MILLISECONDS);
+    } else {
+      eviction = null;
+    }
+  }
+
+  String getHost() {
+    return host;
+  }
+
+  int getPort() {
+    return port;
+  }
+
+  /**
+   * Returns an idle connection, or opens a new one if none are idle.
+   * Blocks while {@link Config#maxConnections} connections are in use.
+   * <p>
+   * The connection must be handed back through {@link #release}.
+   */
+  FrogConnection borrow() throws IOException, InterruptedException {
+    return borrow(new Timings());
+  }
+
+  // Like borrow(), but gives up with a DeadlineExceededException when timings' deadline passes.
+  FrogConnection borrow(Timings timings) throws IOException, InterruptedException {
+    int remaining = timings.remainingMillis();
+    if (remaining == 0) {
+      permits.acquire();
+    } else if (!permits.tryAcquire(remaining, MILLISECONDS)) {
+      throw new DeadlineExceededException();
+    }
+    try {
+      for (FrogConnection conn; (conn = pollIdle()) != null; ) {
+        if (conn.isUsable()) {
+          return conn;
+        }
+        conn.close();
+      }
+      return new FrogConnection(host, port, config.keepAlive, config.connectTimeoutMillis,
+        config.readTimeoutMillis);
+    } catch (IOException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Hands back a borrowed connection. If ok is false, the connection is in an unknown state
+   * and is closed rather than reused.
+   */
+  void release(FrogConnection conn, boolean ok) {
+    try {
+      synchronized (this) {
+        if (ok && !closed) {
+          idle.addFirst(conn);
+          return;
+        }
+      }
+      conn.close();
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Closes all idle connections. Called when a reused connection turns out to be broken,
+   * since that usually means Frog has been restarted and the other idle ones are broken too.
+   */
+  void clearIdle() {
+    closeAll(drainIdle(0));
+  }
+
+  synchronized int idleCount() {
+    return idle.size();
+  }
+
+  private synchronized FrogConnection pollIdle() {
+    return idle.pollFirst();
+  }
+
+  private void evictIdle() {
+    closeAll(drainIdle(MILLISECONDS.toNanos(config.maxIdleMillis)));
+  }
+
+  // Removes idle connections that have not been used for at least minIdle nanoseconds.
+  private synchronized List<FrogConnection> drainIdle(long minIdle) {
+    List<FrogConnection> evicted = new ArrayList<>();
+    long now = System.nanoTime();
+    // The least recently used connections are at the end.
+    while (!idle.isEmpty() && idle.peekLast().idleNanos(now) >= minIdle) {
+      evicted.add(idle.pollLast());
+    }
+    return evicted;
+  }
+
+  private static void closeAll(List<FrogConnection> conns) {
+    conns.forEach(FrogConnection::close);
+  }
+
+  @Override
+  public void close() {
+    if (eviction != null) {
+      eviction.cancel(false);
+    }
+    List<FrogConnection> conns;
+    synchronized (this) {
+      closed = true;
+      conns = new ArrayList<>(idle);
+      idle.clear();
+    }
+    closeAll(conns);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("FrogConnectionPool(%s:%d, %d of %d connections in use)", host, port,
+      config.maxConnections - permits.availablePermits(), config.maxConnections);
+  }
+}
@@ -0,0 +1,657 @@
+package nl.knaw.huc.rananostra;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Throwables;
+import opennlp.tools.tokenize.TokenizerME;
+import opennlp.tools.util.Span;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.validation.constraints.Min;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Non-blocking Frog client that multiplexes many outstanding requests over a few connections
+ * per backend.
+ * <p>
+ * Where a {@link FrogCluster} needs a thread for every Frog conversation in progress, this
+ * client has one or two I/O threads that write the requests and read the responses for all
+ * connections. Requests are pipelined, so a connection can have any number of them outstanding;
+ * Frog answers them in order. Since the I/O threads read while they write, a long pipeline cannot
+ * deadlock. Responses are parsed on the common fork-join pool.
+ * <p>
+ * At most {@link Config#maxInFlight} requests are outstanding at a time; the rest wait their
+ * turn. Each request goes to the connection with the fewest outstanding requests. A request whose
+ * deadline passes fails with a {@link DeadlineExceededException}, whether it was sent or not.
+ * A connection that gets no further within {@link Config#readTimeoutMillis} is closed, and its
+ * requests are tried once more on another connection. Closed connections are reopened when they
+ * are next needed.
+ * <p>
+ * {@link FrogSocketClient} sends its requests through this client instead of through its
+ * cluster's connection pools if {@link FrogSocketClient.Config#nio} is set.
+ */
+public class FrogNioClient implements Closeable {
+  public static class Config {
+    /**
+     * Number of threads doing socket I/O.
+     */
+    @JsonProperty
+    @Min(1)
+    public int ioThreads = 1;
+
+    /**
+     * Number of connections to each backend. Frog handles each connection on a thread of its own.
+     */
+    @JsonProperty
+    @Min(1)
+    public int connectionsPerBackend = 4;
+
+    /**
+     * Maximum number of requests sent to Frog and not yet answered, over all connections.
+     * Further requests wait until one is answered.
+     */
+    @JsonProperty
+    @Min(1)
+    public int maxInFlight = 256;
+
+    /**
+     * Time allowed for opening a connection. Zero means no limit.
+     */
+    @JsonProperty
+    @Min(0)
+    public int connectTimeoutMillis = 5_000;
+
+    /**
+     * Time allowed for Frog to take (the next part of) a request or to send (the next part of)
+     * a response. Zero means no limit.
+     */
+    @JsonProperty
+    @Min(0)
+    public int readTimeoutMillis = 60_000;
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(FrogNioClient.class);
+
+  private static final byte[] READY = "READY\n".getBytes(UTF_8);
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // How often, while requests are outstanding, the I/O threads check deadlines and timeouts.
+  private static final long CHECK_MILLIS = 10;
+
+  private final Config config;
+  private final IoThread[] ioThreads;
+  private final Connection[] connections;
+  private final ArrayDeque<Pending> queued = new ArrayDeque<>(); // Guarded by this. Waiting for a slot.
+  private int inFlight; // Guarded by this. Requests that hold one of the maxInFlight slots.
+  private volatile boolean closed;
+
+  /**
+   * Construct client for the given Frog servers. Connections are opened on demand.
+   */
+  public FrogNioClient(List<FrogCluster.Endpoint> endpoints, Config config) throws IOException {
+    if (endpoints.isEmpty()) {
+      throw new IllegalArgumentException("need at least one Frog backend");
+    }
+    this.config = config;
+    ioThreads = new IoThread[config.ioThreads];
+    for (int i = 0; i < ioThreads.length; i++) {
+      ioThreads[i] = new IoThread(i);
+    }
+    // Interleave the backends, so that ties between idle connections are broken round-robin.
+    connections = new Connection[endpoints.size() * config.connectionsPerBackend];
+    for (int i = 0; i < connections.length; i++) {
+      FrogCluster.Endpoint e = endpoints.get(i % endpoints.size());
+      connections[i] = new Connection(e.host, e.port, ioThreads[i % ioThreads.length]);
+    }
+    for (IoThread t : ioThreads) {
+      t.start();
+    }
+  }
+
+  /**
+   * Apply Frog's NER to the given sentence, after tokenizing it with OpenNLP on the calling thread.
+   *
+   * @return The spans that {@link FrogSocketClient#apply(String)} would return, once Frog has answered.
+   */
+  public CompletableFuture<List<Span>> apply(String sentence) {
+    TokenizerME tok = new TokenizerME(FrogSocketClient.tokenizerModel());
+    return apply(TokenizedText.of(sentence, tok.tokenizePos(sentence)));
+  }
+
+  /**
+   * Apply Frog's NER to the given pre-tokenized text.
+   *
+   * @throws IllegalArgumentException If the tokens cannot be sent to Frog,
+   *                                  as in {@link FrogSocketClient#apply(String, List)}.
+   */
+  public CompletableFuture<List<Span>> apply(String text, List<Span> tokens) {
+    return apply(TokenizedText.of(text, tokens));
+  }
+
+  private CompletableFuture<List<Span>> apply(TokenizedText tokens) {
+    String request = tokens.encode(0, tokens.size()) + "EOT\n";
+    return submit(request, false, 0).thenApply(found -> found.toEntities(tokens).toSpans());
+  }
+
+  /**
+   * Apply Frog's NER to each of the given sentences. Up to {@link Config#maxInFlight} sentences
+   * are in flight at once.
+   */
+  public CompletableFuture<List<List<Span>>> applyAll(List<String> sentences) {
+    List<CompletableFuture<List<Span>>> futures = new ArrayList<>(sentences.size());
+    for (String sentence : sentences) {
+      futures.add(apply(sentence));
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+      List<List<Span>> result = new ArrayList<>(futures.size());
+      for (CompletableFuture<List<Span>> f : futures) {
+        result.add(f.join());
+      }
+      return result;
+    });
+  }
+
+  /*
+   * Sends the requests and waits for their responses, which are returned in the same order,
+   * failing with DeadlineExceededException when the deadline in timings passes. The requests
+   * may go over different connections. The whole wait is recorded as the FROG stage.
+   *
+   * This makes the client a FrogTransport, for FrogSocketClient.
+   */
+  List<TokenSpans> exchange(List<String> requests, Timings timings) throws IOException, InterruptedException {
+    long t = System.nanoTime();
+    timings.remainingMillis(); // Fails if the deadline has passed already.
+    List<CompletableFuture<TokenSpans>> futures = new ArrayList<>(requests.size());
+    for (String request : requests) {
+      futures.add(submit(request, timings.hasDeadline(), timings.deadline()));
+    }
+    List<TokenSpans> responses = new ArrayList<>(futures.size());
+    try {
+      for (CompletableFuture<TokenSpans> f : futures) {
+        responses.add(f.get());
+      }
+    } catch (InterruptedException e) {
+      futures.forEach(f -> f.cancel(false));
+      throw e;
+    } catch (ExecutionException e) {
+      futures.forEach(f -> f.cancel(false));
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    }
+    timings.lap(Timings.Stage.FROG, t);
+    return responses;
+  }
+
+  // Sends request as soon as a slot is free. Cancelling the result drops the request if it was not sent yet.
+  private CompletableFuture<TokenSpans> submit(String request, boolean hasDeadline, long deadline) {
+    Pending p = new Pending(request, hasDeadline, deadline);
+    boolean mayGo;
+    synchronized (this) {
+      mayGo = inFlight < config.maxInFlight;
+      if (mayGo) {
+        inFlight++;
+      } else {
+        queued.add(p);
+      }
+    }
+    if (mayGo) {
+      dispatch(p, null);
+    }
+    if (closed) {
+      p.future.completeExceptionally(new IOException("Frog client closed"));
+    }
+    return p.future;
+  }
+
+  // Hands p, which holds a slot, to the connection with the fewest outstanding requests other than avoid.
+  private void dispatch(Pending p, Connection avoid) {
+    Connection best = null;
+    for (Connection c : connections) {
+      if (c != avoid && (best == null || c.outstanding.get() < best.outstanding.get())) {
+        best = c;
+      }
+    }
+    (best == null ? avoid : best).submit(p);
+  }
+
+  // Frees the slot of a request that is done with its connection, or passes it to the next in line.
+  private void release() {
+    while (true) {
+      Pending next;
+      synchronized (this) {
+        next = queued.poll();
+        if (next == null) {
+          inFlight--;
+          return;
+        }
+      }
+      if (!next.future.isDone()) {
+        dispatch(next, null);
+        return;
+      }
+    }
+  }
+
+  // Fails the requests waiting for a slot whose deadline has passed, and drops cancelled ones.
+  private void expireQueued(long now) {
+    List<Pending> expired = new ArrayList<>();
+    synchronized (this) {
+      for (Iterator<Pending> it = queued.iterator(); it.hasNext(); ) {
+        Pending p = it.next();
+        if (p.expired(now) || p.future.isDone()) {
+          it.remove();
+          expired.add(p);
+        }
+      }
+    }
+    expired.forEach(p -> p.future.completeExceptionally(new DeadlineExceededException()));
+  }
+
+  /**
+   * Closes all connections. Requests still outstanding fail with an IOException.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    List<Pending> waiting;
+    synchronized (this) {
+      waiting = new ArrayList<>(queued);
+      queued.clear();
+    }
+    waiting.forEach(p -> p.future.completeExceptionally(new IOException("Frog client closed")));
+    for (IoThread t : ioThreads) {
+      t.selector.wakeup();
+    }
+  }
+
+  private static final class Pending {
+    final String request; // Tokens, one per line, followed by EOT.
+    final boolean hasDeadline;
+    final long deadline; // System.nanoTime, if hasDeadline.
+    final CompletableFuture<TokenSpans> future = new CompletableFuture<>();
+    boolean retried;
+
+    Pending(String request, boolean hasDeadline, long deadline) {
+      this.request = request;
+      this.hasDeadline = hasDeadline;
+      this.deadline = deadline;
+    }
+
+    boolean expired(long now) {
+      return hasDeadline && now - deadline >= 0;
+    }
+  }
+
+  private final class IoThread extends Thread {
+    final Selector selector;
+    final List<Connection> connections = new ArrayList<>();
+    final Queue<Connection> scheduled = new ConcurrentLinkedQueue<>(); // Have new submissions.
+    private long lastCheck;
+
+    IoThread(int i) throws IOException {
+      super("frog-nio-" + i);
+      setDaemon(true);
+      selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!closed) {
+          // Without outstanding requests, there are no deadlines or timeouts to check.
+          selector.select(busy() ? CHECK_MILLIS : 0);
+          for (Connection c; (c = scheduled.poll()) != null; ) {
+            c.takeSubmitted();
+          }
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            ((Connection) key.attachment()).handle(key);
+          }
+
+          long now = System.nanoTime();
+          if (now - lastCheck >= MILLISECONDS.toNanos(CHECK_MILLIS)) {
+            lastCheck = now;
+            expireQueued(now);
+            for (Connection c : connections) {
+              c.check(now);
+            }
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        LOG.error("Frog I/O thread failed", e);
+      }
+
+      IOException e = new IOException("Frog client closed");
+      for (Connection c : connections) {
+        c.takeSubmitted();
+        c.fail(e, false);
+      }
+      try {
+        selector.close();
+      } catch (IOException ignored) {
+        // Nothing we can do about this.
+      }
+    }
+
+    private boolean busy() {
+      for (Connection c : connections) {
+        if (c.outstanding.get() > 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /*
+   * A connection to a Frog backend. Apart from submit, only called by its I/O thread.
+   *
+   * The I/O thread encodes requests into writeBuf as long as there is room, and scans
+   * the bytes in readBuf for the READY line that ends each response.
+   */
+  private final class Connection {
+    final String host;
+    final int port;
+    final IoThread io;
+    final Queue<Pending> submitted = new ConcurrentLinkedQueue<>();
+    final AtomicBoolean isScheduled = new AtomicBoolean();
+    final AtomicInteger outstanding = new AtomicInteger();
+
+    private SocketChannel channel; // Null if not open.
+    private SelectionKey key;
+    private final ArrayDeque<Pending> unwritten = new ArrayDeque<>();
+    private final ArrayDeque<Pending> unanswered = new ArrayDeque<>(); // Written, in order.
+
+    private final ByteBuffer writeBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharsetEncoder encoder = UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer encoding; // Rest of the request at the head of unwritten, if started.
+    private long lastWrite; // System.nanoTime of the last progress in connecting or writing.
+
+    private final ByteBuffer readBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private byte[] response = new byte[BUFFER_SIZE]; // Current response, up to responseLength.
+    private int responseLength;
+    private int ready; // Bytes of READY matched at the start of the current line, or -1.
+    private long lastRead; // System.nanoTime of the last bytes read, or since when a response is awaited.
+
+    Connection(String host, int port, IoThread io) {
+      this.host = host;
+      this.port = port;
+      this.io = io;
+      io.connections.add(this);
+    }
+
+    @Override
+    public String toString() {
+      return host + ":" + port;
+    }
+
+    // Called by any thread.
+    void submit(Pending p) {
+      outstanding.incrementAndGet();
+      submitted.add(p);
+      if (isScheduled.compareAndSet(false, true)) {
+        io.scheduled.add(this);
+        io.selector.wakeup();
+      }
+    }
+
+    void takeSubmitted() {
+      isScheduled.set(false);
+      for (Pending p; (p = submitted.poll()) != null; ) {
+        unwritten.add(p);
+      }
+      if (unwritten.isEmpty() || closed) {
+        return;
+      }
+      try {
+        if (channel == null) {
+          connect();
+        } else if (channel.isConnected()) {
+          write();
+        }
+      } catch (IOException e) {
+        fail(e, true);
+      }
+    }
+
+    void handle(SelectionKey key) {
+      try {
+        if (key.isConnectable()) {
+          channel.finishConnect();
+          write();
+        }
+        if (key.isValid() && key.isReadable()) {
+          read();
+        }
+        if (key.isValid() && key.isWritable()) {
+          write();
+        }
+      } catch (IOException e) {
+        fail(e, true);
+      }
+    }
+
+    private void connect() throws IOException {
+      lastWrite = System.nanoTime();
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      key = channel.register(io.selector, SelectionKey.OP_CONNECT, this);
+      if (channel.connect(new InetSocketAddress(host, port))) {
+        write();
+      }
+    }
+
+    private void write() throws IOException {
+      if (writeBuf.position() == 0) {
+        lastWrite = System.nanoTime(); // Nothing was waiting to be written.
+      }
+      while (true) {
+        while (writeBuf.hasRemaining() && (encoding != null || !unwritten.isEmpty())) {
+          if (encoding == null) {
+            if (unwritten.peek().future.isDone()) {
+              done(unwritten.poll()); // Cancelled or past its deadline: don't send it.
+              continue;
+            }
+            encoder.reset();
+            encoding = CharBuffer.wrap(unwritten.peek().request);
+          }
+          encoder.encode(encoding, writeBuf, true); // UTF-8 needs no flush.
+          if (encoding.hasRemaining()) {
+            break; // writeBuf is full.
+          }
+          if (unanswered.isEmpty()) {
+            lastRead = System.nanoTime();
+          }
+          unanswered.add(unwritten.poll());
+          encoding = null;
+        }
+
+        writeBuf.flip();
+        if (channel.write(writeBuf) > 0) {
+          lastWrite = System.nanoTime();
+        }
+        writeBuf.compact();
+        if (writeBuf.position() > 0) {
+          key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE); // Socket buffer is full.
+          return;
+        }
+        if (encoding == null && unwritten.isEmpty()) {
+          key.interestOps(SelectionKey.OP_READ);
+          return;
+        }
+      }
+    }
+
+    private void read() throws IOException {
+      int n = channel.read(readBuf);
+      if (n == -1) {
+        throw new EOFException("Frog closed connection");
+      }
+      if (n > 0) {
+        lastRead = System.nanoTime();
+      }
+      readBuf.flip();
+      int start = 0;
+      int lim = readBuf.limit();
+      for (int i = 0; i < lim; i++) {
+        byte b = readBuf.get(i);
+        if (ready >= 0 && b == READY[ready]) {
+          if (++ready == READY.length) {
+            append(start, i + 1);
+            start = i + 1;
+            complete(responseLength - READY.length);
+            responseLength = 0;
+            ready = 0;
+          }
+        } else {
+          ready = b == '\n' ? 0 : -1;
+        }
+      }
+      append(start, lim);
+      readBuf.clear();
+    }
+
+    private void append(int from, int to) {
+      int n = to - from;
+      if (responseLength + n > response.length) {
+        response = Arrays.copyOf(response, Math.max(2 * response.length, responseLength + n));
+      }
+      readBuf.position(from);
+      readBuf.get(response, responseLength, n);
+      responseLength += n;
+    }
+
+    private void complete(int length) throws IOException {
+      Pending p = unanswered.poll();
+      if (p == null) {
+        throw new IOException("Frog sent a response without a request");
+      }
+      done(p);
+      if (p.future.isDone()) {
+        return; // Cancelled or past its deadline.
+      }
+      byte[] body = Arrays.copyOf(response, length);
+      ForkJoinPool.commonPool().execute(() -> {
+        try {
+          p.future.complete(FoliaParser.parse(new ByteArrayInputStream(body)));
+        } catch (IOException | RuntimeException e) {
+          p.future.completeExceptionally(e);
+        }
+      });
+    }
+
+    // Called when p leaves this connection for good.
+    private void done(Pending p) {
+      outstanding.decrementAndGet();
+      release();
+    }
+
+    /*
+     * Fails the requests whose deadline has passed. Those that have not been sent are dropped;
+     * the responses to the others are skipped when they come in. Closes the connection if Frog
+     * gets no further within the configured timeouts.
+     */
+    void check(long now) {
+      for (Pending p : unanswered) {
+        if (p.expired(now)) {
+          p.future.completeExceptionally(new DeadlineExceededException());
+        }
+      }
+      for (Iterator<Pending> it = unwritten.iterator(); it.hasNext(); ) {
+        Pending p = it.next();
+        if (p.expired(now)) {
+          p.future.completeExceptionally(new DeadlineExceededException());
+        }
+        boolean started = encoding != null && p == unwritten.peek();
+        if (p.future.isDone() && !started) {
+          it.remove();
+          done(p);
+        }
+      }
+
+      if (channel == null) {
+        return;
+      }
+      if (channel.isConnectionPending()) {
+        if (config.connectTimeoutMillis > 0 && now - lastWrite > MILLISECONDS.toNanos(config.connectTimeoutMillis)) {
+          fail(new SocketTimeoutException("connect timed out"), true);
+        }
+      } else if (config.readTimeoutMillis > 0) {
+        long timeout = MILLISECONDS.toNanos(config.readTimeoutMillis);
+        if (!unanswered.isEmpty() && now - lastRead > timeout) {
+          fail(new SocketTimeoutException("Read timed out"), true);
+        } else if (writeBuf.position() > 0 && now - lastWrite > timeout) {
+          fail(new SocketTimeoutException("Write timed out"), true);
+        }
+      }
+    }
+
+    // Closes the connection and retries (if retry is set) or fails all of its requests.
+    void fail(IOException e, boolean retry) {
+      if (channel != null) {
+        if (!closed) {
+          LOG.warn("Frog connection to {} failed: {}", this, e.toString());
+        }
+        try {
+          channel.close(); // Also cancels key.
+        } catch (IOException ignored) {
+          // Nothing we can do about this.
+        }
+        channel = null;
+      }
+      writeBuf.clear();
+      readBuf.clear();
+      encoding = null;
+      responseLength = 0;
+      ready = 0;
+
+      List<Pending> failed = new ArrayList<>(unanswered);
+      failed.addAll(unwritten);
+      unanswered.clear();
+      unwritten.clear();
+      for (Pending p : failed) {
+        if (retry && !p.retried && !closed && !p.future.isDone()) {
+          p.retried = true;
+          outstanding.decrementAndGet();
+          dispatch(p, this); // Keeps its slot.
+        } else {
+          p.future.completeExceptionally(e);
+          done(p);
+        }
+      }
+    }
+  }
+}
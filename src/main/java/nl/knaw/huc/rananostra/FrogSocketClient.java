@@ -1,40 +1,56 @@
 package nl.knaw.huc.rananostra;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.google.common.base.Strings;
-import nl.knaw.huygens.algomas.concurrent.TransientLazy;
-import nu.xom.Attribute;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import nu.xom.Document;
-import nu.xom.Element;
 import nu.xom.Node;
 import nu.xom.Nodes;
-import nu.xom.ParsingException;
 import nu.xom.Text;
 import nu.xom.XPathContext;
-import opennlp.tools.tokenize.Tokenizer;
 import opennlp.tools.tokenize.TokenizerME;
 import opennlp.tools.tokenize.TokenizerModel;
 import opennlp.tools.util.Span;
 import org.hibernate.validator.constraints.NotEmpty;
 
-import java.io.BufferedReader;
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.io.UncheckedIOException;
 import java.io.Writer;
-import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * Wrapper for the Frog named-entity recognizer.
@@ -53,32 +69,246 @@ import static java.util.Objects.requireNonNull;
  *   docker run -p ${port}:9999 proycon/lamachine frog --skip=mptcla -S 9999 -X
  * </pre>
  */
-public class FrogSocketClient {
-  private final String host;
-  private final int port;
+public class FrogSocketClient implements Closeable {
+  /**
+   * The available tokenizers.
+   */
+  public enum Tokenizer {
+    /**
+     * OpenNLP's maximum entropy tokenizer with the Dutch model, nl-token.bin.
+     */
+    OPENNLP,
 
-  private static final String foliaNS = "http://ilk.uvt.nl/folia";
+    /**
+     * A rule-based tokenizer for Dutch that approximates the OpenNLP model's output at
+     * a fraction of the cost. See {@link DutchTokenizer}.
+     */
+    RULES;
 
-  private TransientLazy<TokenizerModel> tokModel = new TransientLazy<>(() -> {
-    try {
-      return new TokenizerModel(FrogSocketClient.class.getResourceAsStream("/nl-token.bin"));
-    } catch (IOException e) {
-      throw new UncheckedIOException(e);
+    // Accepts the names in any case, for JSON and for query parameters.
+    @JsonCreator
+    public static Tokenizer fromString(String name) {
+      return valueOf(name.toUpperCase(Locale.ROOT));
     }
-  });
+  }
+
+  public static class Config {
+    /**
+     * Maximum number of Frog calls that a single applyXML call makes concurrently.
+     * Requests can ask for less, but not more.
+     */
+    @JsonProperty
+    @Min(1)
+    public int concurrency = 8;
+
+    /**
+     * Run concurrent Frog calls on virtual threads, if the JVM supports them (Java 21+).
+     * Otherwise, a pool of platform threads is used.
+     */
+    @JsonProperty
+    public boolean virtualThreads = true;
 
-  private static final XPathContext foliaCtxt = new XPathContext("folia", foliaNS);
+    /**
+     * Maximum number of sentences packed into a single Frog request. One disables batching.
+     */
+    @JsonProperty
+    @Min(1)
+    public int batchSize = 1;
+
+    /**
+     * How long a sentence passed to apply may wait for sentences from other apply calls
+     * to share a Frog request with. Zero means only applyAll and applyXML batch sentences.
+     */
+    @JsonProperty
+    @Min(0)
+    public long lingerMillis = 0;
+
+    /**
+     * Maximum number of sentences whose Frog results are cached, keyed on their tokens.
+     * Zero disables the cache.
+     */
+    @JsonProperty
+    @Min(0)
+    public long cacheSize = 0;
+
+    /**
+     * Tokenizer used when a request does not ask for one.
+     */
+    @JsonProperty
+    public Tokenizer tokenizer = Tokenizer.OPENNLP;
+
+    /**
+     * Split each text into sentences and send those to Frog separately and in parallel, instead
+     * of sending the text of each XPath match as a single input. Requests can override this.
+     */
+    @JsonProperty
+    public boolean splitSentences = false;
+
+    /**
+     * OpenNLP sentence detector model file (e.g., nl-sent.bin) to split sentences with.
+     * If not set, sentences are split by rules.
+     */
+    @JsonProperty
+    public String sentenceModel;
+
+    /**
+     * When a sentence's tokens are already being sent to Frog, wait for that result instead of
+     * sending them again.
+     */
+    @JsonProperty
+    public boolean coalesce = true;
+
+    /**
+     * If set, send requests to the cluster's backends over non-blocking connections, see
+     * {@link FrogNioClient}, instead of over the cluster's connection pools. The cluster's
+     * in-flight limits, ejection and hedging then do not apply. Backends added to the cluster
+     * later are not used.
+     */
+    @JsonProperty
+    @Valid
+    public FrogNioClient.Config nio;
+  }
+
+  private final FrogCluster frog;
+  private final FrogNioClient nio; // Null if requests go through frog's connection pools.
+  private final FrogTransport transport;
+  private final Config config;
+  private final ExecutorService executor;
+  private final FrogBatcher batcher; // Null if sentences from separate calls are not batched.
+  private final Cache<StringSlice, TokenSpans> cache; // Null if disabled.
+  private final SentenceSplitter splitter;
+  // Token sequences on their way to Frog, by whoever sent them. Null if not coalescing.
+  private final ConcurrentMap<StringSlice, CompletableFuture<TokenSpans>> inFlight;
+  private final Meter coalesced;
+
+  private final Timer[] stageTimers;
+  private final Histogram sentenceLength;  // In characters.
+  private final Histogram sentenceTokens;
+  private final Histogram sentenceEntities;
+
+  private final TokenizerModel tokModel = tokenizerModel();
+
+  /*
+   * The Dutch OpenNLP tokenizer model. It is loaded by the first client constructed, so that
+   * no request has to wait for it, and is kept for the life of the JVM (it is immutable and
+   * shared by all clients).
+   */
+  private static final class ModelHolder {
+    static final TokenizerModel MODEL = load();
+
+    private static TokenizerModel load() {
+      try (InputStream in = FrogSocketClient.class.getResourceAsStream("/nl-token.bin")) {
+        return new TokenizerModel(in);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  static TokenizerModel tokenizerModel() {
+    return ModelHolder.MODEL;
+  }
 
   /**
-   * Construct Frog client. Does not initiate any socket connections; Frog requires
-   * us to open a new connection for every sentence.
+   * Construct Frog client. Does not initiate any socket connections; these are opened on
+   * demand and kept open for reuse, with the default pool settings.
    *
    * @param host Host name.
    * @param port Port number.
    */
   public FrogSocketClient(String host, int port) {
-    this.host = host;
-    this.port = port;
+    this(host, port, new FrogConnectionPool.Config());
+  }
+
+  /**
+   * Construct Frog client with the given connection pool settings.
+   *
+   * @param host Host name.
+   * @param port Port number.
+   */
+  public FrogSocketClient(String host, int port, FrogConnectionPool.Config poolConfig) {
+    this(new FrogCluster(singletonList(new FrogCluster.Endpoint(host, port)), new FrogCluster.Config(),
+      poolConfig));
+  }
+
+  /**
+   * Construct client that spreads its requests over a cluster of Frog servers.
+   * The client takes ownership of the cluster, closing it when the client is closed.
+   */
+  public FrogSocketClient(FrogCluster cluster) {
+    this(cluster, new Config());
+  }
+
+  /**
+   * Construct client that spreads its requests over a cluster of Frog servers,
+   * with the given client settings.
+   * The client takes ownership of the cluster, closing it when the client is closed.
+   */
+  public FrogSocketClient(FrogCluster cluster, Config config) {
+    this(cluster, config, new MetricRegistry());
+  }
+
+  /**
+   * Construct client that spreads its requests over a cluster of Frog servers,
+   * with the given client settings, recording metrics in the given registry.
+   * The client takes ownership of the cluster, closing it when the client is closed.
+   */
+  public FrogSocketClient(FrogCluster cluster, Config config, MetricRegistry metrics) {
+    frog = requireNonNull(cluster);
+    this.config = requireNonNull(config);
+    nio = config.nio == null ? null : newNioClient(cluster, config.nio);
+    transport = nio == null ? frog::exchange : nio::exchange;
+    executor = newExecutor(config.virtualThreads);
+    batcher = config.batchSize > 1 && config.lingerMillis > 0
+      ? new FrogBatcher(transport, executor, config.batchSize, config.lingerMillis)
+      : null;
+    cache = config.cacheSize > 0
+      ? CacheBuilder.newBuilder().maximumSize(config.cacheSize).recordStats().build()
+      : null;
+    splitter = config.sentenceModel == null
+      ? SentenceSplitter.RULES
+      : SentenceSplitter.withModel(config.sentenceModel);
+
+    inFlight = config.coalesce ? new ConcurrentHashMap<>() : null;
+
+    stageTimers = Timings.timers(metrics, FrogSocketClient.class);
+    coalesced = metrics.meter(MetricRegistry.name(FrogSocketClient.class, "coalesced"));
+    sentenceLength = metrics.histogram(MetricRegistry.name(FrogSocketClient.class, "sentenceLength"));
+    sentenceTokens = metrics.histogram(MetricRegistry.name(FrogSocketClient.class, "sentenceTokens"));
+    sentenceEntities = metrics.histogram(MetricRegistry.name(FrogSocketClient.class, "sentenceEntities"));
+    if (cache != null) {
+      String prefix = MetricRegistry.name(FrogSocketClient.class, "cache");
+      metrics.register(MetricRegistry.name(prefix, "hits"), (Gauge<Long>) () -> cache.stats().hitCount());
+      metrics.register(MetricRegistry.name(prefix, "misses"), (Gauge<Long>) () -> cache.stats().missCount());
+      metrics.register(MetricRegistry.name(prefix, "evictions"), (Gauge<Long>) () -> cache.stats().evictionCount());
+      metrics.register(MetricRegistry.name(prefix, "hitRate"), (Gauge<Double>) () -> cache.stats().hitRate());
+    }
+  }
+
+  private static FrogNioClient newNioClient(FrogCluster cluster, FrogNioClient.Config config) {
+    List<FrogCluster.Endpoint> endpoints = new ArrayList<>();
+    for (FrogBackend b : cluster.backends()) {
+      endpoints.add(new FrogCluster.Endpoint(b.pool.getHost(), b.pool.getPort()));
+    }
+    try {
+      return new FrogNioClient(endpoints, config);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // The work is almost all waiting on sockets, which is what virtual threads are for.
+  // We look them up reflectively so that we still run on Java 8.
+  private static ExecutorService newExecutor(boolean virtual) {
+    if (virtual) {
+      try {
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        // Fall back to platform threads.
+      }
+    }
+    return Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("frog-client-%d").build());
   }
 
   /**
@@ -89,16 +319,66 @@ public class FrogSocketClient {
   }
 
   /**
-   * Apply Frog's NER to the given sentence, after tokenizing it.
+   * Closes all connections.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+    if (nio != null) {
+      nio.close();
+    }
+    frog.close();
+  }
+
+  /**
+   * Returns hit, miss and eviction counts of the sentence cache, or empty statistics
+   * if the cache is disabled.
+   */
+  public CacheStats cacheStats() {
+    return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+  }
+
+  /**
+   * Returns the tokenizer used for requests that do not ask for one.
+   */
+  public Tokenizer defaultTokenizer() {
+    return config.tokenizer;
+  }
+
+  /**
+   * Reports whether texts are split into sentences for requests that do not say.
+   */
+  public boolean defaultSplitSentences() {
+    return config.splitSentences;
+  }
+
+  /**
+   * Returns the number of sentences that were not sent to Frog because the same tokens were
+   * already on their way there.
+   */
+  public long coalesced() {
+    return coalesced.getCount();
+  }
+
+  /**
+   * Apply Frog's NER to the given sentence, after tokenizing it with the configured tokenizer.
    * <p>
-   * Tokenization is performed by OpenNLP, because letting Frog do it makes it
+   * Tokenization is performed by us, because letting Frog do it makes it
    * nearly impossible to construct the correct spans.
    */
   public List<Span> apply(String sentence) throws Exception {
-    // Tokenizer (unlike TokenizerModel) is stateful, so construct it here.
-    // Its constructor is cheap.
-    Tokenizer tok = new TokenizerME(tokModel.get());
-    return apply(sentence, asList(tok.tokenizePos(sentence)));
+    return apply(sentence, (Tokenizer) null);
+  }
+
+  /**
+   * Like {@link #apply(String)}, with the given tokenizer (null for the configured one).
+   */
+  public List<Span> apply(String sentence, Tokenizer tokenizer) throws Exception {
+    Timings timings = newTimings(null);
+    long t = System.nanoTime();
+    TokenizedText tokens = newTokenizer(tokenizer).tokenize(sentence);
+    timings.lap(Timings.Stage.TOKENIZE, t);
+    return apply(tokens, timings).toSpans();
   }
 
   /**
@@ -108,61 +388,483 @@ public class FrogSocketClient {
    * @param tokens Tokens spans within text.
    * @return A list of spans, the type (getType) of which is the entity class assigned to them by Frog.
    * @throws IOException
-   * @throws ParsingException
    */
   public List<Span> apply(String text, List<Span> tokens) throws Exception {
-    StringBuilder sb = new StringBuilder();
+    return apply(TokenizedText.of(text, tokens), newTimings(null)).toSpans();
+  }
+
+  // Package-private for testing.
+  Entities apply(TokenizedText tokens, Timings timings) throws Exception {
+    sentenceLength.update(tokens.text.length());
+    sentenceTokens.update(tokens.size());
+    String encoded = tokens.encode(0, tokens.size());
+
+    TokenSpans result;
+    if (batcher == null) {
+      result = ner(new String[]{encoded}, new int[]{tokens.size()}, timings)[0];
+    } else {
+      // Time spent in a shared batch is recorded in the metrics, but not in timings. The batch
+      // is not cut short when our deadline passes; we only stop waiting for it.
+      StringSlice key = StringSlice.of(encoded);
+      result = cache == null ? null : cache.getIfPresent(key);
+      if (result == null) {
+        CompletableFuture<TokenSpans> mine = new CompletableFuture<>();
+        CompletableFuture<TokenSpans> other = claim(key, mine);
+        if (other != null) {
+          result = await(other, timings);
+        } else {
+          batcher.submit(encoded, tokens.size()).whenComplete((r, e) -> {
+            if (r != null && cache != null) {
+              cache.put(key, r);
+            }
+            release(key, mine, r, e);
+          });
+          result = await(mine, timings);
+        }
+      }
+    }
+    sentenceEntities.update(result.size());
+    return result.toEntities(tokens);
+  }
+
+  // Returns per-request timings that also feed this client's stage timers and, if not null, parent.
+  private Timings newTimings(Timings parent) {
+    return new Timings(stageTimers, parent);
+  }
+
+  /**
+   * Apply Frog's NER to each of the given sentences, after tokenizing them.
+   * <p>
+   * This is equivalent to calling {@link #apply(String)} on each sentence, but pipelines
+   * the sentences over a few connections and, if so configured, packs several sentences
+   * into each Frog request.
+   *
+   * @return For each sentence, the list of spans that {@link #apply(String)} would return.
+   */
+  public List<List<Span>> applyAll(List<String> sentences) throws Exception {
+    return applyAll(sentences, config.concurrency);
+  }
+
+  /**
+   * Like {@link #applyAll(List)}, but with at most the given number of concurrent Frog calls
+   * (capped at the configured concurrency).
+   */
+  public List<List<Span>> applyAll(List<String> sentences, int concurrency) throws Exception {
+    Entities[] found = annotate(sentences, concurrency, null, null, newTimings(null));
+    List<List<Span>> result = new ArrayList<>(found.length);
+    for (Entities e : found) {
+      result.add(e.toSpans());
+    }
+    return result;
+  }
+
+  /*
+   * Like applyAll, returning the entities of each text without converting them to Spans.
+   * tokenizer and split may be null for the configured behavior.
+   */
+  Entities[] annotate(List<String> sentences, int concurrency, Tokenizer tokenizer, Boolean split,
+                      Timings timings) throws Exception {
+    if (split == null ? config.splitSentences : split) {
+      return applySplit(sentences, concurrency, tokenizer, timings);
+    }
+    int n = sentences.size();
+    int batchSize = config.batchSize;
+    concurrency = Math.max(1, Math.min(concurrency, config.concurrency));
+
+    // Each chunk of sentences is sent as up to pipelineDepth requests of up to batchSize sentences
+    // over one connection. Use smaller chunks if that keeps more connections busy.
+    int chunkSize = Math.max(1, Math.min(batchSize * frog.pipelineDepth(), (n + concurrency - 1) / concurrency));
+    int nchunks = (n + chunkSize - 1) / chunkSize;
+
+    Entities[] result = new Entities[n];
+    Parallel.forEach(executor, concurrency, nchunks, chunk -> {
+      int start = chunk * chunkSize;
+      int end = Math.min(start + chunkSize, n);
+
+      long t = System.nanoTime();
+      TextTokenizer tok = newTokenizer(tokenizer);
+      TokenizedText[] tokens = new TokenizedText[end - start];
+      String[] encoded = new String[end - start];
+      int[] ntokens = new int[end - start];
+      for (int i = start; i < end; i++) {
+        TokenizedText sentTokens = tok.tokenize(sentences.get(i));
+        tokens[i - start] = sentTokens;
+        encoded[i - start] = sentTokens.encode(0, sentTokens.size());
+        ntokens[i - start] = sentTokens.size();
+        sentenceLength.update(sentTokens.text.length());
+        sentenceTokens.update(sentTokens.size());
+      }
+      timings.lap(Timings.Stage.TOKENIZE, t);
+
+      TokenSpans[] found = ner(encoded, ntokens, timings);
+      for (int i = start; i < end; i++) {
+        result[i] = found[i - start].toEntities(tokens[i - start]);
+        sentenceEntities.update(found[i - start].size());
+      }
+    });
+    return result;
+  }
+
+  /*
+   * Like annotate, but splits each text into sentences, which are sent to Frog independently,
+   * so that the sentences of a long text are processed in parallel. All texts are tokenized
+   * and split (in parallel) before the first is sent.
+   */
+  private Entities[] applySplit(List<String> texts, int concurrency, Tokenizer tokenizer,
+                                Timings timings) throws Exception {
+    int n = texts.size();
+    concurrency = Math.max(1, Math.min(concurrency, config.concurrency));
+
+    TokenizedText[] tokens = new TokenizedText[n];
+    int[][] starts = new int[n][];
+    String[][] encoded = new String[n][];
+    int perTask = Math.max(1, (n + concurrency - 1) / concurrency);
+    Parallel.forEach(executor, concurrency, (n + perTask - 1) / perTask, task -> {
+      long t = System.nanoTime();
+      TextTokenizer tok = newTokenizer(tokenizer);
+      for (int i = task * perTask; i < Math.min(n, (task + 1) * perTask); i++) {
+        tokens[i] = tok.tokenize(texts.get(i));
+        starts[i] = splitter.split(tokens[i]);
+        encoded[i] = encodeSentences(tokens[i], starts[i]);
+      }
+      timings.lap(Timings.Stage.TOKENIZE, t);
+    });
+
+    int total = Arrays.stream(encoded).mapToInt(e -> e.length).sum();
+    String[] allEncoded = new String[total];
+    int[] ntokens = new int[total];
+    for (int i = 0, k = 0; i < n; i++) {
+      for (int s = 0; s < encoded[i].length; s++, k++) {
+        allEncoded[k] = encoded[i][s];
+        ntokens[k] = starts[i][s + 1] - starts[i][s];
+      }
+    }
+
+    int chunkSize = Math.max(1, Math.min(config.batchSize * frog.pipelineDepth(),
+      (total + concurrency - 1) / concurrency));
+    TokenSpans[] found = new TokenSpans[total];
+    Parallel.forEach(executor, concurrency, (total + chunkSize - 1) / chunkSize, chunk -> {
+      int start = chunk * chunkSize;
+      int end = Math.min(start + chunkSize, total);
+      TokenSpans[] chunkFound = ner(Arrays.copyOfRange(allEncoded, start, end),
+        Arrays.copyOfRange(ntokens, start, end), timings);
+      System.arraycopy(chunkFound, 0, found, start, chunkFound.length);
+    });
+
+    Entities[] result = new Entities[n];
+    for (int i = 0, k = 0; i < n; i++) {
+      result[i] = mergeSentences(tokens[i], starts[i], found, k);
+      k += encoded[i].length;
+    }
+    return result;
+  }
+
+  /*
+   * Returns the token index at which each sentence of the text starts, followed by tokens.size(),
+   * or just {0, tokens.size()} if sentences are not to be split (split may be null for the
+   * configured behavior).
+   */
+  int[] sentenceStarts(TokenizedText tokens, Boolean split) {
+    if (split == null ? config.splitSentences : split) {
+      return splitter.split(tokens);
+    }
+    return new int[]{0, tokens.size()};
+  }
+
+  // Encodes the sentences of a text for Frog, as delimited by starts.
+  String[] encodeSentences(TokenizedText tokens, int[] starts) {
+    String[] encoded = new String[starts.length - 1];
+    for (int s = 0; s < encoded.length; s++) {
+      int from = starts[s];
+      int to = starts[s + 1];
+      encoded[s] = tokens.encode(from, to);
+      sentenceLength.update(from == to ? 0 : tokens.end(to - 1) - tokens.start(from));
+      sentenceTokens.update(to - from);
+    }
+    return encoded;
+  }
+
+  /*
+   * Joins the entities found in the sentences of a text, which are in found from index first on,
+   * into offsets in the text.
+   */
+  Entities mergeSentences(TokenizedText tokens, int[] starts, TokenSpans[] found, int first) {
+    if (starts.length == 2) {
+      sentenceEntities.update(found[first].size());
+      return found[first].toEntities(tokens);
+    }
+    int size = 0;
+    for (int s = 0; s < starts.length - 1; s++) {
+      size += found[first + s].size();
+    }
+    Entities entities = new Entities(size);
+    for (int s = 0; s < starts.length - 1; s++) {
+      TokenSpans sentence = found[first + s];
+      sentenceEntities.update(sentence.size());
+      sentence.addTo(entities, tokens, starts[s]);
+    }
+    return entities;
+  }
+
+  /**
+   * A text to apply NER to, with or without its tokens. Deserializes from a JSON string,
+   * or from an object with a text and, optionally, tokens as [start, end] pairs.
+   */
+  public static class TextInput {
+    @JsonProperty
+    public String text;
+
+    @JsonProperty
+    public int[][] tokens;
+
+    public TextInput() {
+    }
+
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public TextInput(String text) {
+      this.text = text;
+    }
+  }
+
+  /**
+   * Receives the result of applying NER to a single {@link TextInput}.
+   */
+  public interface ResultHandler {
+    /**
+     * Called with the index of the text in the input and either its spans or the exception
+     * that processing it caused. Exceptions thrown by this method stop {@link #applyEach}.
+     */
+    void handle(int index, List<Span> spans, Exception error) throws IOException;
+  }
+
+  /**
+   * Apply Frog's NER to texts as they are read from the iterator, with at most concurrency texts
+   * in progress (capped at the configured concurrency). Each result is passed to handler as soon
+   * as it is available, so results arrive in completion order, not input order. Calls to handler
+   * may be concurrent.
+   * <p>
+   * A text that cannot be processed is reported to the handler and does not stop the others.
+   * Texts without tokens are tokenized with the given tokenizer (null for the configured one).
+   */
+  public void applyEach(Iterator<TextInput> texts, int concurrency, Tokenizer tokenizer,
+                        ResultHandler handler) throws Exception {
+    concurrency = Math.max(1, Math.min(concurrency, config.concurrency));
+    Parallel.forEach(executor, concurrency, texts, (i, t) -> {
+      List<Span> spans;
+      try {
+        spans = apply(t, tokenizer);
+      } catch (IOException | RuntimeException e) {
+        handler.handle(i, null, e);
+        return;
+      }
+      handler.handle(i, spans, null);
+    });
+  }
+
+  private List<Span> apply(TextInput t, Tokenizer tokenizer) throws Exception {
+    if (t.text == null) {
+      throw new IllegalArgumentException("missing text");
+    }
+    if (t.tokens == null) {
+      return apply(t.text, tokenizer);
+    }
+    List<Span> tokens = new ArrayList<>(t.tokens.length);
+    for (int[] token : t.tokens) {
+      if (token.length != 2) {
+        throw new IllegalArgumentException("token must be a [start, end] pair");
+      }
+      tokens.add(new Span(token[0], token[1]));
+    }
+    return apply(t.text, tokens);
+  }
+
+  /*
+   * Returns a tokenizer of the given kind, or the configured kind if null. OpenNLP's tokenizers
+   * are stateful, so each thread needs its own. Construction is cheap.
+   */
+  TextTokenizer newTokenizer(Tokenizer kind) {
+    if ((kind == null ? config.tokenizer : kind) == Tokenizer.RULES) {
+      return DutchTokenizer.INSTANCE;
+    }
+    TokenizerME tok = new TokenizerME(tokModel);
+    return text -> TokenizedText.of(text, tok.tokenizePos(text.toString()));
+  }
+
+  /*
+   * Like ner, for any number of token sequences, on the calling thread only. Sends them in
+   * chunks of as many sequences as fit in a pipeline, one chunk per connection borrowed.
+   */
+  TokenSpans[] nerAll(String[] encoded, int[] ntokens, Timings timings) throws Exception {
+    int chunkSize = config.batchSize * frog.pipelineDepth();
+    if (encoded.length <= chunkSize) {
+      return ner(encoded, ntokens, timings);
+    }
+    TokenSpans[] result = new TokenSpans[encoded.length];
+    for (int start = 0; start < encoded.length; start += chunkSize) {
+      int end = Math.min(start + chunkSize, encoded.length);
+      TokenSpans[] found = ner(Arrays.copyOfRange(encoded, start, end), Arrays.copyOfRange(ntokens, start, end),
+        timings);
+      System.arraycopy(found, 0, result, start, found.length);
+    }
+    return result;
+  }
+
+  /*
+   * Looks up the given token sequences, as produced by TokenizedText.encode, in the cache and sends
+   * the rest to Frog, packing up to batchSize sequences into each request. Unless nio is
+   * configured, all requests go over a single connection.
+   */
+  private TokenSpans[] ner(String[] encoded, int[] ntokens, Timings timings) throws Exception {
+    TokenSpans[] result = new TokenSpans[encoded.length];
+    StringSlice[] keys = new StringSlice[encoded.length];
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    CompletableFuture<TokenSpans>[] futures = new CompletableFuture[encoded.length];
+    int[] todo = new int[encoded.length];
+    int ntodo = 0;
+    int[] waiting = new int[encoded.length]; // Sent by others.
+    int nwaiting = 0;
+    for (int i = 0; i < encoded.length; i++) {
+      if (cache != null || inFlight != null) {
+        keys[i] = StringSlice.of(encoded[i]);
+      }
+      if (cache != null) {
+        result[i] = cache.getIfPresent(keys[i]);
+      }
+      if (result[i] == null) {
+        futures[i] = inFlight == null ? null : new CompletableFuture<>();
+        CompletableFuture<TokenSpans> other = claim(keys[i], futures[i]);
+        if (other != null) {
+          futures[i] = other;
+          waiting[nwaiting++] = i;
+        } else {
+          todo[ntodo++] = i;
+        }
+      }
+    }
+    if (ntodo > 0) {
+      try {
+        send(encoded, ntokens, todo, ntodo, result, timings);
+      } catch (Throwable e) {
+        for (int k = 0; k < ntodo; k++) {
+          release(keys[todo[k]], futures[todo[k]], null, e);
+        }
+        throw e;
+      }
+      for (int k = 0; k < ntodo; k++) {
+        if (cache != null) {
+          cache.put(keys[todo[k]], result[todo[k]]);
+        }
+        release(keys[todo[k]], futures[todo[k]], result[todo[k]], null);
+      }
+    }
+    for (int k = 0; k < nwaiting; k++) {
+      int i = waiting[k];
+      result[i] = awaitOther(futures[i], encoded[i], ntokens[i], timings);
+    }
+    return result;
+  }
+
+  /*
+   * If coalescing, registers mine as the result for key and returns null, or, if someone is
+   * already sending key to Frog, returns their result. Returns null if not coalescing.
+   */
+  private CompletableFuture<TokenSpans> claim(StringSlice key, CompletableFuture<TokenSpans> mine) {
+    if (inFlight == null) {
+      return null;
+    }
+    CompletableFuture<TokenSpans> other = inFlight.putIfAbsent(key, mine);
+    if (other != null) {
+      coalesced.mark();
+    }
+    return other;
+  }
+
+  /*
+   * Completes a result claimed with claim, after it has been cached. A failure that is
+   * specific to the sender (its deadline, an interrupt) cancels the result instead, so that
+   * those waiting for it send the sentence themselves.
+   */
+  private void release(StringSlice key, CompletableFuture<TokenSpans> mine, TokenSpans result, Throwable error) {
+    if (inFlight == null) {
+      return;
+    }
+    inFlight.remove(key, mine);
+    if (error == null) {
+      mine.complete(result);
+    } else if (error instanceof DeadlineExceededException || error instanceof InterruptedException
+      || error instanceof InterruptedIOException) {
+      mine.cancel(false);
+    } else {
+      mine.completeExceptionally(error);
+    }
+  }
+
+  // Waits, within the deadline in timings, for a result that someone else is getting from Frog.
+  private TokenSpans awaitOther(CompletableFuture<TokenSpans> other, String encoded, int ntokens, Timings timings)
+    throws Exception {
+    try {
+      return await(other, timings);
+    } catch (CancellationException e) {
+      return ner(new String[]{encoded}, new int[]{ntokens}, timings)[0];
+    }
+  }
+
+  // Waits for future, failing with DeadlineExceededException when the deadline in timings passes.
+  private static <T> T await(CompletableFuture<T> future, Timings timings) throws Exception {
+    int remaining = timings.remainingMillis();
+    return Parallel.await(remaining == 0 ? future : withTimeout(future, remaining));
+  }
+
+  private static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, int millis) {
+    CompletableFuture<T> timed = new CompletableFuture<>();
+    ScheduledFuture<?> timeout = Housekeeping.SCHEDULER.schedule(
+      () -> timed.completeExceptionally(new DeadlineExceededException()), millis, MILLISECONDS);
+    future.whenComplete((r, e) -> {
+      timeout.cancel(false);
+      if (e == null) {
+        timed.complete(r);
+      } else {
+        timed.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+      }
+    });
+    return timed;
+  }
 
-    try (Socket conn = new Socket(host, port)) {
-      writeTokens(text, tokens, new OutputStreamWriter(conn.getOutputStream(), UTF_8));
+  // Sends encoded[todo[0..ntodo)] to Frog over a single connection, storing the results in result.
+  private void send(String[] encoded, int[] ntokens, int[] todo, int ntodo, TokenSpans[] result, Timings timings)
+    throws Exception {
 
-      BufferedReader r = new BufferedReader(new InputStreamReader(conn.getInputStream(), UTF_8));
+    int batchSize = config.batchSize;
+    List<String> requests = new ArrayList<>((ntodo + batchSize - 1) / batchSize);
+    for (int k = 0; k < ntodo; k += batchSize) {
+      StringBuilder request = new StringBuilder();
+      for (int j = k; j < Math.min(k + batchSize, ntodo); j++) {
+        if (j > k) {
+          request.append('\n'); // An empty line marks a paragraph boundary for Frog.
+        }
+        request.append(encoded[todo[j]]);
+      }
+      request.append("EOT\n");
+      requests.add(request.toString());
+    }
 
-      // Frog output is: an XML document, followed by "READY" on a line by itself, repeated
-      // ad infinitum.
-      for (String line; (line = r.readLine()) != null && !line.equals("READY"); ) {
-        sb.append(line);
+    List<TokenSpans> responses = transport.exchange(requests, timings);
+    for (int r = 0; r < responses.size(); r++) {
+      int k = r * batchSize;
+      int batchEnd = Math.min(k + batchSize, ntodo);
+      if (batchEnd - k == 1) {
+        result[todo[k]] = responses.get(r);
+      } else {
+        int[] batchTokens = new int[batchEnd - k];
+        for (int j = k; j < batchEnd; j++) {
+          batchTokens[j - k] = ntokens[todo[j]];
+        }
+        TokenSpans[] split = responses.get(r).split(batchTokens);
+        for (int j = k; j < batchEnd; j++) {
+          result[todo[j]] = split[j - k];
+        }
       }
-      r.close();
-    }
-
-    Document doc = XmlParser.fromString(sb.toString());
-    Nodes tokenNodes = doc.query("//folia:w", foliaCtxt);
-
-    // Record an id->token index mapping to resolve entity spans, which Frog represents
-    // by offset annotations.
-    Map<String, Integer> idToIndex =
-      IntStream.range(0, tokenNodes.size()).boxed()
-               .collect(Collectors.toMap(i -> {
-                   Element elem = (Element) tokenNodes.get(i);
-                   return elem.getAttribute("id", "http://www.w3.org/XML/1998/namespace")
-                              .getValue();
-                 },
-                 Function.identity()
-               ));
-
-    // A folia:entity contains a list of folia:wref elements pointing back to the tokens, e.g.,
-    // <entity xml:id="untitled.p.1.s.1.entities.1.entity.1" class="per" confidence = "0" >
-    //   <wref id="untitled.p.1.s.1.w.3" t="Ben"/>
-    //   <wref id="untitled.p.1.s.1.w.4" t="Hur/>
-    // </entity>
-    //
-    // We need the check for @class, because when the MWU detector is not skipped,
-    // Frog produces entities without a class (which are not really named entities).
-    Nodes entities = doc.query("//folia:entity[@class]", foliaCtxt);
-    return IntStream.range(0, entities.size()).mapToObj(i -> {
-      Element elem = (Element) entities.get(i);
-      Nodes wrefs = elem.query(".//folia:wref", foliaCtxt);
-
-      // Let's assume each entity mention is a contiguous span of tokens, served to us in
-      // textual order, so we only need to look at the first and the last.
-      String id = ((Element) wrefs.get(0)).getAttribute("id").getValue();
-      int start = tokens.get(idToIndex.get(id)).getStart();
-      id = ((Element) wrefs.get(wrefs.size() - 1)).getAttribute("id").getValue();
-      int end = tokens.get(idToIndex.get(id)).getEnd();
-
-      return new Span(start, end, elem.getAttribute("class").getValue());
-    }).collect(Collectors.toList());
+    }
   }
 
   public static class XMLOptions {
@@ -191,6 +893,30 @@ public class FrogSocketClient {
     @JsonProperty("textattr")
     public String textAttr;
 
+    // Maximum number of concurrent Frog calls for this request. Defaults to the server setting.
+    @JsonProperty
+    @Min(1)
+    public Integer concurrency;
+
+    // Annotate the document in a single pass with bounded memory use, instead of building a tree.
+    // Only supports paths of element names and attribute predicates; see SimplePath.
+    @JsonProperty
+    public boolean streaming;
+
+    // Time limit for this request, after which outstanding Frog calls are cancelled.
+    // The server may impose a lower limit.
+    @JsonProperty
+    @Min(1)
+    public Long deadlineMillis;
+
+    // Tokenizer for this request. Defaults to the server setting.
+    @JsonProperty
+    public Tokenizer tokenizer;
+
+    // Send each sentence of a matched element to Frog separately. Defaults to the server setting.
+    @JsonProperty
+    public Boolean splitSentences;
+
     public XMLOptions() {
     }
 
@@ -212,6 +938,12 @@ public class FrogSocketClient {
       this.startTag = other.startTag;
       this.endTag = other.endTag;
       this.classAttr = other.classAttr;
+      this.textAttr = other.textAttr;
+      this.concurrency = other.concurrency;
+      this.streaming = other.streaming;
+      this.deadlineMillis = other.deadlineMillis;
+      this.tokenizer = other.tokenizer;
+      this.splitSentences = other.splitSentences;
     }
   }
 
@@ -220,12 +952,57 @@ public class FrogSocketClient {
    * <p>
    * For each element matching the given XPath query, the string yield is passed to Frog as {@link #apply(String)} does.
    * The resulting entities are marked in the XML tree by inserting milestone tags with the given start and end types.
+   * <p>
+   * The Frog calls for the matching elements are made concurrently, but the XML tree is only modified
+   * once they have all finished, in document order.
    *
    * @return The modified XML document.
    */
   public String applyXML(XMLOptions options) throws Exception {
+    return applyXML(options, new Timings(options.deadlineMillis == null ? 0 : options.deadlineMillis));
+  }
+
+  /**
+   * Like {@link #applyXML(XMLOptions)}, adding the time spent in each stage to timings.
+   * The deadline is taken from timings; options.deadlineMillis is ignored.
+   */
+  public String applyXML(XMLOptions options, Timings timings) throws Exception {
+    timings = newTimings(timings);
+    if (options.streaming) {
+      StringWriter out = new StringWriter(options.xml.length() + options.xml.length() / 8);
+      stream(options, new StringReader(options.xml), out, timings);
+      return out.toString();
+    }
+
+    long t = System.nanoTime();
     Document doc = XmlParser.fromString(options.xml);
+    timings.lap(Timings.Stage.XML_PARSE, t);
+    annotate(doc, options, timings);
+
+    t = System.nanoTime();
+    String result = doc.toXML();
+    timings.lap(Timings.Stage.SERIALIZE, t);
+    return result;
+  }
+
+  /**
+   * Like {@link #applyXML(XMLOptions, Timings)}, but parses the document straight from in, in any
+   * encoding that its XML declaration allows, and returns the annotated tree, so that the caller
+   * can serialize it to a stream without first building a string. options.xml and
+   * options.streaming are ignored.
+   */
+  public Document applyXML(XMLOptions options, InputStream in, Timings timings) throws Exception {
+    timings = newTimings(timings);
+    long t = System.nanoTime();
+    Document doc = XmlParser.fromStream(in);
+    timings.lap(Timings.Stage.XML_PARSE, t);
+    annotate(doc, options, timings);
+    return doc;
+  }
 
+  // Adds milestones for the entities in the elements that options.xpath selects from doc.
+  private void annotate(Document doc, XMLOptions options, Timings timings) throws Exception {
+    long t = System.nanoTime();
     XPathContext ctx = new XPathContext();
     if (options.namespaces != null) {
       options.namespaces.forEach(ctx::addNamespace);
@@ -233,154 +1010,50 @@ public class FrogSocketClient {
 
     Nodes nodes = doc.query(options.xpath, ctx);
 
+    List<String> texts = new ArrayList<>(nodes.size());
+    for (int i = 0; i < nodes.size(); i++) {
+      texts.add(nodes.get(i).getValue());
+    }
+    timings.lap(Timings.Stage.XPATH, t);
+    Entities[] spans = annotate(texts,
+      options.concurrency == null ? config.concurrency : options.concurrency, options.tokenizer,
+      options.splitSentences, timings);
+
+    t = System.nanoTime();
     for (int i = 0; i < nodes.size(); i++) {
       Node node = nodes.get(i);
-      String text = node.getValue();
-      List<Span> spans = apply(text);
       if (node instanceof Text) {
         node = node.getParent();
       }
-      new PutMilestones(options, spans).traverse(node);
+      new PutMilestones(options, spans[i]).traverse(node);
     }
-
-    return doc.toXML();
+    timings.lap(Timings.Stage.MILESTONES, t);
   }
 
-  /*
-   * Inserts milestones into the text of elem at the startTag and end positions of the spans.
+  /**
+   * Add NE annotations to an XML document read from in, writing the result to out as it goes.
+   * <p>
+   * This is the streaming version of {@link #applyXML(XMLOptions)}: only the elements matched by
+   * the XPath, plus a bounded window of events after them, are held in memory. options.xml is ignored.
+   * The XPath must be an absolute location path of element names or *, with predicates only of
+   * the forms [@attr] and [@attr='value'], such as //tei:p[@type='verse']. Matches nested inside
+   * a matched element are not annotated separately.
    */
-  private static class PutMilestones {
-    private boolean atSpanEnd; // Are we at the end of the current span?
-    private String fulltext;
-    private List<Span> spans;
-    private int spanpos; // spans.get(spanpos) is the current span.
-    private int textpos; // Position in XML document's text.
-
-    private final XMLOptions options;
-
-    private PutMilestones(XMLOptions options, List<Span> spans) {
-      this.options = options;
-      this.spans = spans;
-    }
-
-    // "Public" entrypoint. Calls traverseNode after some housekeeping.
-    private List<Node> traverse(Node node) {
-      if (!Strings.isNullOrEmpty(options.textAttr)) {
-        fulltext = node.getValue();
-      }
-      return traverseNode(node);
-    }
-
-    private List<Node> traverseNode(Node node) {
-      if (spanpos == spans.size()) {
-        return Collections.singletonList(node);
-      }
-      if (node instanceof Text) {
-        return splitText((Text) node);
-      }
-      if (node instanceof Element) {
-        traverseElement((Element) node);
-      }
-      return Collections.singletonList(node);
-    }
-
-    private void traverseElement(Element elem) {
-      for (int i = 0; i < elem.getChildCount(); ) {
-        Node child = elem.getChild(i);
-        List<Node> newnodes = traverseNode(child);
-
-        elem.removeChild(i);
-        for (Node newnode : newnodes) {
-          elem.insertChild(newnode, i);
-          i++;
-        }
-      }
-    }
-
-    private List<Node> splitText(Text node) {
-      CharSequence text = StringSlice.of(node.getValue());
-
-      List<Node> newnodes = new ArrayList<>();
-      while (true) {
-        int pos = peekSpanPos();
-        if (pos == -1) {
-          break;
-        }
-        pos -= textpos;
-
-        if (pos > text.length()) {
-          textpos += text.length();
-          break;
-        }
-
-        newnodes.add(new Text(text.subSequence(0, pos).toString()));
-        text = text.subSequence(pos, text.length());
-        textpos += pos;
-
-        if (atSpanEnd) {
-          newnodes.add(new Element(options.endTag));
-        } else {
-          Element elem = new Element(options.startTag);
-          if (!Strings.isNullOrEmpty(options.classAttr)) {
-            elem.addAttribute(new Attribute(options.classAttr, spans.get(spanpos).getType()));
-          }
-          if (!Strings.isNullOrEmpty(options.textAttr)) {
-            elem.addAttribute(new Attribute(options.textAttr, spans.get(spanpos).getCoveredText(fulltext).toString()));
-          }
-          newnodes.add(elem);
-        }
-        nextSpanPos();
-      }
-      if (text.length() > 0) {
-        newnodes.add(new Text(text.toString()));
-      }
-      return newnodes;
-    }
-
-    // Increment position in spans.
-    private void nextSpanPos() {
-      if (atSpanEnd) {
-        spanpos++;
-      }
-      atSpanEnd = !atSpanEnd;
-    }
+  public void applyXML(XMLOptions options, Reader in, Writer out) throws Exception {
+    stream(options, in, out, newTimings(null));
+  }
 
-    // Returns the position of the next span start or end.
-    private int peekSpanPos() {
-      if (spanpos == spans.size()) {
-        return -1;
-      } else if (atSpanEnd) {
-        return spans.get(spanpos).getEnd();
-      } else {
-        return spans.get(spanpos).getStart();
-      }
-    }
+  /**
+   * Like {@link #applyXML(XMLOptions, Reader, Writer)}, but decodes in as its XML declaration says
+   * and writes UTF-8 to out. The deadline is taken from timings.
+   */
+  public void applyXML(XMLOptions options, InputStream in, OutputStream out, Timings timings) throws Exception {
+    int concurrency = options.concurrency == null ? config.concurrency : options.concurrency;
+    new StreamingAnnotator(this, options, concurrency).run(in, out, newTimings(timings));
   }
 
-  private void writeTokens(String text, List<Span> tokens, Writer w) throws IOException {
-    Span prev = new Span(0, 0);
-    for (Span span : tokens) {
-      Span trimmed = span.trim(text);
-      String token = trimmed.getCoveredText(text).toString();
-
-      if (token.length() == 0) {
-        throw new IllegalArgumentException(
-          String.format("Empty or all-whitespace token '%s' at %s",
-            span.getCoveredText(text).toString(), span.toString()));
-      } else if ("EOT".equals(token)) {
-        throw new IllegalArgumentException("'EOT' not allowed as a token");
-      } else if (span.crosses(prev)) {
-        throw new IllegalArgumentException(
-          String.format("crossing spans %s and %s", prev, span));
-      } else if (span.getStart() < prev.getEnd()) {
-        throw new IllegalArgumentException(
-          String.format("unsorted spans: %s, then %s", prev, span));
-      }
-      w.write(trimmed.getCoveredText(text).toString());
-      w.write('\n');
-      prev = span;
-    }
-    w.write("EOT\n");
-    w.flush();
+  private void stream(XMLOptions options, Reader in, Writer out, Timings timings) throws Exception {
+    int concurrency = options.concurrency == null ? config.concurrency : options.concurrency;
+    new StreamingAnnotator(this, options, concurrency).run(in, out, timings);
   }
 }
@@ -0,0 +1,429 @@
+package nl.knaw.huc.rananostra;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.hibernate.validator.constraints.NotEmpty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.validation.constraints.Min;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Runs a pool of local Frog processes as the backends of a {@link FrogCluster}.
+ * <p>
+ * Each process is started with {@link Config#command} and listens on a free port. It becomes
+ * a backend once it answers. A process that exits, or whose backend stays ejected for
+ * {@link Config#hangMillis}, is killed and replaced. The number of processes grows by one,
+ * up to {@link Config#maxProcesses}, whenever requests are waiting for a backend, and shrinks
+ * by one, down to {@link Config#minProcesses}, after {@link Config#idleMillis} during which the
+ * other processes could have handled the load. A process that is scaled down gets no new
+ * requests and is stopped when those in flight are done.
+ */
+public final class FrogSupervisor implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(FrogSupervisor.class);
+  // Frog's own output, one line per log event, prefixed with the port.
+  private static final Logger OUTPUT_LOG = LoggerFactory.getLogger(FrogSupervisor.class.getName() + ".output");
+
+  public static class Config {
+    /**
+     * Command that starts Frog as a server. The argument {port} is replaced by the port to listen on.
+     */
+    @JsonProperty
+    @NotEmpty
+    public List<String> command = Arrays.asList("frog", "-S", "{port}", "-X");
+
+    @JsonProperty
+    @Min(1)
+    public int minProcesses = 1;
+
+    @JsonProperty
+    @Min(1)
+    public int maxProcesses = 4;
+
+    /**
+     * Time a new process has to start answering. Frog takes a while to load its models.
+     */
+    @JsonProperty
+    @Min(1)
+    public long startupMillis = 300_000;
+
+    /**
+     * Time for which a process may fail its health checks before it is restarted.
+     */
+    @JsonProperty
+    @Min(1)
+    public long hangMillis = 60_000;
+
+    /**
+     * Time the load must stay low before a process is stopped.
+     */
+    @JsonProperty
+    @Min(0)
+    public long idleMillis = 300_000;
+
+    /**
+     * Interval between checks on the processes and the load.
+     */
+    @JsonProperty
+    @Min(1)
+    public long checkMillis = 1_000;
+  }
+
+  // Longest wait between attempts to start a process that keeps failing.
+  private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+  // A Frog process, with its backend once it answers.
+  private static final class Child {
+    final int port;
+    final Process process;
+    final long started;    // System.nanoTime.
+    FrogBackend backend;   // Null while starting.
+    boolean draining;      // Removed from the cluster; stopped once idle.
+    boolean failing;       // Backend ejected at the last check.
+    long failingSince;     // System.nanoTime.
+
+    Child(int port, Process process) {
+      this.port = port;
+      this.process = process;
+      started = System.nanoTime();
+    }
+  }
+
+  private final Config config;
+  private final FrogCluster cluster;
+  private final int probeTimeoutMillis;
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("frog-supervisor-%d").build());
+  private final Meter restarts;
+
+  // Guarded by this.
+  private final List<Child> children = new ArrayList<>();
+  private int failedStarts;   // Consecutive processes that did not come up.
+  private long nextStart;     // System.nanoTime before which no process is started.
+  private boolean lightLoad;  // Whether the load was light at the last check.
+  private long lightSince;    // System.nanoTime.
+  private boolean closed;
+
+  /**
+   * Creates a supervisor with a cluster of its own, which starts out without backends.
+   * Nothing is started until {@link #start}.
+   */
+  public FrogSupervisor(Config config, FrogCluster.Config clusterConfig, FrogConnectionPool.Config poolConfig,
+                        MetricRegistry metrics) {
+    if (config.minProcesses > config.maxProcesses) {
+      throw new IllegalArgumentException("minProcesses > maxProcesses");
+    }
+    this.config = config;
+    this.cluster = new FrogCluster(clusterConfig, poolConfig, metrics);
+    probeTimeoutMillis = clusterConfig.healthCheckTimeoutMillis;
+    restarts = metrics.meter(MetricRegistry.name(FrogSupervisor.class, "restarts"));
+    metrics.register(MetricRegistry.name(FrogSupervisor.class, "processes"), (Gauge<Integer>) () -> {
+      synchronized (this) {
+        return children.size();
+      }
+    });
+  }
+
+  /**
+   * Returns the cluster that the processes are added to as they come up.
+   */
+  public FrogCluster cluster() {
+    return cluster;
+  }
+
+  /**
+   * Starts minProcesses processes, without waiting for them to come up, and begins supervising.
+   */
+  public void start() {
+    scheduler.scheduleWithFixedDelay(this::check, 0, config.checkMillis, MILLISECONDS);
+  }
+
+  // Returns the ports of the processes that are up.
+  synchronized List<Integer> ports() {
+    List<Integer> ports = new ArrayList<>();
+    for (Child c : children) {
+      if (c.backend != null && !c.draining) {
+        ports.add(c.port);
+      }
+    }
+    return ports;
+  }
+
+  // Kills the process listening on port, as if it had crashed. For testing.
+  synchronized void kill(int port) {
+    children.stream().filter(c -> c.port == port).forEach(c -> c.process.destroyForcibly());
+  }
+
+  /*
+   * Probing a new process takes up to the health check timeout and stopping one up to five
+   * seconds, so both happen without the lock: starting processes are probed before it is
+   * taken, and processes that are to be stopped are stopped after it is released.
+   */
+  private void check() {
+    try {
+      List<Child> starting = new ArrayList<>();
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        for (Child c : children) {
+          if (c.backend == null && c.process.isAlive()) {
+            starting.add(c);
+          }
+        }
+      }
+      Set<Child> answered = new HashSet<>();
+      for (Child c : starting) {
+        if (answers(c.port)) {
+          answered.add(c);
+        }
+      }
+
+      List<Child> stopping = new ArrayList<>();
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        long now = System.nanoTime();
+        for (Iterator<Child> it = children.iterator(); it.hasNext(); ) {
+          Child c = it.next();
+          String problem = checkHealth(c, answered.contains(c), now);
+          if (problem != null) {
+            LOG.warn("Frog on port {} {}, restarting", c.port, problem);
+            restarts.mark();
+            it.remove();
+            stopping.add(c);
+          } else if (c.draining && cluster.outstanding(c.backend) == 0) {
+            LOG.info("stopping Frog on port {}", c.port);
+            it.remove();
+            stopping.add(c);
+          }
+        }
+        scale(now);
+      }
+      for (Child c : stopping) {
+        stop(c);
+      }
+    } catch (RuntimeException e) {
+      // Don't let the scheduler drop us.
+      LOG.error("Frog supervisor check failed", e);
+    }
+  }
+
+  /*
+   * Checks on a process and adds it to the cluster once it has answered a probe. Returns
+   * a problem, or null.
+   */
+  private String checkHealth(Child c, boolean answered, long now) {
+    if (!c.process.isAlive()) {
+      if (c.backend == null) {
+        startFailed();
+      }
+      return "exited with status " + c.process.exitValue();
+    }
+    if (c.backend == null) {
+      if (answered) {
+        LOG.info("Frog on port {} is up", c.port);
+        c.backend = cluster.add(new FrogCluster.Endpoint("localhost", c.port));
+        failedStarts = 0;
+      } else if (now - c.started > MILLISECONDS.toNanos(config.startupMillis)) {
+        startFailed();
+        return "did not answer within " + config.startupMillis + " ms";
+      }
+      return null;
+    }
+    if (c.draining) {
+      return null;
+    }
+    if (!cluster.isEjected(c.backend)) {
+      c.failing = false;
+    } else if (!c.failing) {
+      c.failing = true;
+      c.failingSince = now;
+    } else if (now - c.failingSince > MILLISECONDS.toNanos(config.hangMillis)) {
+      return "failed health checks for " + config.hangMillis + " ms";
+    }
+    return null;
+  }
+
+  // Starts or drains a process when the load calls for it, and replaces failed processes.
+  private void scale(long now) {
+    int running = 0;
+    int starting = 0;
+    for (Child c : children) {
+      if (!c.draining) {
+        running++;
+        if (c.backend == null) {
+          starting++;
+        }
+      }
+    }
+
+    int[] load = cluster.load();
+    int outstanding = load[0];
+    int capacity = load[1];
+    int ready = running - starting;
+    // Light if one process fewer would be less than half full.
+    boolean light = ready > 1 && cluster.waiting() == 0 && 2 * outstanding * ready < capacity * (ready - 1);
+    if (light && !lightLoad) {
+      lightSince = now;
+    }
+    lightLoad = light;
+
+    if (running < config.minProcesses
+      || cluster.waiting() > 0 && starting == 0 && running < config.maxProcesses) {
+      if (now - nextStart >= 0) {
+        startProcess();
+      }
+    } else if (light && running > config.minProcesses && starting == 0
+      && now - lightSince >= MILLISECONDS.toNanos(config.idleMillis)) {
+      drain();
+      lightLoad = false;
+    }
+  }
+
+  // Takes the newest ready process out of the cluster; check stops it once it is idle.
+  private void drain() {
+    for (int i = children.size() - 1; i >= 0; i--) {
+      Child c = children.get(i);
+      if (c.backend != null && !c.draining) {
+        LOG.info("load is low, draining Frog on port {}", c.port);
+        c.draining = true;
+        cluster.remove(c.backend);
+        return;
+      }
+    }
+  }
+
+  private void startProcess() {
+    List<String> command = new ArrayList<>(config.command.size());
+    int port;
+    try {
+      port = freePort();
+      for (String arg : config.command) {
+        command.add(arg.replace("{port}", Integer.toString(port)));
+      }
+      Process process = new ProcessBuilder(command)
+        .redirectErrorStream(true)
+        .start();
+      logOutput(port, process);
+      children.add(new Child(port, process));
+      LOG.info("started Frog on port {}: {}", port, command);
+    } catch (IOException e) {
+      LOG.error("cannot start Frog with {}: {}", command, e.toString());
+      startFailed();
+    }
+  }
+
+  // Backs off exponentially while processes fail to come up, so as not to spin on a broken command.
+  private void startFailed() {
+    failedStarts++;
+    long backoff = Math.min(MAX_BACKOFF_MILLIS, config.checkMillis << Math.min(failedStarts, 16));
+    nextStart = System.nanoTime() + MILLISECONDS.toNanos(backoff);
+  }
+
+  /*
+   * Passes the process's output on to a logger of its own, rather than letting it write to our
+   * stdout and stderr, which the server's logging (or a test runner) owns. The thread ends when
+   * the process does.
+   */
+  private static void logOutput(int port, Process process) {
+    Thread t = new Thread(() -> {
+      try (BufferedReader r = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8))) {
+        String line;
+        while ((line = r.readLine()) != null) {
+          OUTPUT_LOG.info("[{}] {}", port, line);
+        }
+      } catch (IOException e) {
+        // Stream closed when the process was destroyed.
+      }
+    }, "frog-output-" + port);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  // Takes c out of the cluster and kills it. Called without the lock, once c is out of children.
+  private void stop(Child c) {
+    if (c.backend != null && !c.draining) {
+      cluster.remove(c.backend);
+    }
+    c.process.destroy();
+    try {
+      if (!c.process.waitFor(5, SECONDS)) {
+        c.process.destroyForcibly();
+      }
+    } catch (InterruptedException e) {
+      c.process.destroyForcibly();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private boolean answers(int port) {
+    try (FrogConnection conn = new FrogConnection("localhost", port, false, probeTimeoutMillis)) {
+      conn.exchange(singletonList("Test\nEOT\n"));
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  // A port that was free a moment ago. If another program takes it first, Frog fails to start
+  // and is retried on another port.
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /**
+   * Stops supervising and kills all processes. Does not close the cluster.
+   */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    List<Child> all;
+    synchronized (this) {
+      closed = true;
+      all = new ArrayList<>(children);
+      children.clear();
+    }
+    for (Child c : all) {
+      c.process.destroy();
+    }
+    long deadline = System.nanoTime() + SECONDS.toNanos(5);
+    for (Child c : all) {
+      try {
+        long left = deadline - System.nanoTime();
+        if (left <= 0 || !c.process.waitFor(left, NANOSECONDS)) {
+          c.process.destroyForcibly();
+        }
+      } catch (InterruptedException e) {
+        c.process.destroyForcibly();
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
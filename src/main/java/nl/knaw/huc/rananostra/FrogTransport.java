@@ -0,0 +1,13 @@
+package nl.knaw.huc.rananostra;
+
+import java.io.IOException;
+import java.util.List;
+
+/*
+ * Sends requests to Frog, each a token list terminated by EOT, and returns the parsed responses
+ * in the same order. FrogCluster does this over pooled blocking connections, FrogNioClient over
+ * non-blocking ones.
+ */
+interface FrogTransport {
+  List<TokenSpans> exchange(List<String> requests, Timings timings) throws IOException, InterruptedException;
+}
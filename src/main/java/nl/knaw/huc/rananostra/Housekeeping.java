@@ -0,0 +1,22 @@
+package nl.knaw.huc.rananostra;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+// Shared daemon threads for periodic background work: idle connection eviction, timers
+// and health checks. Tasks on SCHEDULER should be short and must not block, or timers
+// fire late; blocking work such as health check probes goes to PROBES.
+final class Housekeeping {
+  private Housekeeping() {
+    throw new AssertionError("Class cannot be instantiated, static use only.");
+  }
+
+  static final ScheduledExecutorService SCHEDULER = Executors.newScheduledThreadPool(2,
+    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rananostra-housekeeping-%d").build());
+
+  static final ExecutorService PROBES = Executors.newCachedThreadPool(
+    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rananostra-probe-%d").build());
+}
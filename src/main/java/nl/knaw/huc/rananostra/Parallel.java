@@ -0,0 +1,120 @@
+package nl.knaw.huc.rananostra;
+
+import com.google.common.base.Throwables;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Bounded-concurrency loops.
+final class Parallel {
+  private Parallel() {
+    throw new AssertionError("Class cannot be instantiated, static use only.");
+  }
+
+  interface IntTask {
+    void run(int i) throws Exception;
+  }
+
+  /*
+   * Runs task.run(i) for all i in [0, n), with at most parallelism calls running at once.
+   * The calling thread does part of the work; the rest is handed to executor.
+   *
+   * If a call fails, no new calls are started and the first exception is rethrown once
+   * the running calls have finished.
+   */
+  static void forEach(Executor executor, int parallelism, int n, IntTask task) throws Exception {
+    int workers = Math.min(parallelism, n);
+    if (workers <= 1) {
+      for (int i = 0; i < n; i++) {
+        task.run(i);
+      }
+      return;
+    }
+
+    AtomicInteger next = new AtomicInteger();
+    AtomicReference<Exception> error = new AtomicReference<>();
+    run(executor, workers, error, () -> {
+      for (int i; error.get() == null && (i = next.getAndIncrement()) < n; ) {
+        try {
+          task.run(i);
+        } catch (Exception e) {
+          error.compareAndSet(null, e);
+        }
+      }
+    });
+  }
+
+  interface ItemTask<T> {
+    void run(int i, T item) throws Exception;
+  }
+
+  /*
+   * Runs task.run(i, item) for the items in the order that they come out of items, with at
+   * most parallelism calls running at once. Items are taken from the iterator one at a time,
+   * as workers become free, so it may read lazily from a stream.
+   *
+   * Failures, including those of the iterator, are handled as in forEach(executor, parallelism, n, task).
+   */
+  static <T> void forEach(Executor executor, int parallelism, Iterator<T> items, ItemTask<T> task)
+    throws Exception {
+    int[] next = new int[1]; // Guarded by items.
+    AtomicReference<Exception> error = new AtomicReference<>();
+    run(executor, parallelism, error, () -> {
+      while (error.get() == null) {
+        int i;
+        T item;
+        try {
+          synchronized (items) {
+            if (!items.hasNext()) {
+              return;
+            }
+            item = items.next();
+            i = next[0]++;
+          }
+          task.run(i, item);
+        } catch (Exception e) {
+          error.compareAndSet(null, e);
+        }
+      }
+    });
+  }
+
+  // Runs worker on the calling thread and workers - 1 times on executor, then rethrows the first error.
+  private static void run(Executor executor, int workers, AtomicReference<Exception> error, Runnable worker)
+    throws Exception {
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[workers - 1];
+    for (int i = 0; i < futures.length; i++) {
+      futures[i] = CompletableFuture.runAsync(worker, executor);
+    }
+    worker.run();
+    try {
+      CompletableFuture.allOf(futures).get();
+    } catch (InterruptedException e) {
+      error.compareAndSet(null, e); // Stop the workers.
+      throw e;
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw e;
+    }
+
+    if (error.get() != null) {
+      throw error.get();
+    }
+  }
+
+  // Waits for the future, rethrowing the exception that it completed with, if any.
+  static <T> T await(CompletableFuture<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.throwIfUnchecked(cause);
+      Throwables.throwIfInstanceOf(cause, Exception.class);
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package nl.knaw.huc.rananostra;
+
+import com.google.common.base.Strings;
+import nu.xom.Attribute;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.Text;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Inserts milestones into the text of an element at the start and end positions of the spans.
+ * A milestone that falls between two text nodes goes at the end of the first, as it does in
+ * StreamingAnnotator.
+ *
+ * Runs in time linear in the number of nodes plus the number of spans: each element's
+ * children are rebuilt in one pass, and only if one of its text nodes is split.
+ */
+final class PutMilestones {
+  private boolean atSpanEnd; // Are we at the end of the current span?
+  private String fulltext;
+  private final Entities spans;
+  private int spanpos; // Index of the current span.
+  private int textpos; // Position in XML document's text.
+
+  private final FrogSocketClient.XMLOptions options;
+
+  PutMilestones(FrogSocketClient.XMLOptions options, Entities spans) {
+    this.options = options;
+    this.spans = spans;
+  }
+
+  // Entrypoint. Calls traverseElement after some housekeeping.
+  void traverse(Node node) {
+    if (!(node instanceof Element)) {
+      return;
+    }
+    if (!Strings.isNullOrEmpty(options.textAttr)) {
+      fulltext = node.getValue();
+    }
+    traverseElement((Element) node);
+  }
+
+  private void traverseElement(Element elem) {
+    int n = elem.getChildCount();
+    List<Node> children = null; // New children, once a text node has been split.
+
+    int i = 0;
+    for (; i < n && spanpos < spans.size(); i++) {
+      Node child = elem.getChild(i);
+      List<Node> split = null;
+      if (child instanceof Text) {
+        split = splitText((Text) child);
+      } else if (child instanceof Element) {
+        traverseElement((Element) child);
+      }
+
+      if (split != null && children == null) {
+        children = new ArrayList<>(n + split.size());
+        for (int j = 0; j < i; j++) {
+          children.add(elem.getChild(j));
+        }
+      }
+      if (split != null) {
+        children.addAll(split);
+      } else if (children != null) {
+        children.add(child);
+      }
+    }
+
+    if (children == null) {
+      return;
+    }
+    for (; i < n; i++) {
+      children.add(elem.getChild(i));
+    }
+    elem.removeChildren();
+    for (Node child : children) {
+      elem.appendChild(child);
+    }
+  }
+
+  // Returns the text and milestones that replace node, or null if no milestone falls in it.
+  private List<Node> splitText(Text node) {
+    String text = node.getValue();
+    int pos = peekSpanPos() - textpos;
+    if (pos > text.length()) {
+      textpos += text.length();
+      return null;
+    }
+
+    List<Node> newnodes = new ArrayList<>();
+    int from = 0; // Start of the part of text not yet in newnodes.
+    for (; pos <= text.length(); pos = peekSpanPos() - textpos) {
+      if (pos > from) {
+        newnodes.add(new Text(text.substring(from, pos)));
+        from = pos;
+      }
+
+      if (atSpanEnd) {
+        newnodes.add(new Element(options.endTag));
+      } else {
+        Element elem = new Element(options.startTag);
+        if (!Strings.isNullOrEmpty(options.classAttr)) {
+          elem.addAttribute(new Attribute(options.classAttr, spans.type(spanpos)));
+        }
+        if (!Strings.isNullOrEmpty(options.textAttr)) {
+          elem.addAttribute(new Attribute(options.textAttr, fulltext.substring(spans.start(spanpos), spans.end(spanpos))));
+        }
+        newnodes.add(elem);
+      }
+      nextSpanPos();
+      if (spanpos == spans.size()) {
+        break;
+      }
+    }
+    if (from < text.length()) {
+      newnodes.add(from == 0 ? node : new Text(text.substring(from)));
+    }
+    textpos += text.length();
+    return newnodes;
+  }
+
+  // Increment position in spans.
+  private void nextSpanPos() {
+    if (atSpanEnd) {
+      spanpos++;
+    }
+    atSpanEnd = !atSpanEnd;
+  }
+
+  // Returns the position of the next span start or end.
+  private int peekSpanPos() {
+    if (spanpos == spans.size()) {
+      return -1;
+    } else if (atSpanEnd) {
+      return spans.end(spanpos);
+    } else {
+      return spans.start(spanpos);
+    }
+  }
+}
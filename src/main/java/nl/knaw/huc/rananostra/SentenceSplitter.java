@@ -0,0 +1,97 @@
+package nl.knaw.huc.rananostra;
+
+import opennlp.tools.sentdetect.SentenceDetectorME;
+import opennlp.tools.sentdetect.SentenceModel;
+import opennlp.tools.util.Span;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/*
+ * Splits tokenized text into sentences, given as ranges of tokens, so that long texts can be
+ * sent to Frog a sentence at a time.
+ *
+ * Without a model, a sentence ends after a token consisting of '.', '!', '?' and ellipsis
+ * characters, plus any closing quotes and brackets attached to it, provided that the next token
+ * does not start with a lowercase letter ("Wacht... of niet"). Tokenizers keep the periods
+ * of abbreviations with the word, so these do not end sentences. With an OpenNLP sentence
+ * detector model, a sentence starts at the first token that starts in a detected sentence.
+ *
+ * Thread-safe.
+ */
+final class SentenceSplitter {
+  private static final String TERMINAL = ".!?\u2026";
+  private static final String CLOSING = "\"')]}\u2019\u201d\u00bb\u203a";
+
+  static final SentenceSplitter RULES = new SentenceSplitter(null);
+
+  private final SentenceModel model; // Null for the rules.
+
+  private SentenceSplitter(SentenceModel model) {
+    this.model = model;
+  }
+
+  // Loads an OpenNLP sentence detector model, e.g., nl-sent.bin, from the given file.
+  static SentenceSplitter withModel(String path) {
+    try (InputStream in = Files.newInputStream(Paths.get(path))) {
+      return new SentenceSplitter(new SentenceModel(in));
+    } catch (IOException e) {
+      throw new UncheckedIOException("cannot load sentence model " + path, e);
+    }
+  }
+
+  /*
+   * Returns the index of the first token of each sentence, followed by tokens.size().
+   * There is always at least one sentence, possibly empty.
+   */
+  int[] split(TokenizedText tokens) {
+    CharSequence text = tokens.text;
+    int n = tokens.size();
+    int[] starts = new int[n + 2];
+    int count = 1; // starts[0] = 0.
+    if (model == null) {
+      for (int i = 0; i < n; i++) {
+        if (!allOf(text, tokens, i, TERMINAL)) {
+          continue;
+        }
+        // Take along punctuation directly attached to it, as in ?!" or .)
+        while (i + 1 < n && tokens.start(i + 1) == tokens.end(i)
+          && (allOf(text, tokens, i + 1, TERMINAL) || allOf(text, tokens, i + 1, CLOSING))) {
+          i++;
+        }
+        if (i + 1 < n && !Character.isLowerCase(text.charAt(tokens.start(i + 1)))) {
+          starts[count++] = i + 1;
+        }
+      }
+    } else {
+      Span[] sentences = new SentenceDetectorME(model).sentPosDetect(text.toString());
+      int i = 0;
+      for (int k = 1; k < sentences.length; k++) {
+        while (i < n && tokens.start(i) < sentences[k].getStart()) {
+          i++;
+        }
+        if (i > starts[count - 1] && i < n) {
+          starts[count++] = i;
+        }
+      }
+    }
+    starts[count++] = n;
+    return count == starts.length ? starts : Arrays.copyOf(starts, count);
+  }
+
+  // Reports whether all characters of token i are in chars.
+  private static boolean allOf(CharSequence text, TokenizedText tokens, int i, String chars) {
+    int start = tokens.start(i);
+    int end = tokens.end(i);
+    for (int j = start; j < end; j++) {
+      if (chars.indexOf(text.charAt(j)) < 0) {
+        return false;
+      }
+    }
+    return end > start;
+  }
+}
@@ -0,0 +1,202 @@
+package nl.knaw.huc.rananostra;
+
+import nu.xom.XPathException;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The subset of XPath that can be evaluated on a stream of start tags: absolute location
+ * paths of child (/) and descendant (//) steps, each an element name or *, optionally
+ * followed by predicates on attributes, e.g.,
+ *
+ *   //tei:body//tei:p[@rend='italic'][@n]
+ *
+ * Evaluation is an NFA over the steps: the state of an element is the set of steps that
+ * its children may match next, represented as a bit set. Bit k means steps[0..k) matched
+ * an ancestor-or-self, so bit steps.size() means the element itself matches.
+ */
+final class SimplePath {
+  private static final class Step {
+    boolean descendant; // Axis is descendant rather than child.
+    String ns;          // Null for *.
+    String localName;   // Null for *.
+    final List<QName> attrNames = new ArrayList<>();
+    final List<String> attrValues = new ArrayList<>(); // Null entry: attribute need only exist.
+
+    boolean matches(StartElement elem) {
+      if (localName != null) {
+        QName name = elem.getName();
+        if (!localName.equals(name.getLocalPart()) || !ns.equals(name.getNamespaceURI())) {
+          return false;
+        }
+      }
+      for (int i = 0; i < attrNames.size(); i++) {
+        Attribute attr = elem.getAttributeByName(attrNames.get(i));
+        if (attr == null || attrValues.get(i) != null && !attrValues.get(i).equals(attr.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  static final long INITIAL = 1L;
+
+  private final List<Step> steps;
+  private final long accept;
+
+  private SimplePath(List<Step> steps) {
+    this.steps = steps;
+    accept = 1L << steps.size();
+  }
+
+  /*
+   * Parses path, resolving prefixes with the given namespace map (which may be null).
+   * Throws XPathException if path is not in the supported subset.
+   */
+  static SimplePath parse(String path, Map<String, String> namespaces) {
+    return new Parser(path, namespaces).parse();
+  }
+
+  // State of an element, given the state of its parent (INITIAL for the root element).
+  long next(long parent, StartElement elem) {
+    long state = 0;
+    for (int k = 0; k < steps.size(); k++) {
+      if ((parent & (1L << k)) == 0) {
+        continue;
+      }
+      Step step = steps.get(k);
+      if (step.descendant) {
+        state |= 1L << k;
+      }
+      if (step.matches(elem)) {
+        state |= 1L << (k + 1);
+      }
+    }
+    return state;
+  }
+
+  boolean matches(long state) {
+    return (state & accept) != 0;
+  }
+
+  private static final class Parser {
+    private final String path;
+    private final Map<String, String> namespaces;
+    private int pos;
+
+    Parser(String path, Map<String, String> namespaces) {
+      this.path = path.trim();
+      this.namespaces = namespaces;
+    }
+
+    SimplePath parse() {
+      List<Step> steps = new ArrayList<>();
+      if (path.isEmpty() || path.charAt(0) != '/') {
+        throw error("only absolute paths are supported");
+      }
+      while (pos < path.length()) {
+        Step step = new Step();
+        expect('/');
+        if (peek() == '/') {
+          pos++;
+          step.descendant = true;
+        }
+        if (peek() == '*') {
+          pos++;
+        } else {
+          QName name = qname();
+          step.ns = name.getNamespaceURI();
+          step.localName = name.getLocalPart();
+        }
+        while (peek() == '[') {
+          predicate(step);
+        }
+        steps.add(step);
+      }
+      if (steps.size() >= Long.SIZE - 1) {
+        throw error("too many steps");
+      }
+      return new SimplePath(steps);
+    }
+
+    // [@name] or [@name='value'] or [@name="value"].
+    private void predicate(Step step) {
+      expect('[');
+      skipSpace();
+      expect('@');
+      step.attrNames.add(qname());
+      skipSpace();
+      String value = null;
+      if (peek() == '=') {
+        pos++;
+        skipSpace();
+        char quote = peek();
+        if (quote != '\'' && quote != '"') {
+          throw error("expected quoted string");
+        }
+        int end = path.indexOf(quote, pos + 1);
+        if (end < 0) {
+          throw error("unterminated string");
+        }
+        value = path.substring(pos + 1, end);
+        pos = end + 1;
+        skipSpace();
+      }
+      step.attrValues.add(value);
+      expect(']');
+    }
+
+    private QName qname() {
+      int start = pos;
+      while (pos < path.length() && isNameChar(path.charAt(pos))) {
+        pos++;
+      }
+      if (pos == start) {
+        throw error("expected name");
+      }
+      String name = path.substring(start, pos);
+      int colon = name.indexOf(':');
+      if (colon < 0) {
+        return new QName(name); // No namespace, as in XPath 1.0.
+      }
+      String prefix = name.substring(0, colon);
+      String uri = namespaces == null ? null : namespaces.get(prefix);
+      if (uri == null) {
+        throw new XPathException("undeclared namespace prefix " + prefix);
+      }
+      return new QName(uri, name.substring(colon + 1), prefix);
+    }
+
+    private static boolean isNameChar(char c) {
+      return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == ':';
+    }
+
+    private void expect(char c) {
+      if (peek() != c) {
+        throw error("expected '" + c + "'");
+      }
+      pos++;
+    }
+
+    private char peek() {
+      return pos < path.length() ? path.charAt(pos) : '\0';
+    }
+
+    private void skipSpace() {
+      while (Character.isWhitespace(peek())) {
+        pos++;
+      }
+    }
+
+    private XPathException error(String msg) {
+      return new XPathException(String.format(
+        "unsupported path for streaming: %s at position %d of %s", msg, pos, path));
+    }
+  }
+}
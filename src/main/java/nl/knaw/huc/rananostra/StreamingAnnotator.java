@@ -0,0 +1,259 @@
+package nl.knaw.huc.rananostra;
+
+import com.google.common.base.Strings;
+import nu.xom.ParsingException;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.XMLEvent;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/*
+ * Streaming counterpart of FrogSocketClient.applyXML, for documents too large to hold in memory.
+ *
+ * XML events are copied from input to output unchanged, except that elements matched by
+ * the path (a SimplePath) are buffered, sent to Frog and written with milestones inserted,
+ * exactly as PutMilestones would. Up to window matched elements, and the events between
+ * them, are held at once so that they can be sent to Frog concurrently. Elements nested
+ * inside a matched element are not matched again.
+ */
+final class StreamingAnnotator {
+  private static final XMLInputFactory INPUT = XMLInputFactory.newInstance();
+  private static final XMLOutputFactory OUTPUT = XMLOutputFactory.newInstance();
+  private static final XMLEventFactory EVENTS = XMLEventFactory.newInstance();
+
+  static {
+    INPUT.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    INPUT.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    INPUT.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  // Flush when this many events are held after the last matched element.
+  private static final int MAX_BUFFERED_EVENTS = 4096;
+
+  private final FrogSocketClient frog;
+  private final FrogSocketClient.XMLOptions options;
+  private final SimplePath path;
+  private final int concurrency;
+  private final int window;
+
+  private final List<XMLEvent> buffer = new ArrayList<>();
+  private final List<int[]> matches = new ArrayList<>(); // [start, end) of matched elements in buffer.
+
+  StreamingAnnotator(FrogSocketClient frog, FrogSocketClient.XMLOptions options, int concurrency) {
+    this.frog = frog;
+    this.options = options;
+    this.path = SimplePath.parse(options.xpath, options.namespaces);
+    this.concurrency = concurrency;
+    window = 4 * concurrency;
+  }
+
+  // Records Frog calls and milestone insertion in timings. Parsing and serialization
+  // are interleaved with everything else, so they are not measured separately.
+  void run(Reader in, Writer out, Timings timings) throws Exception {
+    try {
+      run(INPUT.createXMLEventReader(in), OUTPUT.createXMLEventWriter(out), false, timings);
+    } catch (XMLStreamException e) {
+      throw new ParsingException(e.getMessage(), e);
+    }
+  }
+
+  // Like run(Reader, Writer, Timings), but decodes the input as its XML declaration says and writes UTF-8.
+  void run(InputStream in, OutputStream out, Timings timings) throws Exception {
+    try {
+      run(INPUT.createXMLEventReader(in), OUTPUT.createXMLEventWriter(out, "UTF-8"), true, timings);
+    } catch (XMLStreamException e) {
+      throw new ParsingException(e.getMessage(), e);
+    }
+  }
+
+  private void run(XMLEventReader reader, XMLEventWriter writer, boolean utf8, Timings timings) throws Exception {
+    long[] states = new long[16]; // Path state per open element; states[0] is the document.
+    states[0] = SimplePath.INITIAL;
+    int depth = 0;
+    int matchDepth = -1; // Depth of the matched element we are in, or -1.
+
+    while (reader.hasNext()) {
+      XMLEvent event = reader.nextEvent();
+      if (utf8 && event.isStartDocument() && ((StartDocument) event).encodingSet()) {
+        event = EVENTS.createStartDocument("UTF-8", ((StartDocument) event).getVersion());
+      }
+      if (event.isStartElement()) {
+        if (++depth == states.length) {
+          states = Arrays.copyOf(states, 2 * depth);
+        }
+        if (matchDepth < 0) {
+          states[depth] = path.next(states[depth - 1], event.asStartElement());
+          if (path.matches(states[depth])) {
+            matchDepth = depth;
+            matches.add(new int[]{buffer.size(), -1});
+          }
+        }
+      }
+
+      if (matches.isEmpty()) {
+        writer.add(event);
+      } else {
+        buffer.add(event);
+      }
+
+      if (event.isEndElement()) {
+        if (depth-- == matchDepth) {
+          matchDepth = -1;
+          matches.get(matches.size() - 1)[1] = buffer.size();
+          if (matches.size() >= window) {
+            flush(writer, timings);
+          }
+        }
+      }
+      if (matchDepth < 0 && buffer.size() - lastMatchEnd() >= MAX_BUFFERED_EVENTS) {
+        flush(writer, timings);
+      }
+    }
+    flush(writer, timings);
+    writer.flush();
+    writer.close();
+    reader.close();
+  }
+
+  private int lastMatchEnd() {
+    return matches.isEmpty() ? buffer.size() : matches.get(matches.size() - 1)[1];
+  }
+
+  // Annotates the matched elements in buffer and writes out the whole buffer.
+  private void flush(XMLEventWriter writer, Timings timings) throws Exception {
+    if (matches.isEmpty()) {
+      return;
+    }
+
+    List<String> texts = new ArrayList<>(matches.size());
+    for (int[] m : matches) {
+      StringBuilder text = new StringBuilder();
+      for (int i = m[0]; i < m[1]; i++) {
+        if (buffer.get(i).isCharacters()) {
+          text.append(buffer.get(i).asCharacters().getData());
+        }
+      }
+      texts.add(text.toString());
+    }
+    Entities[] spans = frog.annotate(texts, concurrency, options.tokenizer, options.splitSentences, timings);
+
+    long t = System.nanoTime();
+    int i = 0;
+    for (int k = 0; k < matches.size(); k++) {
+      int[] m = matches.get(k);
+      for (; i < m[0]; i++) {
+        writer.add(buffer.get(i));
+      }
+      new Milestones(texts.get(k), spans[k]).write(buffer.subList(m[0], m[1]), writer);
+      i = m[1];
+    }
+    for (; i < buffer.size(); i++) {
+      writer.add(buffer.get(i));
+    }
+    timings.lap(Timings.Stage.MILESTONES, t);
+    buffer.clear();
+    matches.clear();
+  }
+
+  /*
+   * Writes the events of a matched element with milestones inserted at the start and
+   * end positions of the spans. The event-stream version of PutMilestones.
+   */
+  private final class Milestones {
+    private final String fulltext;
+    private final Entities spans;
+    private boolean atSpanEnd; // Are we at the end of the current span?
+    private int spanpos;       // Index of the current span.
+    private int textpos;       // Position in fulltext.
+
+    Milestones(String fulltext, Entities spans) {
+      this.fulltext = fulltext;
+      this.spans = spans;
+    }
+
+    void write(List<XMLEvent> events, XMLEventWriter writer) throws XMLStreamException {
+      // Namespaces in scope, for the parent of the current text.
+      Deque<NamespaceContext> scopes = new ArrayDeque<>();
+      for (XMLEvent event : events) {
+        if (event.isStartElement()) {
+          scopes.push(event.asStartElement().getNamespaceContext());
+        } else if (event.isEndElement()) {
+          scopes.pop();
+        }
+        if (spanpos == spans.size() || !event.isCharacters()) {
+          writer.add(event);
+          continue;
+        }
+
+        // Milestones have no namespace, so they must undeclare a default namespace.
+        String defaultNs = scopes.peek().getNamespaceURI(XMLConstants.DEFAULT_NS_PREFIX);
+        List<Namespace> undeclare = Strings.isNullOrEmpty(defaultNs)
+          ? Collections.emptyList()
+          : Collections.singletonList(EVENTS.createNamespace(""));
+
+        String text = event.asCharacters().getData();
+        int from = 0; // Part of text written so far.
+        for (int pos; spanpos < spans.size() && (pos = peekSpanPos() - textpos) <= text.length(); ) {
+          if (pos > from) {
+            writer.add(EVENTS.createCharacters(text.substring(from, pos)));
+            from = pos;
+          }
+          writeMilestone(writer, undeclare);
+        }
+        if (from == 0) {
+          writer.add(event);
+        } else if (from < text.length()) {
+          writer.add(EVENTS.createCharacters(text.substring(from)));
+        }
+        textpos += text.length();
+      }
+    }
+
+    private void writeMilestone(XMLEventWriter writer, List<Namespace> namespaces)
+      throws XMLStreamException {
+      String name = atSpanEnd ? options.endTag : options.startTag;
+      List<Attribute> attrs = Collections.emptyList();
+      if (!atSpanEnd) {
+        attrs = new ArrayList<>(2);
+        if (!Strings.isNullOrEmpty(options.classAttr)) {
+          attrs.add(EVENTS.createAttribute(options.classAttr, spans.type(spanpos)));
+        }
+        if (!Strings.isNullOrEmpty(options.textAttr)) {
+          attrs.add(EVENTS.createAttribute(options.textAttr,
+            fulltext.substring(spans.start(spanpos), spans.end(spanpos))));
+        }
+      }
+      writer.add(EVENTS.createStartElement("", "", name, attrs.iterator(), namespaces.iterator()));
+      writer.add(EVENTS.createEndElement("", "", name));
+
+      if (atSpanEnd) {
+        spanpos++;
+      }
+      atSpanEnd = !atSpanEnd;
+    }
+
+    // Returns the position of the next span start or end.
+    private int peekSpanPos() {
+      return atSpanEnd ? spans.end(spanpos) : spans.start(spanpos);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package nl.knaw.huc.rananostra;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Predicate;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Reads the regular files from a tar stream (ustar, with GNU or pax long names), one at a time.
+ * Only the contents of the files that are returned are buffered.
+ */
+final class TarSource implements BulkAnnotator.Source {
+  private static final int BLOCK = 512;
+
+  private final InputStream in;
+  private final String suffix;
+  private final byte[] header = new byte[BLOCK];
+  private final byte[] discard = new byte[8 * BLOCK];
+  private String longName; // From a GNU 'L' or pax 'x' header, for the next entry.
+
+  TarSource(InputStream in, String suffix) {
+    this.in = in;
+    this.suffix = suffix;
+  }
+
+  @Override
+  public BulkAnnotator.Input next(Predicate<String> skip) throws IOException {
+    while (true) {
+      if (!readFully(header, 0, BLOCK) || isZero(header)) {
+        return null; // End of archive.
+      }
+      long size = parseOctal(124, 12);
+      long padding = -size & (BLOCK - 1);
+      byte type = header[156];
+
+      if (type == 'L' || type == 'x') {
+        byte[] data = readEntry(size);
+        skipFully(padding);
+        longName = type == 'L' ? string(data, 0, data.length) : paxPath(data);
+        continue;
+      }
+
+      String name = longName != null ? longName : headerName();
+      longName = null;
+      if (name.startsWith("./")) {
+        name = name.substring(2);
+      }
+      if ((type == '0' || type == 0) && name.endsWith(suffix) && !skip.test(name)) {
+        byte[] content = readEntry(size);
+        skipFully(padding);
+        return new BulkAnnotator.Input(name, content);
+      }
+      skipFully(size + padding);
+    }
+  }
+
+  private String headerName() {
+    String name = string(header, 0, 100);
+    boolean ustar = header[257] == 'u' && header[258] == 's' && header[259] == 't';
+    String prefix = ustar ? string(header, 345, 155) : "";
+    return prefix.isEmpty() ? name : prefix + "/" + name;
+  }
+
+  // Returns the path from pax extended header records of the form "<length> <key>=<value>\n".
+  private static String paxPath(byte[] data) throws IOException {
+    String path = null;
+    for (int pos = 0; pos < data.length; ) {
+      int space = pos;
+      while (space < data.length && data[space] != ' ') {
+        space++;
+      }
+      int length;
+      try {
+        length = Integer.parseInt(new String(data, pos, space - pos, UTF_8));
+      } catch (NumberFormatException e) {
+        throw new IOException("bad pax header in tar archive");
+      }
+      if (length <= 0 || pos + length > data.length) {
+        throw new IOException("bad pax header in tar archive");
+      }
+      String record = new String(data, space + 1, pos + length - space - 2, UTF_8);
+      if (record.startsWith("path=")) {
+        path = record.substring(5);
+      }
+      pos += length;
+    }
+    return path;
+  }
+
+  private byte[] readEntry(long size) throws IOException {
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new IOException("tar entry too large: " + size + " bytes");
+    }
+    byte[] data = new byte[(int) size];
+    if (!readFully(data, 0, data.length)) {
+      throw new EOFException("truncated tar archive");
+    }
+    return data;
+  }
+
+  private long parseOctal(int off, int len) throws IOException {
+    long n = 0;
+    for (int i = off; i < off + len && header[i] != 0 && header[i] != ' '; i++) {
+      if (header[i] < '0' || header[i] > '7') {
+        throw new IOException("bad number in tar header");
+      }
+      n = 8 * n + (header[i] - '0');
+    }
+    return n;
+  }
+
+  private static String string(byte[] b, int off, int len) {
+    int end = off;
+    while (end < off + len && b[end] != 0) {
+      end++;
+    }
+    return new String(b, off, end - off, UTF_8);
+  }
+
+  private static boolean isZero(byte[] b) {
+    for (byte x : b) {
+      if (x != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Returns false if the stream ends before the first byte.
+  private boolean readFully(byte[] b, int off, int len) throws IOException {
+    for (int n = 0; n < len; ) {
+      int k = in.read(b, off + n, len - n);
+      if (k == -1) {
+        if (n == 0) {
+          return false;
+        }
+        throw new EOFException("truncated tar archive");
+      }
+      n += k;
+    }
+    return true;
+  }
+
+  private void skipFully(long n) throws IOException {
+    while (n > 0) {
+      int k = in.read(discard, 0, (int) Math.min(n, discard.length));
+      if (k == -1) {
+        throw new EOFException("truncated tar archive");
+      }
+      n -= k;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,9 @@
+package nl.knaw.huc.rananostra;
+
+/*
+ * Splits text into tokens. Implementations may keep state, so that an instance cannot
+ * necessarily be shared between threads; see FrogSocketClient.newTokenizer.
+ */
+interface TextTokenizer {
+  TokenizedText tokenize(CharSequence text);
+}
@@ -0,0 +1,143 @@
+package nl.knaw.huc.rananostra;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Time spent in each stage of handling a request, summed over all threads that work on it,
+ * and the deadline by which the request must be done, if any.
+ * <p>
+ * Pass an instance to {@link FrogSocketClient#applyXML(FrogSocketClient.XMLOptions, Timings)}
+ * to get the breakdown for a single request, e.g., for a Server-Timing header. The client
+ * also records every stage duration in a Dropwizard Metrics timer of the same name.
+ */
+public final class Timings {
+  public enum Stage {
+    XML_PARSE("xmlParse"),
+    XPATH("xpath"),
+    TOKENIZE("tokenize"),
+    CONNECT("connect"),       // Opening new connections to Frog.
+    FROG("frog"),             // Sending requests and waiting for the response to start.
+    FOLIA_PARSE("foliaParse"),
+    MILESTONES("milestones"),
+    SERIALIZE("serialize");
+
+    public final String metricName;
+
+    Stage(String metricName) {
+      this.metricName = metricName;
+    }
+  }
+
+  private static final Stage[] STAGES = Stage.values();
+
+  private final AtomicLongArray nanos = new AtomicLongArray(STAGES.length);
+  private final Timer[] timers; // Null, or one per stage.
+  private final Timings parent; // Null, or receives the same durations.
+  private final boolean hasDeadline;
+  private final long deadline;  // System.nanoTime by which the request must be done.
+
+  public Timings() {
+    this(0);
+  }
+
+  /**
+   * Creates a Timings for a request that must be done within deadlineMillis milliseconds
+   * from now. Zero means no deadline.
+   * <p>
+   * Once the deadline has passed, calls to Frog fail with a {@link DeadlineExceededException},
+   * and reads from Frog that are still waiting for a response are aborted.
+   */
+  public Timings(long deadlineMillis) {
+    this.timers = null;
+    this.parent = null;
+    this.hasDeadline = deadlineMillis > 0;
+    this.deadline = System.nanoTime() + MILLISECONDS.toNanos(deadlineMillis);
+  }
+
+  // A Timings that records into timers and parent, and shares parent's deadline.
+  Timings(Timer[] timers, Timings parent) {
+    this.timers = timers;
+    this.parent = parent;
+    this.hasDeadline = parent != null && parent.hasDeadline;
+    this.deadline = parent == null ? 0 : parent.deadline;
+  }
+
+  // One timer per stage, named after the stage, under the given class.
+  static Timer[] timers(MetricRegistry registry, Class<?> owner) {
+    Timer[] timers = new Timer[STAGES.length];
+    for (Stage stage : STAGES) {
+      timers[stage.ordinal()] = registry.timer(MetricRegistry.name(owner, stage.metricName));
+    }
+    return timers;
+  }
+
+  void add(Stage stage, long duration) {
+    nanos.addAndGet(stage.ordinal(), duration);
+    if (timers != null) {
+      timers[stage.ordinal()].update(duration, NANOSECONDS);
+    }
+    if (parent != null) {
+      parent.add(stage, duration);
+    }
+  }
+
+  // Adds the time since start to stage and returns the current time, for timing consecutive stages.
+  long lap(Stage stage, long start) {
+    long now = System.nanoTime();
+    add(stage, now - start);
+    return now;
+  }
+
+  /*
+   * Returns the number of milliseconds left until the deadline, rounded up, or zero if there
+   * is no deadline. Suitable for Socket.setSoTimeout and Object.wait.
+   */
+  int remainingMillis() throws DeadlineExceededException {
+    if (!hasDeadline) {
+      return 0;
+    }
+    long left = deadline - System.nanoTime();
+    if (left <= 0) {
+      throw new DeadlineExceededException();
+    }
+    return (int) Math.min(Integer.MAX_VALUE, NANOSECONDS.toMillis(left + 999_999));
+  }
+
+  boolean hasDeadline() {
+    return hasDeadline;
+  }
+
+  // The System.nanoTime by which the request must be done, if hasDeadline.
+  long deadline() {
+    return deadline;
+  }
+
+  /**
+   * Returns the total time spent in stage, in nanoseconds.
+   */
+  public long nanos(Stage stage) {
+    return nanos.get(stage.ordinal());
+  }
+
+  /**
+   * Formats the stages that took any time as a Server-Timing header value, with durations
+   * in milliseconds, followed by the given total.
+   */
+  public String toServerTiming(long totalNanos) {
+    StringBuilder sb = new StringBuilder();
+    for (Stage stage : STAGES) {
+      long n = nanos(stage);
+      if (n > 0) {
+        sb.append(String.format(Locale.ROOT, "%s;dur=%.3f, ", stage.metricName, n / 1e6));
+      }
+    }
+    return sb.append(String.format(Locale.ROOT, "total;dur=%.3f", totalNanos / 1e6)).toString();
+  }
+}
@@ -0,0 +1,130 @@
+package nl.knaw.huc.rananostra;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Entities found by Frog in a token sequence, as (first, last) token indices (inclusive)
+ * plus the entity class (an index into the table of Entities). Independent of character offsets, so the same instance applies
+ * to any text that tokenizes to the same tokens.
+ */
+final class TokenSpans {
+  static final TokenSpans EMPTY = new TokenSpans(0, new int[0], new int[0], new int[0], 0);
+
+  final int ntokens; // Number of tokens Frog reported.
+  private final int[] first;
+  private final int[] last;
+  private final int[] types;
+  private final int size;
+
+  private TokenSpans(int ntokens, int[] first, int[] last, int[] types, int size) {
+    this.ntokens = ntokens;
+    this.first = first;
+    this.last = last;
+    this.types = types;
+    this.size = size;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int first(int i) {
+    return first[i];
+  }
+
+  int last(int i) {
+    return last[i];
+  }
+
+  String type(int i) {
+    return Entities.typeName(types[i]);
+  }
+
+  /*
+   * Adds the entities to out as character offsets, where token i is token offset + i of tokens.
+   * Entity i runs from the start of token first(i) to the end of token last(i).
+   */
+  void addTo(Entities out, TokenizedText tokens, int offset) {
+    for (int i = 0; i < size; i++) {
+      out.add(tokens.start(offset + first[i]), tokens.end(offset + last[i]), types[i]);
+    }
+  }
+
+  // Converts to character offsets in tokens.text.
+  Entities toEntities(TokenizedText tokens) {
+    Entities out = new Entities(size);
+    addTo(out, tokens, 0);
+    return out;
+  }
+
+  /*
+   * Splits the entities found in a batch of sentences into one TokenSpans per sentence,
+   * given the number of tokens in each. Token indices become relative to their sentence.
+   */
+  TokenSpans[] split(int[] sentenceTokens) throws IOException {
+    int total = 0;
+    for (int n : sentenceTokens) {
+      total += n;
+    }
+    if (total != ntokens) {
+      throw new IOException(
+        String.format("Frog returned %d tokens for a batch of %d tokens", ntokens, total));
+    }
+
+    TokenSpans[] result = new TokenSpans[sentenceTokens.length];
+    int i = 0;      // Current entity.
+    int offset = 0; // Index of first token of current sentence.
+    for (int k = 0; k < sentenceTokens.length; k++) {
+      int end = offset + sentenceTokens[k];
+      Builder b = new Builder().ntokens(sentenceTokens[k]);
+      for (; i < size && first[i] < end; i++) {
+        // Sentences are separated by paragraph breaks, so entities should not cross them.
+        if (last[i] < end) {
+          b.add(first[i] - offset, last[i] - offset, types[i]);
+        }
+      }
+      result[k] = b.build();
+      offset = end;
+    }
+    return result;
+  }
+
+  static final class Builder {
+    private int ntokens;
+    private int[] first = new int[4];
+    private int[] last = new int[4];
+    private int[] types = new int[4];
+    private int size;
+
+    Builder ntokens(int n) {
+      ntokens = n;
+      return this;
+    }
+
+    Builder add(int firstToken, int lastToken, String type) {
+      return add(firstToken, lastToken, Entities.typeId(type));
+    }
+
+    Builder add(int firstToken, int lastToken, int type) {
+      if (size == first.length) {
+        first = Arrays.copyOf(first, 2 * size);
+        last = Arrays.copyOf(last, 2 * size);
+        types = Arrays.copyOf(types, 2 * size);
+      }
+      first[size] = firstToken;
+      last[size] = lastToken;
+      types[size] = type;
+      size++;
+      return this;
+    }
+
+    TokenSpans build() {
+      if (size == 0 && ntokens == 0) {
+        return EMPTY;
+      }
+      return new TokenSpans(ntokens, Arrays.copyOf(first, size), Arrays.copyOf(last, size),
+        Arrays.copyOf(types, size), size);
+    }
+  }
+}
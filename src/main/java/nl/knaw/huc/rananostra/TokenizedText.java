@@ -0,0 +1,122 @@
+package nl.knaw.huc.rananostra;
+
+import opennlp.tools.util.Span;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * A text and its tokens, as parallel arrays of start and end offsets, so that a document's
+ * tokens cost two ints each instead of a Span apiece. Tokens are appended by the tokenizer
+ * with add; after that, the instance is not modified.
+ */
+final class TokenizedText {
+  final CharSequence text;
+  private int[] starts;
+  private int[] ends;
+  private int size;
+
+  TokenizedText(CharSequence text, int capacity) {
+    this.text = text;
+    starts = new int[Math.max(capacity, 4)];
+    ends = new int[starts.length];
+  }
+
+  // Converts tokens from OpenNLP or the public API.
+  static TokenizedText of(CharSequence text, Span[] tokens) {
+    TokenizedText t = new TokenizedText(text, tokens.length);
+    for (Span token : tokens) {
+      t.add(token.getStart(), token.getEnd());
+    }
+    return t;
+  }
+
+  static TokenizedText of(CharSequence text, List<Span> tokens) {
+    TokenizedText t = new TokenizedText(text, tokens.size());
+    for (Span token : tokens) {
+      t.add(token.getStart(), token.getEnd());
+    }
+    return t;
+  }
+
+  void add(int start, int end) {
+    if (size == starts.length) {
+      starts = Arrays.copyOf(starts, 2 * size);
+      ends = Arrays.copyOf(ends, 2 * size);
+    }
+    starts[size] = start;
+    ends[size] = end;
+    size++;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int start(int i) {
+    return starts[i];
+  }
+
+  int end(int i) {
+    return ends[i];
+  }
+
+  Span[] toSpans() {
+    Span[] spans = new Span[size];
+    for (int i = 0; i < size; i++) {
+      spans[i] = new Span(starts[i], ends[i]);
+    }
+    return spans;
+  }
+
+  /*
+   * Encodes tokens [from, to) for a Frog request: one token per line, without surrounding
+   * whitespace. The request must be terminated by EOT.
+   */
+  String encode(int from, int to) {
+    int len = text.length();
+    StringBuilder w = new StringBuilder(from == to ? 0 : ends[to - 1] - starts[from] + (to - from));
+    int prevStart = 0;
+    int prevEnd = 0;
+    for (int i = from; i < to; i++) {
+      int start = starts[i];
+      int end = ends[i];
+      if (start < 0 || start > end || end > len) {
+        throw new IllegalArgumentException(
+          String.format("token [%d..%d) outside of text of length %d", start, end, len));
+      }
+      int tstart = start;
+      int tend = end;
+      while (tstart < tend && DutchTokenizer.isSpace(text.charAt(tstart))) {
+        tstart++;
+      }
+      while (tend > tstart && DutchTokenizer.isSpace(text.charAt(tend - 1))) {
+        tend--;
+      }
+
+      if (tstart == tend) {
+        throw new IllegalArgumentException(
+          String.format("Empty or all-whitespace token '%s' at [%d..%d)", text.subSequence(start, end), start, end));
+      } else if (tend - tstart == 3 && text.charAt(tstart) == 'E' && text.charAt(tstart + 1) == 'O'
+        && text.charAt(tstart + 2) == 'T') {
+        throw new IllegalArgumentException("'EOT' not allowed as a token");
+      } else if (crosses(start, end, prevStart, prevEnd)) {
+        throw new IllegalArgumentException(
+          String.format("crossing spans [%d..%d) and [%d..%d)", prevStart, prevEnd, start, end));
+      } else if (start < prevEnd) {
+        throw new IllegalArgumentException(
+          String.format("unsorted spans: [%d..%d), then [%d..%d)", prevStart, prevEnd, start, end));
+      }
+      w.append(text, tstart, tend);
+      w.append('\n');
+      prevStart = start;
+      prevEnd = end;
+    }
+    return w.toString();
+  }
+
+  // Reports whether [start, end) and [ps, pe) overlap without one containing the other.
+  private static boolean crosses(int start, int end, int ps, int pe) {
+    return start < pe && ps < end && !(start <= ps && pe <= end) && !(ps <= start && end <= pe);
+  }
+}
@@ -0,0 +1,120 @@
+package nl.knaw.huc.rananostra;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.validation.constraints.Min;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Runs synthetic documents through the whole annotation path (XML parsing, both tokenizers,
+ * the Frog client and FoLiA parsing, milestone insertion and serialization, in both tree and
+ * streaming mode), so that the hot paths have been compiled and connections to Frog are open
+ * before real requests arrive. Waits for Frog to answer first.
+ * <p>
+ * The synthetic documents show up in the metrics like any others.
+ */
+public final class WarmUp {
+  public static class Config {
+    /**
+     * Number of synthetic documents to annotate. Zero skips warm-up, including the wait for Frog.
+     */
+    @JsonProperty
+    @Min(0)
+    public int documents = 100;
+
+    /**
+     * Interval between attempts to reach Frog while it is starting up.
+     */
+    @JsonProperty
+    @Min(1)
+    public long frogRetryMillis = 1_000;
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(WarmUp.class);
+
+  private static final String DOCUMENT = "<doc>" +
+    "<head>Brief van Constantijn Huygens aan Christiaan Huygens</head>" +
+    "<p>Op 12 januari 1672 schreef Constantijn Huygens uit Den Haag een brief aan zijn zoon " +
+    "Christiaan, die toen in Parijs verbleef.</p>" +
+    "<p>Dhr. J. Jansen woonde o.a. in <place>'s-Gravenhage</place> en reisde in 't voorjaar naar " +
+    "Amsterdam, Leiden en Utrecht.</p>" +
+    "<p>\"Kom je vanavond?\", vroeg Maria aan Willem van Oranje. Hij zei: 'zo'n avond vergeet je niet!'</p>" +
+    "<p>De Verenigde Oost-Indische Compagnie voer op Batavia, Ceylon en de Kaap de Goede Hoop.</p>" +
+    "</doc>";
+
+  private final FrogSocketClient frog;
+  private final FrogCluster cluster;
+  private final Config config;
+  private volatile boolean done;
+
+  /**
+   * @param frog    Client to warm up.
+   * @param cluster The cluster that frog sends its requests to.
+   */
+  public WarmUp(FrogSocketClient frog, FrogCluster cluster, Config config) {
+    this.frog = frog;
+    this.cluster = cluster;
+    this.config = config;
+  }
+
+  /**
+   * Reports whether {@link #run} has finished.
+   */
+  public boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Waits for Frog to answer, then annotates the configured number of synthetic documents.
+   * Failed documents are logged and do not stop the warm-up.
+   */
+  public void run() throws InterruptedException {
+    if (config.documents == 0) {
+      done = true;
+      return;
+    }
+    awaitFrog();
+
+    long start = System.nanoTime();
+    int failed = 0;
+    FrogSocketClient.XMLOptions options =
+      new FrogSocketClient.XMLOptions(DOCUMENT, "//p", null, "start", "end", "class", "text");
+    for (int i = 0; i < config.documents; i++) {
+      options.tokenizer = i % 2 == 0 ? FrogSocketClient.Tokenizer.OPENNLP : FrogSocketClient.Tokenizer.RULES;
+      options.streaming = i % 4 >= 2;
+      try {
+        frog.applyXML(options);
+      } catch (InterruptedException e) {
+        throw e;
+      } catch (Exception e) {
+        LOG.warn("Warm-up document failed: {}", e.toString());
+        failed++;
+        awaitFrog();
+      }
+    }
+    LOG.info("Warm-up done: {} documents ({} failed) in {} ms", config.documents, failed,
+      NANOSECONDS.toMillis(System.nanoTime() - start));
+    done = true;
+  }
+
+  // Blocks until at least one backend answers.
+  private void awaitFrog() throws InterruptedException {
+    for (int attempt = 0; ; attempt++) {
+      List<String> failed = cluster.probe();
+      if (failed.size() < cluster.backends().size()) {
+        if (attempt > 0) {
+          LOG.info("Frog is up");
+        }
+        return;
+      }
+      if (attempt % 10 == 0) {
+        LOG.info("Waiting for Frog: {}", failed);
+      }
+      Thread.sleep(config.frogRetryMillis);
+    }
+  }
+}
@@ -4,7 +4,9 @@ import nu.xom.Builder;
 import nu.xom.Document;
 import nu.xom.ParsingException;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 
 // Wraps thread-local nu.xom.Builders.
@@ -19,4 +21,13 @@ final class XmlParser {
   static Document fromString(String s) throws IOException, ParsingException {
     return BUILDER.get().build(new StringReader(s));
   }
+
+  // Parses a document in any encoding that the XML declaration allows.
+  static Document fromBytes(byte[] b) throws IOException, ParsingException {
+    return fromStream(new ByteArrayInputStream(b));
+  }
+
+  static Document fromStream(InputStream in) throws IOException, ParsingException {
+    return BUILDER.get().build(in);
+  }
 }
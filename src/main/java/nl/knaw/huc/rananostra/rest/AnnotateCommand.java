@@ -0,0 +1,168 @@
+package nl.knaw.huc.rananostra.rest;
+
+import io.dropwizard.cli.ConfiguredCommand;
+import io.dropwizard.setup.Bootstrap;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+import nl.knaw.huc.rananostra.BulkAnnotator;
+import nl.knaw.huc.rananostra.Checkpoint;
+import nl.knaw.huc.rananostra.FrogCluster;
+import nl.knaw.huc.rananostra.FrogSocketClient;
+import nl.knaw.huc.rananostra.FrogSupervisor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.zip.GZIPInputStream;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Command that annotates a directory or tar archive of XML files offline, writing the results
+ * to a directory. Takes the Frog and pipeline settings from the server configuration file,
+ * including the supervisor, if any, which then runs the Frog processes for the duration of the job.
+ * <p>
+ * Usage: rananostra annotate --input corpus.tar.gz --output out --xpath //p
+ * --starttag start --endtag end config.yml
+ */
+public class AnnotateCommand extends ConfiguredCommand<Server.Config> {
+  private static final Logger LOG = LoggerFactory.getLogger(AnnotateCommand.class);
+
+  public AnnotateCommand() {
+    super("annotate", "Annotates a directory or tar archive of XML files");
+  }
+
+  @Override
+  public void configure(Subparser subparser) {
+    super.configure(subparser);
+    subparser.addArgument("--input").required(true)
+      .help("directory, tar archive (optionally gzipped), or - for a tar stream on standard input");
+    subparser.addArgument("--output").required(true).help("directory to write annotated files to");
+    subparser.addArgument("--xpath").required(true).help("elements to annotate");
+    subparser.addArgument("--namespace").action(Arguments.append()).metavar("PREFIX=URI")
+      .help("namespace prefix for use in the XPath; may be repeated");
+    subparser.addArgument("--starttag").required(true);
+    subparser.addArgument("--endtag").required(true);
+    subparser.addArgument("--classattr");
+    subparser.addArgument("--textattr");
+    subparser.addArgument("--tokenizer").choices("opennlp", "rules")
+      .help("tokenizer to use (default: as in the configuration file)");
+    subparser.addArgument("--suffix").setDefault(".xml").help("only annotate files ending in this");
+    subparser.addArgument("--checkpoint")
+      .help("file listing finished documents, to resume from (default: .rananostra-done in the output directory)");
+    subparser.addArgument("--report-seconds").dest("reportSeconds").type(Integer.class).setDefault(10)
+      .help("interval between progress reports");
+  }
+
+  @Override
+  protected void run(Bootstrap<Server.Config> bootstrap, Namespace ns, Server.Config conf) throws Exception {
+    FrogSocketClient.XMLOptions options = new FrogSocketClient.XMLOptions("", ns.getString("xpath"),
+      namespaces(ns.getList("namespace")), ns.getString("starttag"), ns.getString("endtag"),
+      ns.getString("classattr"), ns.getString("textattr"));
+    if (ns.getString("tokenizer") != null) {
+      options.tokenizer = FrogSocketClient.Tokenizer.fromString(ns.getString("tokenizer"));
+    }
+
+    Path out = Paths.get(ns.getString("output"));
+    Files.createDirectories(out);
+    String checkpointFile = ns.getString("checkpoint");
+    Path checkpointPath = checkpointFile == null ? out.resolve(".rananostra-done") : Paths.get(checkpointFile);
+
+    // A batch job should wait for Frog rather than drop documents when it is busy,
+    // or while the supervisor's first processes are starting.
+    conf.cluster.maxQueueMillis = 0;
+    Server.checkConfig(conf);
+    FrogSupervisor supervisor = conf.supervisor == null ? null
+      : new FrogSupervisor(conf.supervisor, conf.cluster, conf.pool, bootstrap.getMetricRegistry());
+    FrogCluster cluster = supervisor == null ? Server.newCluster(conf, bootstrap.getMetricRegistry())
+      : supervisor.cluster();
+    if (supervisor != null) {
+      supervisor.start();
+    }
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    try (FrogSocketClient frog = new FrogSocketClient(cluster, conf.client);
+         Checkpoint checkpoint = new Checkpoint(checkpointPath);
+         BulkAnnotator.Source source = openSource(ns.getString("input"), ns.getString("suffix"))) {
+      BulkAnnotator annotator = new BulkAnnotator(frog, options, conf.bulk);
+      int interval = ns.getInt("reportSeconds");
+      reporter.scheduleAtFixedRate(new Reporter(annotator), interval, interval, SECONDS);
+
+      long start = System.nanoTime();
+      annotator.run(source, out, checkpoint);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      LOG.info(String.format(Locale.ROOT,
+        "Done: %d documents (%.1f/s), %d sentences (%.1f/s), %d failed, %d skipped as done before",
+        annotator.documents(), annotator.documents() / seconds, annotator.sentences(),
+        annotator.sentences() / seconds, annotator.failures(), annotator.skipped()));
+    } finally {
+      reporter.shutdownNow();
+      if (supervisor != null) {
+        supervisor.close();
+      }
+    }
+  }
+
+  private static BulkAnnotator.Source openSource(String input, String suffix) throws IOException {
+    if (!input.equals("-") && Files.isDirectory(Paths.get(input))) {
+      return BulkAnnotator.directory(Paths.get(input), suffix);
+    }
+    InputStream in = new BufferedInputStream(
+      input.equals("-") ? System.in : Files.newInputStream(Paths.get(input)), 1 << 16);
+    // Detect gzip by its magic number.
+    in.mark(2);
+    boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+    in.reset();
+    return BulkAnnotator.tar(gzip ? new GZIPInputStream(in, 1 << 16) : in, suffix);
+  }
+
+  private static Map<String, String> namespaces(List<String> args) {
+    Map<String, String> namespaces = new HashMap<>();
+    if (args != null) {
+      for (String arg : args) {
+        int eq = arg.indexOf('=');
+        if (eq < 1) {
+          throw new IllegalArgumentException("namespace must be given as prefix=uri, got " + arg);
+        }
+        namespaces.put(arg.substring(0, eq), arg.substring(eq + 1));
+      }
+    }
+    return namespaces;
+  }
+
+  // Logs the throughput since the previous report.
+  private static final class Reporter implements Runnable {
+    private final BulkAnnotator annotator;
+    private long documents;
+    private long sentences;
+    private long time = System.nanoTime();
+
+    Reporter(BulkAnnotator annotator) {
+      this.annotator = annotator;
+    }
+
+    @Override
+    public void run() {
+      long now = System.nanoTime();
+      long d = annotator.documents();
+      long s = annotator.sentences();
+      double seconds = (now - time) / 1e9;
+      LOG.info(String.format(Locale.ROOT, "%d documents (%.1f/s), %d sentences (%.1f/s), %d failed, %d skipped",
+        d, (d - documents) / seconds, s, (s - sentences) / seconds, annotator.failures(), annotator.skipped()));
+      documents = d;
+      sentences = s;
+      time = now;
+    }
+  }
+}
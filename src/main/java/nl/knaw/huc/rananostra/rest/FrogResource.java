@@ -1,37 +1,452 @@
 package nl.knaw.huc.rananostra.rest;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import nl.knaw.huc.rananostra.DeadlineExceededException;
+import nl.knaw.huc.rananostra.FrogBusyException;
 import nl.knaw.huc.rananostra.FrogSocketClient;
+import nl.knaw.huc.rananostra.Timings;
+import nu.xom.Document;
 import nu.xom.ParsingException;
+import nu.xom.Serializer;
 import nu.xom.XPathException;
 
+import javax.validation.constraints.Min;
+import javax.ws.rs.BeanParam;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.GATEWAY_TIMEOUT;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
 
 @Path("/")
 @Consumes(MediaType.APPLICATION_JSON)
 public class FrogResource {
+  /**
+   * Admission control for annotation requests.
+   * <p>
+   * Requests are handled by a pool of worker threads, so that Jetty's threads are free to
+   * accept new requests. Requests that find all workers busy wait in a queue; when that is full,
+   * they are turned away with 503 Service Unavailable and a Retry-After header.
+   */
+  public static class Config {
+    /**
+     * Number of requests handled at once. Each request makes up to client.concurrency
+     * concurrent Frog calls.
+     */
+    @JsonProperty
+    @Min(1)
+    public int workers = 8;
+
+    /**
+     * Number of requests that may wait for a worker.
+     */
+    @JsonProperty
+    @Min(1)
+    public int queueSize = 64;
+
+    /**
+     * Value of the Retry-After header sent with rejected requests.
+     */
+    @JsonProperty
+    @Min(0)
+    public int retryAfterSeconds = 1;
+
+    /**
+     * Time limit per /xml request, including time spent in the queue. Requests that take longer
+     * get a 504 Gateway Timeout and their outstanding Frog calls are cancelled. Clients can
+     * ask for a lower limit. Zero means no limit.
+     */
+    @JsonProperty
+    @Min(0)
+    public long deadlineMillis = 0;
+
+    /**
+     * Memory budget, in bytes, for annotated documents kept to answer repeated /xml requests.
+     * Zero disables the cache and ETags.
+     */
+    @JsonProperty
+    @Min(0)
+    public long cacheBytes = 0;
+  }
+
+  /**
+   * Options for /xml requests that send the document itself as the request body. The names are
+   * those of the JSON fields; namespaces are given as ns=prefix=uri, once per namespace.
+   */
+  public static class XMLQuery {
+    @QueryParam("xpath")
+    public String xpath;
+
+    @QueryParam("ns")
+    public List<String> namespaces;
+
+    @QueryParam("starttag")
+    public String startTag;
+
+    @QueryParam("endtag")
+    public String endTag;
+
+    @QueryParam("classattr")
+    public String classAttr;
+
+    @QueryParam("textattr")
+    public String textAttr;
+
+    @QueryParam("concurrency")
+    public Integer concurrency;
+
+    @QueryParam("streaming")
+    public boolean streaming;
+
+    @QueryParam("deadlineMillis")
+    public Long deadlineMillis;
+
+    @QueryParam("tokenizer")
+    public FrogSocketClient.Tokenizer tokenizer;
+
+    @QueryParam("splitSentences")
+    public Boolean splitSentences;
+
+    // Validates the parameters, throwing a 400 Bad Request if they are incomplete or malformed.
+    FrogSocketClient.XMLOptions toOptions() {
+      FrogSocketClient.XMLOptions options = new FrogSocketClient.XMLOptions();
+      options.xpath = required("xpath", xpath);
+      options.startTag = required("starttag", startTag);
+      options.endTag = required("endtag", endTag);
+      options.classAttr = classAttr;
+      options.textAttr = textAttr;
+      if (namespaces != null && !namespaces.isEmpty()) {
+        options.namespaces = new HashMap<>();
+        for (String ns : namespaces) {
+          int eq = ns.indexOf('=');
+          if (eq <= 0) {
+            throw new WebApplicationException("ns must be prefix=uri, got " + ns, BAD_REQUEST);
+          }
+          options.namespaces.put(ns.substring(0, eq), ns.substring(eq + 1));
+        }
+      }
+      if (concurrency != null && concurrency < 1 || deadlineMillis != null && deadlineMillis < 1) {
+        throw new WebApplicationException("concurrency and deadlineMillis must be positive", BAD_REQUEST);
+      }
+      options.concurrency = concurrency;
+      options.streaming = streaming;
+      options.deadlineMillis = deadlineMillis;
+      options.tokenizer = tokenizer;
+      options.splitSentences = splitSentences;
+      return options;
+    }
+
+    private static String required(String name, String value) {
+      if (value == null || value.isEmpty()) {
+        throw new WebApplicationException(name + " is required", BAD_REQUEST);
+      }
+      return value;
+    }
+  }
+
+  // Writes a response body to a stream.
+  private interface Body {
+    void write(OutputStream out) throws Exception;
+  }
+
   private final FrogSocketClient frog;
+  private final Config config;
+  private final ExecutorService executor;
+  private final boolean serverTiming;
+  private final Meter rejected;
+  private final Meter deadlineExceeded;
+  private final Meter notModified;
+  private final ResponseCache cache; // Null if disabled.
+
+  FrogResource(FrogSocketClient frog, Config config, boolean serverTiming, MetricRegistry metrics) {
+    this(frog, config, newExecutor(config), serverTiming, metrics);
+  }
+
+  /**
+   * Creates a resource that runs requests on executor, which should reject requests
+   * when config.queueSize requests are waiting.
+   */
+  FrogResource(FrogSocketClient frog, Config config, ExecutorService executor, boolean serverTiming,
+               MetricRegistry metrics) {
+    this.frog = frog;
+    this.config = config;
+    this.executor = executor;
+    this.serverTiming = serverTiming;
+    rejected = metrics.meter(MetricRegistry.name(FrogResource.class, "rejected"));
+    deadlineExceeded = metrics.meter(MetricRegistry.name(FrogResource.class, "deadlineExceeded"));
+    notModified = metrics.meter(MetricRegistry.name(FrogResource.class, "notModified"));
+    cache = config.cacheBytes > 0 ? new ResponseCache(config.cacheBytes, frog.defaultTokenizer(),
+      frog.defaultSplitSentences(), metrics) : null;
+  }
+
+  private static ExecutorService newExecutor(Config config) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(config.workers, config.workers, 60, SECONDS,
+      new ArrayBlockingQueue<>(config.queueSize));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  @Path("xml")
+  @Produces(MediaType.APPLICATION_XML)
+  @POST
+  public void applyXML(FrogSocketClient.XMLOptions args, @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+                       @Suspended AsyncResponse response) {
+    long start = System.nanoTime();
+    long deadline = deadlineMillis(args);
+    Timings timings = new Timings(deadline);
+    if (cache == null) {
+      admit(response, deadline, () -> applyXML(args, timings, start));
+      return;
+    }
 
-  FrogResource(String host, int port) {
-    frog = new FrogSocketClient(host, port);
+    // Answered right away, without taking up a worker.
+    String key = cache.key("json", args, args.xml);
+    Response cached = cached(key, ifNoneMatch, Response::ok);
+    if (cached != null) {
+      response.resume(cached);
+      return;
+    }
+    admit(response, deadline, () -> annotated(() -> {
+      byte[] result = frog.applyXML(args, timings).getBytes(UTF_8);
+      cache.put(key, result);
+      return Response.ok(result).tag(new EntityTag(key));
+    }, timings, start));
   }
 
+  /**
+   * Like {@link #applyXML(FrogSocketClient.XMLOptions, String, AsyncResponse)}, for a document sent as
+   * the request body, with the options in the query string. The document is parsed straight from
+   * the request and the result is written straight to the response, gzipped if the client accepts
+   * that, so that neither is held in memory as a string. In streaming mode, errors that occur
+   * after the response has started cut it short instead of changing its status.
+   * <p>
+   * If the cache is enabled, documents are read into memory to compute their key, except
+   * in streaming mode, which is not cached.
+   */
   @Path("xml")
+  @Consumes({MediaType.APPLICATION_XML, MediaType.TEXT_XML})
   @Produces(MediaType.APPLICATION_XML)
   @POST
-  public String applyXML(FrogSocketClient.XMLOptions args) throws Exception {
+  public void applyXML(InputStream in, @BeanParam XMLQuery query,
+                       @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+                       @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+                       @Suspended AsyncResponse response) {
+    long start = System.nanoTime();
+    FrogSocketClient.XMLOptions args = query.toOptions();
+    boolean gzip = acceptsGzip(acceptEncoding);
+    long deadline = deadlineMillis(args);
+    Timings timings = new Timings(deadline);
+    if (args.streaming) {
+      // Annotation happens while the response is written, so the deadline is left to timings.
+      admit(response, 0, () -> streamed(gzip, out -> frog.applyXML(args, in, out, timings)).build());
+    } else if (cache != null) {
+      admit(response, deadline, () -> {
+        byte[] xml = ByteStreams.toByteArray(in);
+        String key = cache.key("xml", args, xml);
+        Response cached = cached(key, ifNoneMatch, result -> streamed(gzip, out -> out.write(result)));
+        if (cached != null) {
+          return cached;
+        }
+        return annotated(() -> {
+          Document doc = frog.applyXML(args, new ByteArrayInputStream(xml), timings);
+          ByteArrayOutputStream out = new ByteArrayOutputStream(xml.length + xml.length / 8);
+          new Serializer(out, "UTF-8").write(doc);
+          byte[] result = out.toByteArray();
+          cache.put(key, result);
+          return streamed(gzip, o -> o.write(result)).tag(new EntityTag(key));
+        }, timings, start);
+      });
+    } else {
+      admit(response, deadline, () -> annotated(() -> {
+        Document doc = frog.applyXML(args, in, timings);
+        return streamed(gzip, out -> new Serializer(out, "UTF-8").write(doc));
+      }, timings, start));
+    }
+  }
+
+  /**
+   * Applies NER to a JSON array or newline-delimited stream of texts, each either a string or
+   * an object with text and tokens, and streams back one line of JSON per text as soon as it is
+   * done, with types dictionary-coded. See SpansWriter for the output format.
+   */
+  @Path("spans")
+  @Consumes({MediaType.APPLICATION_JSON, SpansWriter.NDJSON})
+  @Produces(SpansWriter.NDJSON)
+  @POST
+  public void spans(InputStream in, @QueryParam("concurrency") @Min(1) Integer concurrency,
+                    @QueryParam("tokenizer") FrogSocketClient.Tokenizer tokenizer, @Suspended AsyncResponse response) {
+    // No deadline: the input may be arbitrarily long.
+    admit(response, 0, () -> Response.ok((StreamingOutput) out ->
+      new SpansWriter(out).write(frog, in, concurrency == null ? Integer.MAX_VALUE : concurrency, tokenizer))
+      .build());
+  }
+
+  /*
+   * Runs handler on the executor and resumes response with its result, or rejects the request
+   * if the executor's queue is full. If deadline is positive, the response is a 504 after that
+   * many milliseconds, and handler is interrupted.
+   */
+  private void admit(AsyncResponse response, long deadline, Callable<Response> handler) {
+    Future<?> task;
+    try {
+      task = executor.submit(() -> {
+        try {
+          response.resume(handler.call());
+        } catch (Throwable e) {
+          response.resume(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.mark();
+      response.resume(Response.status(SERVICE_UNAVAILABLE)
+        .header(HttpHeaders.RETRY_AFTER, config.retryAfterSeconds).build());
+      return;
+    }
+
+    if (deadline > 0) {
+      // Frog calls time out by themselves, but the task may still be queued or busy with the XML.
+      response.setTimeoutHandler(r -> {
+        task.cancel(true);
+        if (r.resume(Response.status(GATEWAY_TIMEOUT).build())) {
+          deadlineExceeded.mark();
+        }
+      });
+      response.setTimeout(deadline, MILLISECONDS);
+    }
+  }
+
+  /**
+   * Annotates synchronously, on the calling thread.
+   */
+  public Response applyXML(FrogSocketClient.XMLOptions args) throws Exception {
+    return applyXML(args, new Timings(deadlineMillis(args)), System.nanoTime());
+  }
+
+  private Response applyXML(FrogSocketClient.XMLOptions args, Timings timings, long start) throws Exception {
+    return annotated(() -> Response.ok(frog.applyXML(args, timings)), timings, start);
+  }
+
+  /*
+   * Calls handler, which annotates a document, and adds Server-Timing to the response that it
+   * returns. Errors are mapped to the appropriate status.
+   */
+  private Response annotated(Callable<Response.ResponseBuilder> handler, Timings timings, long start)
+    throws Exception {
     try {
-      return frog.applyXML(args);
+      Response.ResponseBuilder response = handler.call();
+      if (serverTiming) {
+        response.header("Server-Timing", timings.toServerTiming(System.nanoTime() - start));
+      }
+      return response.build();
     } catch (ParsingException e) {
       throw new WebApplicationException("XML parsing error: " + e.getMessage(), BAD_REQUEST);
     } catch (XPathException e) {
       throw new WebApplicationException("XPath error: " + e.getMessage(), BAD_REQUEST);
+    } catch (DeadlineExceededException e) {
+      deadlineExceeded.mark();
+      throw new WebApplicationException("Deadline exceeded", GATEWAY_TIMEOUT);
+    } catch (FrogBusyException e) {
+      // Counted by FrogCluster.
+      throw new WebApplicationException(Response.status(SERVICE_UNAVAILABLE)
+        .header(HttpHeaders.RETRY_AFTER, config.retryAfterSeconds).build());
+    }
+  }
+
+  /*
+   * Answers from the cache: 304 Not Modified if the client lists the key's ETag (the result
+   * for a key never changes), else the cached document, wrapped by ok. Returns null if the
+   * document is not in the cache.
+   */
+  private Response cached(String key, String ifNoneMatch, Function<byte[], Response.ResponseBuilder> ok) {
+    EntityTag tag = new EntityTag(key);
+    if (ResponseCache.matches(ifNoneMatch, key)) {
+      notModified.mark();
+      return Response.notModified(tag).build();
+    }
+    byte[] result = cache.get(key);
+    return result == null ? null : ok.apply(result).tag(tag).build();
+  }
+
+  // A response that writes body, compressed if gzip is set.
+  private static Response.ResponseBuilder streamed(boolean gzip, Body body) {
+    Response.ResponseBuilder response = Response.ok((StreamingOutput) out -> {
+      GZIPOutputStream compressed = gzip ? new GZIPOutputStream(out, 1 << 16) : null;
+      try {
+        body.write(gzip ? compressed : out);
+      } catch (Exception e) {
+        Throwables.throwIfInstanceOf(e, IOException.class);
+        Throwables.throwIfUnchecked(e);
+        throw new IOException(e);
+      }
+      if (gzip) {
+        compressed.finish();
+      }
+    }).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    // Jetty's own gzip handler leaves responses that have a Content-Encoding alone.
+    return gzip ? response.header(HttpHeaders.CONTENT_ENCODING, "gzip") : response;
+  }
+
+  // Reports whether an Accept-Encoding header allows gzip.
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      if (parts[0].trim().equalsIgnoreCase("gzip")) {
+        for (int i = 1; i < parts.length; i++) {
+          String param = parts[i].trim();
+          if (param.startsWith("q=") && param.substring(2).matches("0(\\.0*)?")) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // The lower of the server's and the client's deadline, zero meaning none.
+  private long deadlineMillis(FrogSocketClient.XMLOptions args) {
+    long deadline = config.deadlineMillis;
+    if (args.deadlineMillis != null && (deadline == 0 || args.deadlineMillis < deadline)) {
+      deadline = args.deadlineMillis;
     }
+    return deadline;
   }
 }
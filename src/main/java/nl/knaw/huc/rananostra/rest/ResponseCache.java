@@ -0,0 +1,119 @@
+package nl.knaw.huc.rananostra.rest;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import nl.knaw.huc.rananostra.FrogSocketClient;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Annotated documents, keyed by a hash of the input document and of the options that affect
+ * the result, within a budget of bytes. The key doubles as the response's ETag, so that
+ * a client that sends the same document again can be answered with 304 Not Modified.
+ *
+ * The hash is SHA-256, so that one client cannot craft a document that collides with
+ * another client's and get its results.
+ *
+ * Options that a request leaves unset are hashed as the server defaults they stand for, so
+ * that keys, and the ETags clients hold, change when the defaults do.
+ */
+final class ResponseCache {
+  private final Cache<String, byte[]> cache;
+  private final FrogSocketClient.Tokenizer defaultTokenizer;
+  private final boolean defaultSplitSentences;
+
+  ResponseCache(long maxBytes, FrogSocketClient.Tokenizer defaultTokenizer, boolean defaultSplitSentences,
+                MetricRegistry metrics) {
+    this.defaultTokenizer = defaultTokenizer;
+    this.defaultSplitSentences = defaultSplitSentences;
+    cache = CacheBuilder.newBuilder()
+      .maximumWeight(maxBytes)
+      .weigher((String key, byte[] value) -> value.length + 2 * key.length())
+      .recordStats()
+      .build();
+
+    String prefix = MetricRegistry.name(FrogResource.class, "cache");
+    metrics.register(MetricRegistry.name(prefix, "hits"), (Gauge<Long>) () -> cache.stats().hitCount());
+    metrics.register(MetricRegistry.name(prefix, "misses"), (Gauge<Long>) () -> cache.stats().missCount());
+    metrics.register(MetricRegistry.name(prefix, "evictions"), (Gauge<Long>) () -> cache.stats().evictionCount());
+    metrics.register(MetricRegistry.name(prefix, "hitRate"), (Gauge<Double>) () -> cache.stats().hitRate());
+  }
+
+  // Returns the annotated document, or null if it is not in the cache.
+  byte[] get(String key) {
+    return cache.getIfPresent(key);
+  }
+
+  void put(String key, byte[] result) {
+    cache.put(key, result);
+  }
+
+  /*
+   * Returns the key for a document given as a string. variant distinguishes ways of
+   * requesting a document that produce different output for the same input.
+   */
+  String key(String variant, FrogSocketClient.XMLOptions options, String xml) {
+    return options(variant, options).putUnencodedChars(xml).hash().toString();
+  }
+
+  // Like key(String, XMLOptions, String), for a document given as bytes.
+  String key(String variant, FrogSocketClient.XMLOptions options, byte[] xml) {
+    return options(variant, options).putBytes(xml).hash().toString();
+  }
+
+  // Starts a hash of the options that determine the output; concurrency and deadline do not.
+  private Hasher options(String variant, FrogSocketClient.XMLOptions options) {
+    Hasher h = Hashing.sha256().newHasher();
+    put(h, variant);
+    put(h, options.xpath);
+    if (options.namespaces != null) {
+      for (Map.Entry<String, String> ns : new TreeMap<>(options.namespaces).entrySet()) {
+        put(h, ns.getKey());
+        put(h, ns.getValue());
+      }
+    }
+    put(h, options.startTag);
+    put(h, options.endTag);
+    put(h, options.classAttr);
+    put(h, options.textAttr);
+    put(h, (options.tokenizer == null ? defaultTokenizer : options.tokenizer).name());
+    h.putBoolean(options.splitSentences == null ? defaultSplitSentences : options.splitSentences);
+    h.putBoolean(options.streaming);
+    return h;
+  }
+
+  // Length-prefixed, so that adjacent fields cannot run into each other.
+  private static void put(Hasher h, String s) {
+    if (s == null) {
+      h.putInt(-1);
+    } else {
+      h.putInt(s.length()).putUnencodedChars(s);
+    }
+  }
+
+  /*
+   * Reports whether an If-None-Match header lists the ETag for key. Weak tags match too,
+   * as RFC 7232 prescribes for If-None-Match.
+   */
+  static boolean matches(String ifNoneMatch, String key) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.length() == key.length() + 2 && tag.startsWith("\"") && tag.endsWith("\"")
+        && tag.regionMatches(1, key, 0, key.length())) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
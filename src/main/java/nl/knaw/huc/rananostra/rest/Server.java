@@ -1,10 +1,27 @@
 package nl.knaw.huc.rananostra.rest;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.health.HealthCheck;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import io.dropwizard.Application;
 import io.dropwizard.Configuration;
+import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
+import nl.knaw.huc.rananostra.BulkAnnotator;
+import nl.knaw.huc.rananostra.FrogCluster;
+import nl.knaw.huc.rananostra.FrogConnectionPool;
+import nl.knaw.huc.rananostra.FrogSocketClient;
+import nl.knaw.huc.rananostra.FrogSupervisor;
+import nl.knaw.huc.rananostra.WarmUp;
+
+import javax.validation.Valid;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+
+import static java.util.Collections.singletonList;
 
 public class Server extends Application<Server.Config> {
   public static class Config extends Configuration {
@@ -13,6 +30,45 @@ public class Server extends Application<Server.Config> {
 
     @JsonProperty
     public int port;
+
+    // Frog servers to spread the load over. If empty, host and port are used.
+    @JsonProperty
+    @Valid
+    public List<FrogCluster.Endpoint> backends = new ArrayList<>();
+
+    // If set, run local Frog processes instead of using host, port and backends.
+    @JsonProperty
+    @Valid
+    public FrogSupervisor.Config supervisor;
+
+    @JsonProperty
+    @Valid
+    public FrogCluster.Config cluster = new FrogCluster.Config();
+
+    @JsonProperty
+    @Valid
+    public FrogConnectionPool.Config pool = new FrogConnectionPool.Config();
+
+    @JsonProperty
+    @Valid
+    public FrogSocketClient.Config client = new FrogSocketClient.Config();
+
+    @JsonProperty
+    @Valid
+    public FrogResource.Config requests = new FrogResource.Config();
+
+    // Pipeline settings for the annotate command.
+    @JsonProperty
+    @Valid
+    public BulkAnnotator.Config bulk = new BulkAnnotator.Config();
+
+    // Add a Server-Timing header with a breakdown of the time spent to every response.
+    @JsonProperty
+    public boolean serverTiming;
+
+    @JsonProperty
+    @Valid
+    public WarmUp.Config warmUp = new WarmUp.Config();
   }
 
   @Override
@@ -22,6 +78,7 @@ public class Server extends Application<Server.Config> {
 
   @Override
   public void initialize(Bootstrap<Config> bootstrap) {
+    bootstrap.addCommand(new AnnotateCommand());
   }
 
   public static void main(String[] args) throws Exception {
@@ -30,6 +87,84 @@ public class Server extends Application<Server.Config> {
 
   @Override
   public void run(Config conf, Environment env) throws Exception {
-    env.jersey().register(new FrogResource(conf.host, conf.port));
+    checkConfig(conf);
+    FrogSupervisor supervisor = conf.supervisor == null ? null
+      : new FrogSupervisor(conf.supervisor, conf.cluster, conf.pool, env.metrics());
+    FrogCluster cluster = supervisor == null ? newCluster(conf, env.metrics()) : supervisor.cluster();
+    FrogSocketClient frog = new FrogSocketClient(cluster, conf.client, env.metrics());
+    WarmUp warmUp = new WarmUp(frog, cluster, conf.warmUp);
+    // Warm up in the background, so that the health checks can report on it.
+    Thread warmUpThread = new Thread(() -> {
+      try {
+        warmUp.run();
+      } catch (InterruptedException e) {
+        // Shutting down.
+      }
+    }, "warm-up");
+    warmUpThread.setDaemon(true);
+    env.lifecycle().manage(new Managed() {
+      @Override
+      public void start() {
+        if (supervisor != null) {
+          supervisor.start();
+        }
+        warmUpThread.start();
+      }
+
+      @Override
+      public void stop() {
+        warmUpThread.interrupt();
+        frog.close();
+        if (supervisor != null) {
+          supervisor.close();
+        }
+      }
+    });
+
+    // Ready once warmed up and at least one Frog answers.
+    env.healthChecks().register("warmUp", new HealthCheck() {
+      @Override
+      protected Result check() {
+        return warmUp.isDone() ? Result.healthy() : Result.unhealthy("warming up");
+      }
+    });
+    env.healthChecks().register("frog", new HealthCheck() {
+      @Override
+      protected Result check() {
+        if (cluster.size() == 0) {
+          return Result.unhealthy("no Frog backends yet");
+        }
+        List<String> failed = cluster.probe();
+        if (failed.isEmpty()) {
+          return Result.healthy();
+        }
+        if (failed.size() < cluster.size()) {
+          return Result.healthy("some backends do not answer: " + failed);
+        }
+        return Result.unhealthy("Frog does not answer: " + failed);
+      }
+    });
+
+    ExecutorService executor = env.lifecycle().executorService("frog-resource-%d")
+      .minThreads(conf.requests.workers)
+      .maxThreads(conf.requests.workers)
+      .workQueue(new ArrayBlockingQueue<>(conf.requests.queueSize))
+      .build();
+    env.jersey().register(new FrogResource(frog, conf.requests, executor, conf.serverTiming, env.metrics()));
+  }
+
+  static void checkConfig(Config conf) {
+    if (conf.supervisor != null && conf.client.nio != null) {
+      // The supervisor adds its backends after startup, which the NIO client would not see.
+      throw new IllegalArgumentException("client.nio cannot be combined with supervisor");
+    }
+  }
+
+  static FrogCluster newCluster(Config conf, MetricRegistry metrics) {
+    List<FrogCluster.Endpoint> backends = conf.backends;
+    if (backends.isEmpty()) {
+      backends = singletonList(new FrogCluster.Endpoint(conf.host, conf.port));
+    }
+    return new FrogCluster(backends, conf.cluster, conf.pool, metrics);
   }
 }
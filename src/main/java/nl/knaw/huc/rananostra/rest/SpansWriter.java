@@ -0,0 +1,115 @@
+package nl.knaw.huc.rananostra.rest;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.base.Throwables;
+import nl.knaw.huc.rananostra.FrogSocketClient;
+import opennlp.tools.util.Span;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Writes the results of /spans as newline-delimited JSON, one line per input text:
+ *
+ *   {"i":0,"s":[[7,18,0],[20,25,1]]}   spans of text 0, as [start, end, type]
+ *   {"i":1,"e":"message"}              text 1 could not be processed
+ *
+ * Types are dictionary-coded: before the first span of a type, a line {"t":"per"} assigns it
+ * the next code, counting from zero. Lines are in completion order, not input order. If the
+ * input is not valid JSON, the output ends with a line {"e":"message"} without an index.
+ */
+final class SpansWriter {
+  static final String NDJSON = "application/x-ndjson";
+
+  private static final ObjectReader READER = new ObjectMapper().readerFor(FrogSocketClient.TextInput.class);
+  private static final JsonFactory JSON = new JsonFactory();
+
+  private final JsonGenerator out;
+  private final Map<String, Integer> types = new HashMap<>(); // Guarded by this.
+  private final AtomicInteger waiting = new AtomicInteger();  // Threads waiting to write a line.
+
+  SpansWriter(OutputStream out) throws IOException {
+    this.out = JSON.createGenerator(out).setRootValueSeparator(null);
+  }
+
+  // Reads a JSON array or a sequence of JSON values from in and writes a line for each.
+  void write(FrogSocketClient frog, InputStream in, int concurrency, FrogSocketClient.Tokenizer tokenizer) throws IOException {
+    try {
+      MappingIterator<FrogSocketClient.TextInput> texts = READER.readValues(in);
+      frog.applyEach(texts, concurrency, tokenizer, this::handle);
+    } catch (Exception e) {
+      // MappingIterator wraps parse errors in RuntimeExceptions.
+      Throwable cause = e instanceof RuntimeException && e.getCause() != null ? e.getCause() : e;
+      if (cause instanceof JsonProcessingException) {
+        synchronized (this) {
+          out.writeStartObject();
+          out.writeStringField("e", "Invalid input: " + cause.getMessage());
+          endLine();
+          out.flush();
+        }
+        return;
+      }
+      Throwables.throwIfInstanceOf(e, IOException.class);
+      Throwables.throwIfUnchecked(e);
+      throw new IOException(e);
+    }
+  }
+
+  private void handle(int index, List<Span> spans, Exception error) throws IOException {
+    waiting.incrementAndGet();
+    synchronized (this) {
+      waiting.decrementAndGet();
+      if (error != null) {
+        out.writeStartObject();
+        out.writeNumberField("i", index);
+        out.writeStringField("e", error.getMessage() == null ? error.toString() : error.getMessage());
+        endLine();
+      } else {
+        writeResult(index, spans);
+      }
+      // Leave flushing to the next writer, if any, so that bursts of results go out together.
+      if (waiting.get() == 0) {
+        out.flush();
+      }
+    }
+  }
+
+  private void writeResult(int index, List<Span> spans) throws IOException {
+    for (Span span : spans) {
+      if (!types.containsKey(span.getType())) {
+        types.put(span.getType(), types.size());
+        out.writeStartObject();
+        out.writeStringField("t", span.getType());
+        endLine();
+      }
+    }
+
+    out.writeStartObject();
+    out.writeNumberField("i", index);
+    out.writeArrayFieldStart("s");
+    for (Span span : spans) {
+      out.writeStartArray();
+      out.writeNumber(span.getStart());
+      out.writeNumber(span.getEnd());
+      out.writeNumber(types.get(span.getType()));
+      out.writeEndArray();
+    }
+    out.writeEndArray();
+    endLine();
+  }
+
+  private void endLine() throws IOException {
+    out.writeEndObject();
+    out.writeRaw('\n');
+  }
+}
@@ -0,0 +1,151 @@
+package nl.knaw.huc.rananostra;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BulkAnnotatorTest {
+  // Appends a tar header for an entry of the given type and the entry's content.
+  private static void entry(ByteArrayOutputStream tar, String name, char type, byte[] content) {
+    byte[] header = new byte[512];
+    byte[] b = name.getBytes(UTF_8);
+    System.arraycopy(b, 0, header, 0, Math.min(b.length, 100));
+    put(header, 100, "0000644");
+    put(header, 124, String.format("%011o", content.length));
+    header[156] = (byte) type;
+    put(header, 257, "ustar");
+    put(header, 263, "00");
+    Arrays.fill(header, 148, 156, (byte) ' ');
+    int sum = 0;
+    for (byte x : header) {
+      sum += x & 0xff;
+    }
+    put(header, 148, String.format("%06o", sum));
+    tar.write(header, 0, 512);
+    tar.write(content, 0, content.length);
+    tar.write(new byte[-content.length & 511], 0, -content.length & 511);
+  }
+
+  private static void put(byte[] header, int off, String s) {
+    byte[] b = s.getBytes(UTF_8);
+    System.arraycopy(b, 0, header, off, b.length);
+  }
+
+  @Test
+  void tar() throws IOException {
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    entry(tar, "./a.xml", '0', "<a/>".getBytes(UTF_8));
+    entry(tar, "dir/", '5', new byte[0]);
+    entry(tar, "dir/skip.xml", '0', "<s/>".getBytes(UTF_8));
+    entry(tar, "dir/c.txt", '0', "not xml".getBytes(UTF_8));
+    StringBuilder longName = new StringBuilder("dir/");
+    for (int i = 0; i < 30; i++) {
+      longName.append("long");
+    }
+    longName.append(".xml");
+    entry(tar, "././@LongLink", 'L', (longName + "\0").getBytes(UTF_8));
+    entry(tar, longName.substring(0, 100), '0', "<b/>".getBytes(UTF_8));
+    tar.write(new byte[1024], 0, 1024);
+
+    try (BulkAnnotator.Source source = BulkAnnotator.tar(new ByteArrayInputStream(tar.toByteArray()), ".xml")) {
+      BulkAnnotator.Input input = source.next(name -> name.contains("skip"));
+      assertEquals("a.xml", input.name);
+      assertEquals("<a/>", new String(input.content, UTF_8));
+      input = source.next(name -> name.contains("skip"));
+      assertEquals(longName.toString(), input.name);
+      assertEquals("<b/>", new String(input.content, UTF_8));
+      assertNull(source.next(name -> false));
+    }
+  }
+
+  @Test
+  void resume() throws Exception {
+    Path in = Files.createTempDirectory("bulk-in");
+    Path out = Files.createTempDirectory("bulk-out");
+    Files.createDirectories(in.resolve("sub"));
+    Files.write(in.resolve("one.xml"), "<doc><p>Dag Henk</p><p>niemand</p></doc>".getBytes(UTF_8));
+    Files.write(in.resolve("sub/two.xml"), "<doc><p>hallo Piet</p></doc>".getBytes(UTF_8));
+    Files.write(in.resolve("broken.xml"), "<doc><p>Jan</q></doc>".getBytes(UTF_8));
+
+    try (FakeFrog fake = new FakeFrog();
+         FrogSocketClient frog = new FrogSocketClient("localhost", fake.getPort())) {
+      FrogSocketClient.XMLOptions options =
+        new FrogSocketClient.XMLOptions("", "//p", null, "start", "end", null, null);
+      BulkAnnotator.Config config = new BulkAnnotator.Config();
+      config.queueSize = 1;
+
+      BulkAnnotator annotator = new BulkAnnotator(frog, options, config);
+      try (Checkpoint checkpoint = new Checkpoint(out.resolve(".done"));
+           BulkAnnotator.Source source = BulkAnnotator.directory(in, ".xml")) {
+        annotator.run(source, out, checkpoint);
+      }
+      assertEquals(2, annotator.documents());
+      assertEquals(3, annotator.sentences());
+      assertEquals(1, annotator.failures());
+      String two = new String(Files.readAllBytes(out.resolve("sub/two.xml")), UTF_8);
+      assertTrue(two.contains("<p>hallo <start />Piet<end /></p>"), two);
+
+      // A second run only retries the failed document, which fails before reaching Frog.
+      int requests = fake.requests.get();
+      annotator = new BulkAnnotator(frog, options, config);
+      try (Checkpoint checkpoint = new Checkpoint(out.resolve(".done"));
+           BulkAnnotator.Source source = BulkAnnotator.directory(in, ".xml")) {
+        annotator.run(source, out, checkpoint);
+      }
+      assertEquals(0, annotator.documents());
+      assertEquals(2, annotator.skipped());
+      assertEquals(1, annotator.failures());
+      assertEquals(requests, fake.requests.get());
+    }
+  }
+
+  @Test
+  void error() throws Exception {
+    Path in = Files.createTempDirectory("bulk-in");
+    Path out = Files.createTempDirectory("bulk-out");
+    for (int i = 0; i < 3; i++) {
+      Files.write(in.resolve(i + ".xml"), "<doc><p>Henk</p></doc>".getBytes(UTF_8));
+    }
+
+    try (FakeFrog fake = new FakeFrog();
+         FrogSocketClient frog = new FrogSocketClient("localhost", fake.getPort())) {
+      // Stands in for, e.g., a StackOverflowError on a deeply nested document.
+      Map<String, String> namespaces = new HashMap<String, String>() {
+        @Override
+        public void forEach(BiConsumer<? super String, ? super String> action) {
+          throw new StackOverflowError();
+        }
+      };
+      FrogSocketClient.XMLOptions options =
+        new FrogSocketClient.XMLOptions("", "//p", namespaces, "start", "end", null, null);
+      BulkAnnotator.Config config = new BulkAnnotator.Config();
+      config.queueSize = 1;
+
+      BulkAnnotator annotator = new BulkAnnotator(frog, options, config);
+      assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+        try (Checkpoint checkpoint = new Checkpoint(out.resolve(".done"));
+             BulkAnnotator.Source source = BulkAnnotator.directory(in, ".xml")) {
+          assertThrows(StackOverflowError.class, () -> annotator.run(source, out, checkpoint));
+        }
+      });
+      assertEquals(0, annotator.documents());
+      assertEquals(3, annotator.failures());
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package nl.knaw.huc.rananostra;
+
+import opennlp.tools.util.Span;
+import org.junit.jupiter.api.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class DutchTokenizerTest {
+  private static String tokens(CharSequence text) {
+    return String.join("|", Span.spansToStrings(DutchTokenizer.INSTANCE.tokenize(text).toSpans(), text));
+  }
+
+  @Test
+  void punctuation() {
+    assertEquals("Op|12|januari|1672|schreef|Huygens|aan|zijn|zoon|Christiaan|,|die|in|Parijs|verbleef|.",
+      tokens("Op 12 januari 1672 schreef Huygens aan zijn zoon Christiaan, die in Parijs verbleef."));
+    assertEquals("Hij|zei|:|\"|Kom|(|nu|)|!|\"", tokens("Hij zei: \"Kom (nu)!\""));
+    assertEquals("Wacht|...|of|niet|?|!", tokens("Wacht... of niet?!"));
+    assertEquals("(|...|)", tokens("(...)"));
+    assertEquals("", tokens(" \t\u00a0\n"));
+  }
+
+  @Test
+  void words() {
+    assertEquals("Noord-Holland|telde|12.000|inwoners|,|3,5|procent|.",
+      tokens("Noord-Holland telde 12.000 inwoners, 3,5 procent."));
+    assertEquals("zo'n|huis|in|'s-Gravenhage|,|'s|avonds|in|'t|jaar|'80",
+      tokens("zo'n huis in 's-Gravenhage, 's avonds in 't jaar '80"));
+    assertEquals("'|hallo|'", tokens("'hallo'"));
+  }
+
+  @Test
+  void abbreviations() {
+    assertEquals("Dhr.|J.|Jansen|schreef|o.a.|bijv.|,|d.w.z.|een|brief|.",
+      tokens("Dhr. J. Jansen schreef o.a. bijv., d.w.z. een brief."));
+    assertEquals("Hij|kwam|in|jan|.", tokens("Hij kwam in jan."));
+  }
+
+  @Test
+  void offsets() {
+    String s = "xx Dag, Piet. yy";
+    CharSequence slice = StringSlice.fromTo(s, 3, 13);
+    assertEquals(asList(new Span(0, 3), new Span(3, 4), new Span(5, 9), new Span(9, 10)),
+      asList(DutchTokenizer.INSTANCE.tokenize(slice).toSpans()));
+    assertSame(slice, DutchTokenizer.INSTANCE.tokenize(slice).text); // Not copied.
+  }
+}
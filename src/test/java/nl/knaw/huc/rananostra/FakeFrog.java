@@ -0,0 +1,180 @@
+package nl.knaw.huc.rananostra;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Stand-in for a Frog TCP server, for tests that should not depend on a real Frog.
+ * <p>
+ * Speaks Frog's protocol: reads tokens, one per line, until EOT, then replies with
+ * a FoLiA document followed by READY. Empty lines separate paragraphs. Every maximal
+ * run of capitalized tokens is reported as an entity of class "per", unless entityEvery
+ * is set.
+ * <p>
+ * Also usable as a stand-alone server for load tests, see main.
+ */
+class FakeFrog implements Closeable {
+  private final ServerSocket server;
+  private final Thread acceptor;
+
+  final AtomicInteger connections = new AtomicInteger();
+  final AtomicInteger requests = new AtomicInteger();
+
+  // If set, the connection is closed after each response, as a restarting Frog would.
+  volatile boolean closeAfterResponse;
+
+  // Time taken to "process" each request, to simulate Frog's own latency.
+  volatile long latencyMillis;
+
+  // If positive, every entityEvery'th token of a paragraph is reported as a one-token entity,
+  // regardless of capitalization. Controls the entity density.
+  volatile int entityEvery;
+
+  FakeFrog() throws IOException {
+    this(0);
+  }
+
+  FakeFrog(int port) throws IOException {
+    server = new ServerSocket(port);
+    acceptor = new Thread(this::acceptLoop, "fake-frog-" + getPort());
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  int getPort() {
+    return server.getLocalPort();
+  }
+
+  private void acceptLoop() {
+    while (!server.isClosed()) {
+      try {
+        Socket conn = server.accept();
+        connections.incrementAndGet();
+        Thread t = new Thread(() -> serve(conn));
+        t.setDaemon(true);
+        t.start();
+      } catch (SocketException e) {
+        return; // Closed.
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private void serve(Socket conn) {
+    try (Socket c = conn) {
+      BufferedReader r = new BufferedReader(new InputStreamReader(c.getInputStream(), UTF_8));
+      Writer w = new OutputStreamWriter(c.getOutputStream(), UTF_8);
+
+      List<String> tokens = new ArrayList<>();
+      for (String line; (line = r.readLine()) != null; ) {
+        if (!line.equals("EOT")) {
+          tokens.add(line);
+          continue;
+        }
+        requests.incrementAndGet();
+        if (latencyMillis > 0) {
+          Thread.sleep(latencyMillis);
+        }
+        w.write(folia(tokens, entityEvery));
+        w.write("READY\n");
+        w.flush();
+        tokens.clear();
+        if (closeAfterResponse) {
+          return;
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      // Client went away.
+    }
+  }
+
+  static String folia(List<String> lines) {
+    return folia(lines, 0);
+  }
+
+  static String folia(List<String> lines, int entityEvery) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    sb.append("<FoLiA xmlns=\"http://ilk.uvt.nl/folia\" xml:id=\"untitled\" version=\"1.5\">\n");
+    sb.append("<text xml:id=\"untitled.text\">\n");
+
+    int par = 0;
+    for (int start = 0; start <= lines.size(); ) {
+      int end = start;
+      while (end < lines.size() && !lines.get(end).isEmpty()) {
+        end++;
+      }
+      if (end > start) {
+        paragraph(sb, ++par, lines.subList(start, end), entityEvery);
+      }
+      start = end + 1;
+    }
+
+    sb.append("</text>\n</FoLiA>\n");
+    return sb.toString();
+  }
+
+  private static void paragraph(StringBuilder sb, int par, List<String> tokens, int entityEvery) {
+    String s = String.format("untitled.p.%d.s.1", par);
+    sb.append(String.format("<p xml:id=\"untitled.p.%d\">\n<s xml:id=\"%s\">\n", par, s));
+    for (int i = 0; i < tokens.size(); i++) {
+      sb.append(String.format("<w xml:id=\"%s.w.%d\" class=\"WORD\"><t>%s</t></w>\n",
+        s, i + 1, escape(tokens.get(i))));
+    }
+    sb.append("<entities>\n");
+    int nent = 0;
+    for (int i = entityEvery - 1; entityEvery > 0 && i < tokens.size(); i += entityEvery) {
+      sb.append(String.format(
+        "<entity xml:id=\"%s.entities.1.entity.%d\" class=\"per\" confidence=\"0.9\">\n", s, ++nent));
+      sb.append(String.format("<wref id=\"%s.w.%d\" t=\"%s\"/>\n</entity>\n", s, i + 1, escape(tokens.get(i))));
+    }
+    for (int i = 0; entityEvery <= 0 && i < tokens.size(); ) {
+      if (!Character.isUpperCase(tokens.get(i).charAt(0))) {
+        i++;
+        continue;
+      }
+      sb.append(String.format(
+        "<entity xml:id=\"%s.entities.1.entity.%d\" class=\"per\" confidence=\"0.9\">\n", s, ++nent));
+      for (; i < tokens.size() && Character.isUpperCase(tokens.get(i).charAt(0)); i++) {
+        sb.append(String.format("<wref id=\"%s.w.%d\" t=\"%s\"/>\n", s, i + 1, escape(tokens.get(i))));
+      }
+      sb.append("</entity>\n");
+    }
+    sb.append("</entities>\n</s>\n</p>\n");
+  }
+
+  private static String escape(String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+  }
+
+  /**
+   * Runs a fake Frog server until killed.
+   * <p>
+   * Usage: FakeFrog [port [latencyMillis [entityEvery]]]
+   */
+  public static void main(String[] args) throws Exception {
+    FakeFrog frog = new FakeFrog(args.length > 0 ? Integer.parseInt(args[0]) : 9999);
+    frog.latencyMillis = args.length > 1 ? Long.parseLong(args[1]) : 0;
+    frog.entityEvery = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+    System.err.printf("Fake Frog listening on port %d%n", frog.getPort());
+    frog.acceptor.join();
+  }
+}
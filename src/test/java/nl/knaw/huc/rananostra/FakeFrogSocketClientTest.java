@@ -0,0 +1,360 @@
+package nl.knaw.huc.rananostra;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.cache.CacheStats;
+import opennlp.tools.util.Span;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Tests of FrogSocketClient against a FakeFrog, which finds capitalized words.
+class FakeFrogSocketClientTest {
+  private FakeFrog fake;
+  private FrogSocketClient frog;
+
+  @BeforeEach
+  void start() throws Exception {
+    fake = new FakeFrog();
+
+    FrogConnectionPool.Config poolConfig = new FrogConnectionPool.Config();
+    poolConfig.pipelineDepth = 2;
+    FrogSocketClient.Config config = new FrogSocketClient.Config();
+    config.concurrency = 4;
+    frog = new FrogSocketClient(new FrogCluster(
+      singletonList(new FrogCluster.Endpoint("localhost", fake.getPort())),
+      new FrogCluster.Config(), poolConfig), config);
+  }
+
+  @AfterEach
+  void stop() throws Exception {
+    frog.close();
+    fake.close();
+  }
+
+  @Test
+  void applyAllConcurrently() throws Exception {
+    List<String> sentences = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      sentences.add(String.format("dit is zin %d over Piet%d .", i, i));
+    }
+
+    List<List<Span>> results = frog.applyAll(sentences, 10);
+    assertEquals(sentences.size(), results.size());
+    for (int i = 0; i < sentences.size(); i++) {
+      List<Span> spans = results.get(i);
+      assertEquals(1, spans.size());
+      assertEquals("Piet" + i, spans.get(0).getCoveredText(sentences.get(i)));
+    }
+    assertTrue(fake.connections.get() <= 4, "concurrency capped at server setting");
+    assertEquals(50, fake.requests.get());
+  }
+
+  @Test
+  void batching() throws Exception {
+    frog.close();
+    FrogSocketClient.Config config = new FrogSocketClient.Config();
+    config.batchSize = 8;
+    config.concurrency = 2;
+    config.coalesce = false; // The empty sentences would share a request.
+    frog = new FrogSocketClient(new FrogCluster(
+      singletonList(new FrogCluster.Endpoint("localhost", fake.getPort())),
+      new FrogCluster.Config(), new FrogConnectionPool.Config()), config);
+
+    List<String> sentences = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      sentences.add(i % 7 == 0 ? "" : String.format("Jan%d zag Piet%d en Klaas.", i, i));
+    }
+
+    List<List<Span>> results = frog.applyAll(sentences);
+    for (int i = 0; i < sentences.size(); i++) {
+      String sentence = sentences.get(i);
+      List<Span> spans = results.get(i);
+      if (sentence.isEmpty()) {
+        assertEquals(0, spans.size());
+        continue;
+      }
+      assertEquals(3, spans.size());
+      assertEquals("Jan" + i, spans.get(0).getCoveredText(sentence));
+      assertEquals("Piet" + i, spans.get(1).getCoveredText(sentence));
+      assertEquals("Klaas", spans.get(2).getCoveredText(sentence));
+    }
+    assertEquals(8, fake.requests.get()); // Two chunks of 25 sentences.
+  }
+
+  @Test
+  void lingerBatching() throws Exception {
+    frog.close();
+    FrogSocketClient.Config config = new FrogSocketClient.Config();
+    config.batchSize = 4;
+    config.lingerMillis = 1000;
+    frog = new FrogSocketClient(new FrogCluster(
+      singletonList(new FrogCluster.Endpoint("localhost", fake.getPort())),
+      new FrogCluster.Config(), new FrogConnectionPool.Config()), config);
+
+    List<String> sentences = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      sentences.add(String.format("hallo Piet%d", i));
+    }
+    // Four concurrent callers fill a batch before the linger time is up.
+    ExecutorService callers = Executors.newFixedThreadPool(sentences.size());
+    try {
+      List<Future<List<Span>>> results = new ArrayList<>();
+      for (String s : sentences) {
+        results.add(callers.submit(() -> frog.apply(s)));
+      }
+      for (int i = 0; i < sentences.size(); i++) {
+        List<Span> spans = results.get(i).get();
+        assertEquals(1, spans.size());
+        assertEquals("Piet" + i, spans.get(0).getCoveredText(sentences.get(i)));
+      }
+    } finally {
+      callers.shutdown();
+    }
+    assertEquals(1, fake.requests.get());
+
+    // A lone sentence is sent after lingering.
+    assertEquals(1, frog.apply("alleen Henk").size());
+    assertEquals(2, fake.requests.get());
+  }
+
+  @Test
+  void cache() throws Exception {
+    frog.close();
+    FrogSocketClient.Config config = new FrogSocketClient.Config();
+    config.cacheSize = 2;
+    frog = new FrogSocketClient(new FrogCluster(
+      singletonList(new FrogCluster.Endpoint("localhost", fake.getPort())),
+      new FrogCluster.Config(), new FrogConnectionPool.Config()), config);
+
+    assertEquals(1, frog.apply("hallo Henk").size());
+    // Same tokens at different offsets.
+    String text = "  hallo   Henk";
+    List<Span> spans = frog.apply(text);
+    assertEquals(1, spans.size());
+    assertEquals("Henk", spans.get(0).getCoveredText(text));
+    assertEquals(1, fake.requests.get());
+
+    List<List<Span>> results = frog.applyAll(asList("dag Piet", "hallo Henk", "dag Klaas"));
+    assertEquals("Klaas", results.get(2).get(0).getCoveredText("dag Klaas"));
+    assertEquals(3, fake.requests.get());
+
+    CacheStats stats = frog.cacheStats();
+    assertEquals(2, stats.hitCount());
+    assertEquals(3, stats.missCount());
+    assertEquals(1, stats.evictionCount());
+  }
+
+  @Test
+  void timings() throws Exception {
+    FrogSocketClient.XMLOptions options =
+      new FrogSocketClient.XMLOptions("<text><p>hallo Henk</p><p>dag Piet</p></text>", "//p", null,
+        "start", "end", null, null);
+    options.streaming = true;
+
+    Timings timings = new Timings();
+    frog.applyXML(options, timings);
+    for (Timings.Stage stage : new Timings.Stage[]{Timings.Stage.TOKENIZE, Timings.Stage.CONNECT,
+      Timings.Stage.FROG, Timings.Stage.FOLIA_PARSE, Timings.Stage.MILESTONES}) {
+      assertTrue(timings.nanos(stage) > 0, stage.metricName);
+    }
+    assertEquals(0, timings.nanos(Timings.Stage.XML_PARSE)); // Not measured when streaming.
+
+    String header = timings.toServerTiming(12_345_678);
+    assertTrue(header.startsWith("tokenize;dur="), header);
+    assertTrue(header.endsWith(", total;dur=12.346"), header);
+  }
+
+  @Test
+  void deadline() throws Exception {
+    FrogSocketClient.XMLOptions options =
+      new FrogSocketClient.XMLOptions("<text><p>hallo Henk</p></text>", "//p", null, "start", "end", null, null);
+    options.streaming = true;
+    options.deadlineMillis = 100L;
+    fake.latencyMillis = 2000;
+
+    long start = System.nanoTime();
+    assertThrows(DeadlineExceededException.class, () -> frog.applyXML(options));
+    assertTrue(System.nanoTime() - start < 1_000_000_000L, "Frog call cancelled at the deadline");
+
+    // The timed-out connection is not reused, so the next response is not the late one.
+    fake.latencyMillis = 0;
+    assertEquals(1, frog.apply("dag Piet").size());
+  }
+
+  @Test
+  void batchedDeadline() throws Exception {
+    frog.close();
+    FrogSocketClient.Config config = new FrogSocketClient.Config();
+    config.batchSize = 4;
+    config.lingerMillis = 2000;
+    frog = new FrogSocketClient(new FrogCluster(
+      singletonList(new FrogCluster.Endpoint("localhost", fake.getPort())),
+      new FrogCluster.Config(), new FrogConnectionPool.Config()), config);
+
+    // A lone sentence lingers in its batch for longer than the deadline allows.
+    long start = System.nanoTime();
+    TokenizedText tokens = TokenizedText.of("dag Henk", asList(new Span(0, 3), new Span(4, 8)));
+    assertThrows(DeadlineExceededException.class, () -> frog.apply(tokens, new Timings(100)));
+    assertTrue(System.nanoTime() - start < 1_000_000_000L, "gave up waiting at the deadline");
+  }
+
+  @Test
+  void coalesce() throws Exception {
+    fake.latencyMillis = 200;
+    ExecutorService pool = Executors.newFixedThreadPool(10);
+    try {
+      CountDownLatch ready = new CountDownLatch(10);
+      List<Future<List<Span>>> results = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        results.add(pool.submit(() -> {
+          ready.countDown();
+          ready.await();
+          return frog.apply("dag Henk");
+        }));
+      }
+      for (Future<List<Span>> r : results) {
+        assertEquals(singletonList(new Span(4, 8, "per")), r.get());
+      }
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(1, fake.requests.get());
+    assertEquals(9, frog.coalesced());
+
+    // Once done, the sentence is sent again.
+    frog.apply("dag Henk");
+    assertEquals(2, fake.requests.get());
+  }
+
+  @Test
+  void coalesceAfterDeadline() throws Exception {
+    fake.latencyMillis = 300;
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> first = pool.submit(() ->
+        frog.annotate(singletonList("dag Henk"), 1, null, null, new Timings(100)));
+      Thread.sleep(30);
+      // Waits for the first call, which gives up at its deadline, then sends the sentence itself.
+      assertEquals(singletonList(new Span(4, 8, "per")), frog.apply("dag Henk"));
+      ExecutionException e = assertThrows(ExecutionException.class, first::get);
+      assertTrue(e.getCause() instanceof DeadlineExceededException, e.toString());
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(1, frog.coalesced());
+    assertEquals(2, fake.requests.get());
+  }
+
+  @Test
+  void splitSentences() throws Exception {
+    String text = "Ik zag Henk. Hij zag Piet en Klaas! Jan ook?";
+    List<Span> expected = asList(new Span(0, 2, "per"), new Span(7, 11, "per"), new Span(13, 16, "per"),
+      new Span(21, 25, "per"), new Span(29, 34, "per"), new Span(36, 39, "per"));
+
+    assertEquals(expected, frog.annotate(singletonList(text), 4, null, false, new Timings())[0].toSpans());
+    assertEquals(1, fake.requests.get());
+    assertEquals(expected, frog.annotate(singletonList(text), 4, null, true, new Timings())[0].toSpans());
+    assertEquals(1 + 3, fake.requests.get());
+  }
+
+  @Test
+  void applyEach() throws Exception {
+    ObjectReader reader = new ObjectMapper().readerFor(FrogSocketClient.TextInput.class);
+    String ndjson = "\"hallo Henk\"\n{\"text\": \"dag Piet\", \"tokens\": [[0, 3], [4, 8]]}\n" +
+      "{\"text\": \"EOT\"}\n\"Jan en Piet\"\n";
+    String array = "[\"hallo Henk\", {\"text\": \"dag Piet\", \"tokens\": [[0, 3], [4, 8]]}, " +
+      "{\"text\": \"EOT\"}, \"Jan en Piet\"]";
+
+    for (String input : asList(ndjson, array)) {
+      Map<Integer, List<Span>> results = new ConcurrentHashMap<>();
+      Map<Integer, Exception> errors = new ConcurrentHashMap<>();
+      MappingIterator<FrogSocketClient.TextInput> texts = reader.readValues(input);
+      frog.applyEach(texts, 2, null, (i, spans, error) -> {
+        if (error != null) {
+          errors.put(i, error);
+        } else {
+          results.put(i, spans);
+        }
+      });
+
+      assertEquals(3, results.size());
+      assertEquals(singletonList(new Span(6, 10, "per")), results.get(0));
+      assertEquals(singletonList(new Span(4, 8, "per")), results.get(1));
+      assertEquals(asList(new Span(0, 3, "per"), new Span(7, 11, "per")), results.get(3));
+      assertTrue(errors.get(2) instanceof IllegalArgumentException);
+    }
+  }
+
+  @Test
+  void applyAllFailure() {
+    List<String> sentences = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      sentences.add(i == 13 ? "wat is een EOT ?" : "gewone zin");
+    }
+    assertThrows(IllegalArgumentException.class, () -> frog.applyAll(sentences));
+  }
+
+  @Test
+  void copyXMLOptions() throws Exception {
+    FrogSocketClient.XMLOptions options = new FrogSocketClient.XMLOptions("<p>Henk</p>", "//p",
+      singletonMap("tei", "http://www.tei-c.org/ns/1.0"), "start", "end", "type", "text");
+    options.concurrency = 3;
+    options.streaming = true;
+    options.deadlineMillis = 1000L;
+    options.tokenizer = FrogSocketClient.Tokenizer.RULES;
+    options.splitSentences = true;
+
+    FrogSocketClient.XMLOptions copy = new FrogSocketClient.XMLOptions(options);
+    for (Field f : FrogSocketClient.XMLOptions.class.getFields()) {
+      Object value = f.get(options);
+      assertTrue(value != null && !Boolean.FALSE.equals(value), f.getName() + " not set in test");
+      assertEquals(value, f.get(copy), f.getName());
+    }
+  }
+
+  @Test
+  void nio() throws Exception {
+    FrogSocketClient.Config config = new FrogSocketClient.Config();
+    config.concurrency = 4;
+    config.batchSize = 2;
+    config.nio = new FrogNioClient.Config();
+    config.nio.connectionsPerBackend = 1;
+    try (FrogSocketClient client = new FrogSocketClient(new FrogCluster(
+      singletonList(new FrogCluster.Endpoint("localhost", fake.getPort())),
+      new FrogCluster.Config(), new FrogConnectionPool.Config()), config)) {
+      List<String> sentences = new ArrayList<>();
+      for (int i = 0; i < 50; i++) {
+        sentences.add(String.format("dit is zin %d over Piet%d .", i, i));
+      }
+
+      List<List<Span>> results = client.applyAll(sentences);
+      for (int i = 0; i < sentences.size(); i++) {
+        assertEquals(1, results.get(i).size());
+        assertEquals("Piet" + i, results.get(i).get(0).getCoveredText(sentences.get(i)));
+      }
+      // The concurrent chunks share the NIO client's connection instead of each borrowing one.
+      assertEquals(1, fake.connections.get());
+      assertEquals(25, fake.requests.get());
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package nl.knaw.huc.rananostra;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FoliaParserTest {
+  private static TokenSpans parse(String resource) throws IOException {
+    try (InputStream in = FoliaParserTest.class.getResourceAsStream("/folia/" + resource)) {
+      return FoliaParser.parse(in);
+    }
+  }
+
+  @Test
+  void singleEntity() throws Exception {
+    TokenSpans result = parse("henk.xml");
+    assertEquals(9, result.ntokens);
+    assertEquals(1, result.size());
+    assertEquals(0, result.first(0));
+    assertEquals(0, result.last(0));
+    assertEquals("per", result.type(0));
+  }
+
+  @Test
+  void multipleSentences() throws Exception {
+    TokenSpans result = parse("haanstra.xml");
+    assertEquals(11, result.ntokens);
+
+    // The classless MWU entity is skipped.
+    assertEquals(2, result.size());
+    assertEquals(3, result.first(0));
+    assertEquals(4, result.last(0));
+    assertEquals("per", result.type(0));
+    assertEquals(9, result.first(1));
+    assertEquals(9, result.last(1));
+    assertEquals("loc", result.type(1));
+  }
+
+  @Test
+  void invalid() {
+    assertThrows(IOException.class, () -> FoliaParser.parse(stream("<FoLiA")));
+    assertThrows(IOException.class, () -> FoliaParser.parse(stream(
+      "<FoLiA xmlns='http://ilk.uvt.nl/folia'><entity class='per'><wref id='x'/></entity></FoLiA>")));
+  }
+
+  private static InputStream stream(String s) {
+    return new ByteArrayInputStream(s.getBytes(UTF_8));
+  }
+}
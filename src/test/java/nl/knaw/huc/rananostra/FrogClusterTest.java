@@ -0,0 +1,230 @@
+package nl.knaw.huc.rananostra;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrogClusterTest {
+  private FakeFrog a;
+  private FakeFrog b;
+
+  @BeforeEach
+  void startFrogs() throws Exception {
+    a = new FakeFrog();
+    b = new FakeFrog();
+  }
+
+  @AfterEach
+  void stopFrogs() throws Exception {
+    a.close();
+    b.close();
+  }
+
+  private FrogCluster cluster(FrogCluster.Config config) {
+    return new FrogCluster(asList(new FrogCluster.Endpoint("localhost", a.getPort()),
+      new FrogCluster.Endpoint("localhost", b.getPort())), config, new FrogConnectionPool.Config());
+  }
+
+  @Test
+  void spreadsLoad() throws Exception {
+    FrogCluster.Config config = new FrogCluster.Config();
+    config.healthCheckMillis = 0;
+    try (FrogCluster cluster = cluster(config)) {
+      for (int i = 0; i < 10; i++) {
+        List<TokenSpans> responses = cluster.exchange(singletonList("Henk\nEOT\n"));
+        assertEquals("per", responses.get(0).type(0));
+      }
+    }
+    assertEquals(5, a.requests.get());
+    assertEquals(5, b.requests.get());
+  }
+
+  @Test
+  void ejectsFailingBackend() throws Exception {
+    FrogCluster.Config config = new FrogCluster.Config();
+    config.healthCheckMillis = 0;
+    config.failureThreshold = 2;
+    config.ejectMillis = 60_000;
+    try (FrogCluster cluster = cluster(config)) {
+      b.close();
+      for (int i = 0; i < 10; i++) {
+        cluster.exchange(singletonList("Henk\nEOT\n")); // Retried on a if b fails.
+      }
+      FrogBackend dead = cluster.backends().get(1);
+      synchronized (cluster) {
+        assertTrue(dead.ejected);
+        assertEquals(2, dead.failures); // Not tried again after ejection.
+      }
+    }
+    assertEquals(10, a.requests.get());
+  }
+
+  @Test
+  void healthCheck() throws Exception {
+    FrogCluster.Config config = new FrogCluster.Config();
+    config.healthCheckMillis = 10;
+    try (FrogCluster cluster = cluster(config)) {
+      b.close();
+      FrogBackend live = cluster.backends().get(0);
+      FrogBackend dead = cluster.backends().get(1);
+      for (int i = 0; i < 100; i++) {
+        synchronized (cluster) {
+          if (dead.ejected) {
+            break;
+          }
+        }
+        Thread.sleep(10);
+      }
+      synchronized (cluster) {
+        assertTrue(dead.ejected);
+        assertFalse(live.ejected);
+      }
+    }
+  }
+
+  @Test
+  void adaptiveLimit() throws Exception {
+    FrogCluster.Config config = new FrogCluster.Config();
+    config.healthCheckMillis = 0;
+    try (FrogCluster cluster = new FrogCluster(singletonList(new FrogCluster.Endpoint("localhost", a.getPort())),
+      config, new FrogConnectionPool.Config())) {
+      FrogBackend backend = cluster.backends().get(0);
+      a.latencyMillis = 2;
+      for (int i = 0; i < 10; i++) {
+        cluster.exchange(singletonList("Henk\nEOT\n"));
+      }
+      synchronized (cluster) {
+        assertEquals(config.maxInFlight, backend.limit());
+      }
+
+      // Frog slows down: the limit drops, by one step per round trip.
+      a.latencyMillis = 50;
+      for (int i = 0; i < 10; i++) {
+        cluster.exchange(singletonList("Henk\nEOT\n"));
+      }
+      synchronized (cluster) {
+        assertTrue(backend.limit() < config.maxInFlight, "limit " + backend.limit());
+      }
+    }
+  }
+
+  @Test
+  void rejectsWhenBusy() throws Exception {
+    FrogCluster.Config config = new FrogCluster.Config();
+    config.healthCheckMillis = 0;
+    config.maxInFlight = 1;
+    config.maxQueueMillis = 50;
+    a.latencyMillis = 500;
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    try (FrogCluster cluster = new FrogCluster(singletonList(new FrogCluster.Endpoint("localhost", a.getPort())),
+      config, new FrogConnectionPool.Config())) {
+      Future<?> first = pool.submit(() -> cluster.exchange(singletonList("Henk\nEOT\n")));
+      Thread.sleep(100);
+      assertThrows(FrogBusyException.class, () -> cluster.exchange(singletonList("Piet\nEOT\n")));
+      first.get();
+      assertEquals(1, cluster.rejected());
+      assertEquals(1, a.requests.get());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  void hedgesSlowRequests() throws Exception {
+    FrogCluster.Config config = new FrogCluster.Config();
+    config.healthCheckMillis = 0;
+    config.hedge = true;
+    config.hedgeBudgetPercent = 100;
+    a.latencyMillis = 1;
+    b.latencyMillis = 1;
+    try (FrogCluster cluster = cluster(config)) {
+      for (int i = 0; i < 100; i++) { // Enough to estimate the hedge delay.
+        cluster.exchange(singletonList("Henk\nEOT\n"));
+      }
+
+      // b gets stuck: requests sent there are answered by a.
+      b.latencyMillis = 5_000;
+      long start = System.nanoTime();
+      for (int i = 0; i < 4; i++) {
+        List<TokenSpans> responses = cluster.exchange(singletonList("Henk\nEOT\n"));
+        assertEquals("per", responses.get(0).type(0));
+      }
+      assertTrue(System.nanoTime() - start < 2_000_000_000L);
+      assertTrue(cluster.hedgesWon() >= 2, "hedges won: " + cluster.hedgesWon());
+      assertTrue(cluster.hedges() >= cluster.hedgesWon());
+      synchronized (cluster) {
+        assertFalse(cluster.backends().get(1).ejected);
+      }
+    }
+  }
+
+  @Test
+  void hedgesWhileHealthChecksHang() throws Exception {
+    FrogCluster.Config config = new FrogCluster.Config();
+    config.healthCheckMillis = 10;
+    config.healthCheckTimeoutMillis = 10_000;
+    config.failureThreshold = 1;
+    config.ejectMillis = 60_000;
+    config.hedge = true;
+    config.hedgeBudgetPercent = 100;
+    a.latencyMillis = 1;
+    b.latencyMillis = 1;
+    int port;
+    try (FakeFrog c = new FakeFrog()) {
+      port = c.getPort();
+    }
+    try (FrogCluster cluster = new FrogCluster(asList(new FrogCluster.Endpoint("localhost", a.getPort()),
+      new FrogCluster.Endpoint("localhost", b.getPort()), new FrogCluster.Endpoint("localhost", port)),
+      config, new FrogConnectionPool.Config())) {
+      for (int i = 0; i < 100; i++) { // Also gets the third backend ejected.
+        cluster.exchange(singletonList("Henk\nEOT\n"));
+      }
+      synchronized (cluster) {
+        assertTrue(cluster.backends().get(2).ejected);
+      }
+
+      // The third backend comes back but never answers, and b gets stuck: health checks
+      // hang on both, as many as there are housekeeping threads.
+      try (ServerSocket silent = new ServerSocket(port)) {
+        b.latencyMillis = 5_000;
+        Thread.sleep(100);
+        long start = System.nanoTime();
+        for (int i = 0; i < 8; i++) {
+          List<TokenSpans> responses = cluster.exchange(singletonList("Henk\nEOT\n"));
+          assertEquals("per", responses.get(0).type(0));
+        }
+        assertTrue(System.nanoTime() - start < 2_000_000_000L);
+        assertTrue(cluster.hedgesWon() >= 1, "hedges won: " + cluster.hedgesWon());
+      }
+    }
+  }
+
+  @Test
+  void readTimeoutNotRetried() throws Exception {
+    FrogCluster.Config config = new FrogCluster.Config();
+    config.healthCheckMillis = 0;
+    FrogConnectionPool.Config poolConfig = new FrogConnectionPool.Config();
+    poolConfig.readTimeoutMillis = 100;
+    try (FrogCluster cluster = new FrogCluster(singletonList(new FrogCluster.Endpoint("localhost", a.getPort())),
+      config, poolConfig)) {
+      cluster.exchange(singletonList("Henk\nEOT\n")); // Leaves a connection in the pool.
+      a.latencyMillis = 1_000;
+      assertThrows(SocketTimeoutException.class, () -> cluster.exchange(singletonList("Henk\nEOT\n")));
+      assertEquals(2, a.requests.get());
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package nl.knaw.huc.rananostra;
+
+import opennlp.tools.util.Span;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrogConnectionPoolTest {
+  private FakeFrog frog;
+
+  @BeforeEach
+  void startFrog() throws Exception {
+    frog = new FakeFrog();
+  }
+
+  @AfterEach
+  void stopFrog() throws Exception {
+    frog.close();
+  }
+
+  private FrogConnectionPool pool(int maxConnections, long maxIdleMillis) {
+    FrogConnectionPool.Config config = new FrogConnectionPool.Config();
+    config.maxConnections = maxConnections;
+    config.maxIdleMillis = maxIdleMillis;
+    return new FrogConnectionPool("localhost", frog.getPort(), config);
+  }
+
+  @Test
+  void reuse() throws Exception {
+    try (FrogConnectionPool pool = pool(4, 0)) {
+      FrogConnection conn = pool.borrow();
+      conn.exchange(singletonList("Hallo\nEOT\n"));
+      pool.release(conn, true);
+
+      FrogConnection again = pool.borrow();
+      assertSame(conn, again);
+      assertTrue(again.isReused());
+      again.exchange(singletonList("Hallo\nEOT\n"));
+      pool.release(again, true);
+    }
+    assertEquals(1, frog.connections.get());
+    assertEquals(2, frog.requests.get());
+  }
+
+  @Test
+  void pipelining() throws Exception {
+    try (FrogConnectionPool pool = pool(1, 0)) {
+      FrogConnection conn = pool.borrow();
+      List<TokenSpans> responses =
+        conn.exchange(asList("Henk\nEOT\n", "Ingrid\nzag\nPiet\nEOT\n", "niemand\nEOT\n"));
+      pool.release(conn, true);
+
+      assertEquals(3, responses.size());
+      assertEquals(1, responses.get(0).size());
+      assertEquals(2, responses.get(1).size());
+      assertEquals(2, responses.get(1).first(1));
+      assertEquals(0, responses.get(2).size());
+    }
+    assertEquals(1, frog.connections.get());
+  }
+
+  // Requests and responses that are larger than the socket buffers must not deadlock.
+  @Test
+  void largePipeline() {
+    char[] word = new char[1000];
+    Arrays.fill(word, 'o');
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 4000; i++) {
+      sb.append(word).append('\n');
+    }
+    String request = sb.append("Henk\nEOT\n").toString();
+
+    List<TokenSpans> responses = assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+      try (FrogConnectionPool pool = pool(1, 0)) {
+        FrogConnection conn = pool.borrow();
+        List<TokenSpans> r = conn.exchange(Collections.nCopies(8, request));
+        pool.release(conn, true);
+        return r;
+      }
+    });
+    assertEquals(8, responses.size());
+    for (TokenSpans r : responses) {
+      assertEquals(1, r.size());
+      assertEquals(4000, r.first(0));
+    }
+  }
+
+  @Test
+  void bounded() throws Exception {
+    try (FrogConnectionPool pool = pool(2, 0)) {
+      FrogConnection a = pool.borrow();
+      FrogConnection b = pool.borrow();
+
+      CompletableFuture<FrogConnection> c = CompletableFuture.supplyAsync(() -> {
+        try {
+          return pool.borrow();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      assertThrows(TimeoutException.class, () -> c.get(100, TimeUnit.MILLISECONDS));
+
+      pool.release(a, true);
+      assertSame(a, c.get(1, TimeUnit.SECONDS));
+      pool.release(b, false);
+      pool.release(a, true);
+    }
+  }
+
+  @Test
+  void idleEviction() throws Exception {
+    try (FrogConnectionPool pool = pool(2, 20)) {
+      FrogConnection conn = pool.borrow();
+      pool.release(conn, true);
+      assertEquals(1, pool.idleCount());
+
+      for (int i = 0; i < 100 && pool.idleCount() > 0; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(0, pool.idleCount());
+    }
+  }
+
+  @Test
+  void brokenConnection() throws Exception {
+    frog.closeAfterResponse = true;
+    try (FrogSocketClient client = new FrogSocketClient("localhost", frog.getPort())) {
+      for (int i = 0; i < 3; i++) {
+        String text = "hallo Henk";
+        List<Span> names = client.apply(text, asList(new Span(0, 5), new Span(6, 10)));
+        assertEquals(1, names.size());
+        assertEquals("Henk", names.get(0).getCoveredText(text));
+      }
+    }
+    assertEquals(3, frog.connections.get());
+  }
+}
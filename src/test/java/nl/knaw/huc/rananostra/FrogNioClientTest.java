@@ -0,0 +1,138 @@
+package nl.knaw.huc.rananostra;
+
+import opennlp.tools.util.Span;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrogNioClientTest {
+  private static FrogNioClient client(FakeFrog fake, FrogNioClient.Config config) throws IOException {
+    return new FrogNioClient(singletonList(new FrogCluster.Endpoint("localhost", fake.getPort())), config);
+  }
+
+  @Test
+  void manyInFlight() throws Exception {
+    try (FakeFrog fake1 = new FakeFrog(); FakeFrog fake2 = new FakeFrog()) {
+      fake1.latencyMillis = 1;
+      FrogNioClient.Config config = new FrogNioClient.Config();
+      config.connectionsPerBackend = 2;
+      try (FrogNioClient frog = new FrogNioClient(asList(
+        new FrogCluster.Endpoint("localhost", fake1.getPort()),
+        new FrogCluster.Endpoint("localhost", fake2.getPort())), config)) {
+
+        List<String> sentences = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+          // Long enough sentences make responses span several reads.
+          StringBuilder sb = new StringBuilder("dit is zin ").append(i);
+          for (int j = 0; j < i % 50; j++) {
+            sb.append(" en nog meer");
+          }
+          sentences.add(sb.append(" over Piet").append(i).append(" .").toString());
+        }
+
+        List<List<Span>> results = frog.applyAll(sentences).get();
+        assertEquals(sentences.size(), results.size());
+        for (int i = 0; i < sentences.size(); i++) {
+          List<Span> spans = results.get(i);
+          assertEquals(1, spans.size());
+          assertEquals("Piet" + i, spans.get(0).getCoveredText(sentences.get(i)));
+        }
+        assertEquals(4, fake1.connections.get() + fake2.connections.get());
+        assertTrue(fake1.requests.get() > 0 && fake2.requests.get() > 0);
+      }
+    }
+  }
+
+  @Test
+  void maxInFlight() throws Exception {
+    try (FakeFrog fake = new FakeFrog()) {
+      fake.latencyMillis = 300;
+      FrogNioClient.Config config = new FrogNioClient.Config();
+      config.maxInFlight = 2;
+      try (FrogNioClient frog = client(fake, config)) {
+        List<CompletableFuture<List<Span>>> results = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+          results.add(frog.apply("hallo Henk"));
+        }
+        Thread.sleep(150);
+        // The other four connections get nothing until a request is answered.
+        assertEquals(2, fake.requests.get());
+        for (CompletableFuture<List<Span>> r : results) {
+          assertEquals(1, r.get().size());
+        }
+        assertEquals(6, fake.requests.get());
+      }
+    }
+  }
+
+  @Test
+  void deadline() throws Exception {
+    try (FakeFrog fake = new FakeFrog()) {
+      fake.latencyMillis = 2000;
+      FrogNioClient.Config config = new FrogNioClient.Config();
+      config.maxInFlight = 1;
+      try (FrogNioClient frog = client(fake, config)) {
+        long start = System.nanoTime();
+        // The second request waits for a slot that the first holds past the deadline.
+        assertThrows(DeadlineExceededException.class,
+          () -> frog.exchange(asList("Henk\nEOT\n", "Piet\nEOT\n"), new Timings(100)));
+        assertTrue(System.nanoTime() - start < 1_000_000_000L);
+      }
+    }
+  }
+
+  @Test
+  void readTimeout() throws Exception {
+    try (FakeFrog fake = new FakeFrog()) {
+      fake.latencyMillis = 5000;
+      FrogNioClient.Config config = new FrogNioClient.Config();
+      config.connectionsPerBackend = 1;
+      config.readTimeoutMillis = 100;
+      try (FrogNioClient frog = client(fake, config)) {
+        ExecutionException e = assertThrows(ExecutionException.class, frog.apply("hallo Henk")::get);
+        assertTrue(e.getCause() instanceof SocketTimeoutException, e.getCause().toString());
+        assertEquals(2, fake.connections.get()); // Tried once more on a new connection.
+      }
+    }
+  }
+
+  @Test
+  void reconnects() throws Exception {
+    try (FakeFrog fake = new FakeFrog()) {
+      fake.closeAfterResponse = true;
+      FrogNioClient.Config config = new FrogNioClient.Config();
+      config.connectionsPerBackend = 1;
+      try (FrogNioClient frog = client(fake, config)) {
+        for (int i = 0; i < 3; i++) {
+          assertEquals(1, frog.apply("hallo Henk").get().size());
+        }
+        assertEquals(3, fake.connections.get());
+      }
+    }
+  }
+
+  @Test
+  void noFrog() throws Exception {
+    int port;
+    try (FakeFrog fake = new FakeFrog()) {
+      port = fake.getPort();
+    }
+    try (FrogNioClient frog = new FrogNioClient(
+      singletonList(new FrogCluster.Endpoint("localhost", port)), new FrogNioClient.Config())) {
+      CompletableFuture<List<Span>> result = frog.apply("hallo Henk");
+      ExecutionException e = assertThrows(ExecutionException.class, result::get);
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+}
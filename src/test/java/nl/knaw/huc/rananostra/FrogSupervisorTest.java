@@ -0,0 +1,90 @@
+package nl.knaw.huc.rananostra;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrogSupervisorTest {
+  // Runs FakeFrog in a JVM of its own, standing in for the frog executable.
+  private static FrogSupervisor.Config config(int minProcesses, int maxProcesses, long latencyMillis) {
+    FrogSupervisor.Config config = new FrogSupervisor.Config();
+    config.command = asList(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+      "-cp", System.getProperty("java.class.path"), FakeFrog.class.getName(), "{port}",
+      Long.toString(latencyMillis));
+    config.minProcesses = minProcesses;
+    config.maxProcesses = maxProcesses;
+    config.checkMillis = 50;
+    return config;
+  }
+
+  private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+    for (int i = 0; i < 600 && !condition.getAsBoolean(); i++) {
+      Thread.sleep(50);
+    }
+    assertTrue(condition.getAsBoolean(), what);
+  }
+
+  @Test
+  void restartsCrashedProcess() throws Exception {
+    FrogCluster.Config clusterConfig = new FrogCluster.Config();
+    clusterConfig.healthCheckMillis = 0;
+    try (FrogSupervisor supervisor = new FrogSupervisor(config(1, 1, 0), clusterConfig,
+      new FrogConnectionPool.Config(), new MetricRegistry())) {
+      supervisor.start();
+      await("Frog started", () -> supervisor.ports().size() == 1);
+      int port = supervisor.ports().get(0);
+      assertEquals("per", supervisor.cluster().exchange(singletonList("Henk\nEOT\n")).get(0).type(0));
+
+      supervisor.kill(port);
+      await("Frog restarted", () -> supervisor.ports().size() == 1 && supervisor.ports().get(0) != port);
+      assertNotEquals(port, (int) supervisor.ports().get(0));
+      assertEquals(1, supervisor.cluster().size());
+      assertEquals("per", supervisor.cluster().exchange(singletonList("Henk\nEOT\n")).get(0).type(0));
+    }
+  }
+
+  @Test
+  void scalesWithLoad() throws Exception {
+    FrogCluster.Config clusterConfig = new FrogCluster.Config();
+    clusterConfig.healthCheckMillis = 0;
+    clusterConfig.adaptiveLimit = false;
+    clusterConfig.maxInFlight = 1;
+    clusterConfig.maxQueueMillis = 0;
+    FrogSupervisor.Config config = config(1, 2, 100);
+    config.idleMillis = 200;
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try (FrogSupervisor supervisor = new FrogSupervisor(config, clusterConfig, new FrogConnectionPool.Config(),
+      new MetricRegistry())) {
+      supervisor.start();
+      await("Frog started", () -> supervisor.ports().size() == 1);
+
+      // Requests queue up behind the single process, so a second one is started.
+      List<Future<List<TokenSpans>>> results = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        results.add(pool.submit(() -> supervisor.cluster().exchange(singletonList("Henk\nEOT\n"))));
+      }
+      await("second Frog started", () -> supervisor.ports().size() == 2);
+      for (Future<List<TokenSpans>> r : results) {
+        assertEquals("per", r.get().get(0).type(0));
+      }
+
+      await("second Frog stopped", () -> supervisor.ports().size() == 1);
+      assertEquals(1, supervisor.cluster().size());
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
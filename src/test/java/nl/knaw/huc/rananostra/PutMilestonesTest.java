@@ -0,0 +1,96 @@
+package nl.knaw.huc.rananostra;
+
+import nu.xom.Element;
+import nu.xom.Node;
+import opennlp.tools.util.Span;
+import org.junit.jupiter.api.Test;
+
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class PutMilestonesTest {
+  private static final FrogSocketClient.XMLOptions OPTIONS =
+    new FrogSocketClient.XMLOptions("", "", null, "start", "end", "type", "text");
+
+  private static String name(Node node) {
+    return ((Element) node).getLocalName();
+  }
+
+  @Test
+  void mixedContent() {
+    Element p = new Element("p");
+    p.appendChild("Hallo, Rana ");
+    Element lang = new Element("lang");
+    lang.appendChild("Nostra!");
+    p.appendChild(lang);
+
+    new PutMilestones(OPTIONS, Entities.of(singletonList(new Span(7, 18, "per")))).traverse(p);
+
+    assertEquals("Hallo, Rana Nostra!", p.getValue());
+    assertEquals(4, p.getChildCount());
+    Element start = (Element) p.getChild(1);
+    assertEquals("start", start.getLocalName());
+    assertEquals("per", start.getAttributeValue("type"));
+    assertEquals("Rana Nostra", start.getAttributeValue("text"));
+    assertEquals("Rana ", p.getChild(2).getValue());
+
+    assertEquals(3, lang.getChildCount());
+    assertEquals("Nostra", lang.getChild(0).getValue());
+    assertEquals("end", name(lang.getChild(1)));
+    assertEquals("!", lang.getChild(2).getValue());
+  }
+
+  @Test
+  void untouchedText() {
+    Element p = new Element("p");
+    p.appendChild("a ");
+    Element b = new Element("b");
+    b.appendChild("x");
+    p.appendChild(b);
+    p.appendChild(" Henk");
+    Node first = p.getChild(0);
+    Node x = b.getChild(0);
+
+    new PutMilestones(OPTIONS, Entities.of(singletonList(new Span(4, 8, "per")))).traverse(p);
+
+    assertSame(first, p.getChild(0));
+    assertSame(b, p.getChild(1));
+    assertSame(x, b.getChild(0));
+    assertEquals(6, p.getChildCount());
+    assertEquals(" ", p.getChild(2).getValue());
+    assertEquals("start", name(p.getChild(3)));
+    assertEquals("Henk", p.getChild(4).getValue());
+    assertEquals("end", name(p.getChild(5)));
+  }
+
+  @Test
+  void wideElement() {
+    int n = 20000;
+    Element p = new Element("p");
+    Entities spans = new Entities(n);
+    for (int i = 0; i < n; i++) {
+      p.appendChild("Jan ");
+      p.appendChild(new Element("lb"));
+      spans.add(4 * i, 4 * i + 3, Entities.typeId("per"));
+    }
+
+    new PutMilestones(OPTIONS, spans).traverse(p);
+
+    // A milestone that falls between two text nodes goes at the end of the first, so every
+    // start but the first comes before an <lb/>, not after it.
+    assertEquals(5 * n, p.getChildCount());
+    assertEquals("start", name(p.getChild(0)));
+    for (int i = 0; i < n; i++) {
+      int j = 1 + 5 * i;
+      assertEquals("Jan", p.getChild(j).getValue());
+      assertEquals("end", name(p.getChild(j + 1)));
+      assertEquals(" ", p.getChild(j + 2).getValue());
+      if (i < n - 1) {
+        assertEquals("start", name(p.getChild(j + 3)));
+        assertEquals("lb", name(p.getChild(j + 4)));
+      }
+    }
+    assertEquals("lb", name(p.getChild(5 * n - 1)));
+  }
+}
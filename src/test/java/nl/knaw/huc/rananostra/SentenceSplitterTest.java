@@ -0,0 +1,41 @@
+package nl.knaw.huc.rananostra;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SentenceSplitterTest {
+  // Returns the sentences of text, as tokenized by DutchTokenizer, with their tokens joined by spaces.
+  private static List<String> sentences(String text) {
+    TokenizedText tokens = DutchTokenizer.INSTANCE.tokenize(text);
+    int[] starts = SentenceSplitter.RULES.split(tokens);
+    List<String> sentences = new ArrayList<>();
+    for (int s = 0; s < starts.length - 1; s++) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = starts[s]; i < starts[s + 1]; i++) {
+        sb.append(i > starts[s] ? " " : "").append(text, tokens.start(i), tokens.end(i));
+      }
+      sentences.add(sb.toString());
+    }
+    return sentences;
+  }
+
+  @Test
+  void rules() {
+    assertEquals(asList("Dag Henk .", "Hoe gaat het ?", "Goed !"), sentences("Dag Henk. Hoe gaat het? Goed!"));
+    assertEquals(asList("Hij zei : \" Kom ! \"", "Zij kwam ."), sentences("Hij zei: \"Kom!\" Zij kwam."));
+    assertEquals(asList("Wacht ... of niet ? !", "( Zeker . )", "Ja"),
+      sentences("Wacht... of niet?! (Zeker.) Ja"));
+    assertEquals(asList("Dhr. Jansen woont o.a. in Leiden ."), sentences("Dhr. Jansen woont o.a. in Leiden."));
+  }
+
+  @Test
+  void empty() {
+    assertEquals(asList(""), sentences(""));
+    assertEquals(asList("Een zin zonder punt"), sentences("Een zin zonder punt"));
+  }
+}
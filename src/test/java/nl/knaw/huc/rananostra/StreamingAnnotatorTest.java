@@ -0,0 +1,116 @@
+package nl.knaw.huc.rananostra;
+
+import nu.xom.ParsingException;
+import nu.xom.XPathException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamingAnnotatorTest {
+  private static final Map<String, String> TEI =
+    Collections.singletonMap("tei", "http://www.tei-c.org/ns/1.0");
+
+  private FakeFrog fake;
+  private FrogSocketClient frog;
+
+  @BeforeEach
+  void start() throws Exception {
+    fake = new FakeFrog();
+    FrogSocketClient.Config config = new FrogSocketClient.Config();
+    config.concurrency = 1; // Window of four matched elements.
+    frog = new FrogSocketClient(new FrogCluster(
+      singletonList(new FrogCluster.Endpoint("localhost", fake.getPort())),
+      new FrogCluster.Config(), new FrogConnectionPool.Config()), config);
+  }
+
+  @AfterEach
+  void stop() throws Exception {
+    frog.close();
+    fake.close();
+  }
+
+  private String annotate(String xml, String xpath) throws Exception {
+    FrogSocketClient.XMLOptions options =
+      new FrogSocketClient.XMLOptions(xml, xpath, TEI, "start", "end", "type", null);
+    options.streaming = true;
+    return frog.applyXML(options);
+  }
+
+  @Test
+  void milestones() throws Exception {
+    String xml = "<TEI xmlns=\"http://www.tei-c.org/ns/1.0\"><text>" +
+      "<p n=\"1\">hallo <hi>Jan</hi> en Piet</p><!-- c --><p n=\"2\">dag Henk</p>" +
+      "</text></TEI>";
+
+    String out = annotate(xml, "//tei:p[@n='1']");
+    // As with applyXML, a milestone at the end of a text node goes there, not into the next element.
+    assertTrue(out.endsWith("<p n=\"1\">hallo <start xmlns=\"\" type=\"per\"></start><hi>" +
+      "Jan<end xmlns=\"\"></end></hi> en <start xmlns=\"\" type=\"per\"></start>" +
+      "Piet<end xmlns=\"\"></end></p><!-- c --><p n=\"2\">dag Henk</p></text></TEI>"), out);
+    assertEquals(1, fake.requests.get());
+  }
+
+  @Test
+  void manyMatches() throws Exception {
+    StringBuilder xml = new StringBuilder("<TEI xmlns=\"http://www.tei-c.org/ns/1.0\"><body>");
+    for (int i = 0; i < 25; i++) {
+      xml.append(String.format("<div><p>zin %d over Piet%d</p></div><note>Niet</note>", i, i));
+    }
+    xml.append("</body></TEI>");
+
+    String out = annotate(xml.toString(), "/tei:TEI/tei:body//tei:p");
+    for (int i = 0; i < 25; i++) {
+      assertTrue(out.contains(String.format("over <start xmlns=\"\" type=\"per\"></start>Piet%d<end", i)));
+    }
+    assertTrue(out.contains("<note>Niet</note>"));
+    assertEquals(25, fake.requests.get());
+  }
+
+  @Test
+  void unsupportedPath() {
+    assertThrows(XPathException.class, () -> annotate("<p/>", "//p/text()"));
+    assertThrows(XPathException.class, () -> annotate("<p/>", "p"));
+    assertThrows(XPathException.class, () -> annotate("<p/>", "//x:p"));
+  }
+
+  @Test
+  void malformed() {
+    assertThrows(ParsingException.class, () -> annotate("<p>Jan</q>", "//p"));
+  }
+
+  @Test
+  void readerToWriter() throws Exception {
+    FrogSocketClient.XMLOptions options =
+      new FrogSocketClient.XMLOptions("", "/doc/p", null, "b", "e", null, "t");
+    StringWriter out = new StringWriter();
+    frog.applyXML(options, new StringReader("<doc><p>Ingrid</p><q><p>Piet</p></q></doc>"), out);
+    assertTrue(out.toString().endsWith("<doc><p><b t=\"Ingrid\"></b>Ingrid<e></e></p><q><p>Piet</p></q></doc>"),
+      out.toString());
+  }
+
+  @Test
+  void bytesToBytes() throws Exception {
+    FrogSocketClient.XMLOptions options =
+      new FrogSocketClient.XMLOptions("", "/doc/p", null, "b", "e", null, null);
+    byte[] in = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><doc><p>Ren\u00e9</p></doc>".getBytes(ISO_8859_1);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    frog.applyXML(options, new ByteArrayInputStream(in), out, new Timings());
+    String result = new String(out.toByteArray(), UTF_8);
+    assertTrue(result.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"), result);
+    assertTrue(result.contains("Ren\u00e9"), result);
+  }
+}
@@ -0,0 +1,41 @@
+package nl.knaw.huc.rananostra;
+
+import opennlp.tools.util.Span;
+import org.junit.jupiter.api.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TokenizedTextTest {
+  private static TokenizedText tokens(String text, Span... spans) {
+    return TokenizedText.of(text, spans);
+  }
+
+  @Test
+  void encode() {
+    TokenizedText t = tokens("Dag, Piet. Hoi", new Span(0, 3), new Span(3, 4), new Span(4, 9), new Span(9, 10),
+      new Span(11, 14));
+    assertEquals("Dag\n,\nPiet\n.\nHoi\n", t.encode(0, t.size()));
+    assertEquals("Piet\n.\n", t.encode(2, 4));
+    assertEquals("", t.encode(2, 2));
+  }
+
+  @Test
+  void invalid() {
+    assertThrows(IllegalArgumentException.class, () -> tokens("a  b", new Span(1, 3)).encode(0, 1));
+    assertThrows(IllegalArgumentException.class, () -> tokens("EOT", new Span(0, 3)).encode(0, 1));
+    assertThrows(IllegalArgumentException.class, () -> tokens("abc", new Span(0, 4)).encode(0, 1));
+    assertThrows(IllegalArgumentException.class,
+      () -> tokens("a bc", new Span(2, 4), new Span(0, 1)).encode(0, 2));
+    assertThrows(IllegalArgumentException.class,
+      () -> tokens("abcd", new Span(0, 2), new Span(1, 3)).encode(0, 2));
+  }
+
+  @Test
+  void entities() {
+    TokenizedText t = DutchTokenizer.INSTANCE.tokenize("Jan en Piet");
+    TokenSpans found = new TokenSpans.Builder().ntokens(3).add(0, 0, "per").add(2, 2, "per").build();
+    assertEquals(asList(new Span(0, 3, "per"), new Span(7, 11, "per")), found.toEntities(t).toSpans());
+  }
+}
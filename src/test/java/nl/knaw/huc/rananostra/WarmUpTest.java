@@ -0,0 +1,47 @@
+package nl.knaw.huc.rananostra;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ServerSocket;
+
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WarmUpTest {
+  @Test
+  void waitsForFrog() throws Exception {
+    int port;
+    try (ServerSocket s = new ServerSocket(0)) {
+      port = s.getLocalPort();
+    }
+    FrogCluster.Config clusterConfig = new FrogCluster.Config();
+    clusterConfig.healthCheckMillis = 0;
+    FrogCluster cluster = new FrogCluster(singletonList(new FrogCluster.Endpoint("localhost", port)),
+      clusterConfig, new FrogConnectionPool.Config());
+    WarmUp.Config config = new WarmUp.Config();
+    config.documents = 8;
+    config.frogRetryMillis = 20;
+
+    try (FrogSocketClient frog = new FrogSocketClient(cluster)) {
+      WarmUp warmUp = new WarmUp(frog, cluster, config);
+      Thread t = new Thread(() -> {
+        try {
+          warmUp.run();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      t.start();
+
+      Thread.sleep(200);
+      assertFalse(warmUp.isDone());
+      try (FakeFrog fake = new FakeFrog(port)) {
+        t.join(10_000);
+        assertTrue(warmUp.isDone());
+        // The probe, then at least one request per document.
+        assertTrue(fake.requests.get() > config.documents, "requests: " + fake.requests.get());
+      }
+    }
+  }
+}
@@ -1,33 +1,106 @@
 package nl.knaw.huc.rananostra.rest;
 
+import com.codahale.metrics.MetricRegistry;
 import nl.knaw.huc.rananostra.FrogSocketClient;
 import org.junit.jupiter.api.Test;
 
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class FrogResourceTest {
+  // The clients' host and port are not used, but they schedule health checks, so they are closed.
   @Test
   void xmlInputValidation() {
-    FrogResource resource = new FrogResource("", 12345); // host and port not used
-
-    FrogSocketClient.XMLOptions working = new FrogSocketClient.XMLOptions("<p/>", "//p", null, "start", "end", null, null);
-
-    WebApplicationException e = assertThrows(WebApplicationException.class, () -> {
-      FrogSocketClient.XMLOptions args = new FrogSocketClient.XMLOptions(working);
-      args.xml = "";
-      resource.applyXML(args);
-    });
-    assertEquals(BAD_REQUEST.getStatusCode(), e.getResponse().getStatus());
-
-    assertThrows(WebApplicationException.class, () -> {
-      FrogSocketClient.XMLOptions args = new FrogSocketClient.XMLOptions(working);
-      args.xpath = "";
-      resource.applyXML(args);
-    });
-    assertEquals(BAD_REQUEST.getStatusCode(), e.getResponse().getStatus());
+    try (FrogSocketClient frog = new FrogSocketClient("", 12345)) {
+      FrogResource resource = new FrogResource(frog, new FrogResource.Config(), false, new MetricRegistry());
+
+      FrogSocketClient.XMLOptions working =
+        new FrogSocketClient.XMLOptions("<p/>", "//p", null, "start", "end", null, null);
+
+      WebApplicationException e = assertThrows(WebApplicationException.class, () -> {
+        FrogSocketClient.XMLOptions args = new FrogSocketClient.XMLOptions(working);
+        args.xml = "";
+        resource.applyXML(args);
+      });
+      assertEquals(BAD_REQUEST.getStatusCode(), e.getResponse().getStatus());
+
+      assertThrows(WebApplicationException.class, () -> {
+        FrogSocketClient.XMLOptions args = new FrogSocketClient.XMLOptions(working);
+        args.xpath = "";
+        resource.applyXML(args);
+      });
+      assertEquals(BAD_REQUEST.getStatusCode(), e.getResponse().getStatus());
+    }
+  }
+
+  @Test
+  void loadShedding() {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown(); // Rejects all tasks, like a full queue.
+    FrogResource.Config config = new FrogResource.Config();
+    config.retryAfterSeconds = 2;
+    try (FrogSocketClient frog = new FrogSocketClient("", 12345)) {
+      FrogResource resource = new FrogResource(frog, config, executor, false, new MetricRegistry());
+
+      List<Object> resumed = new ArrayList<>();
+      AsyncResponse async = (AsyncResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[]{AsyncResponse.class}, (proxy, method, args) -> {
+          if (method.getName().equals("resume")) {
+            resumed.add(args[0]);
+          }
+          return true;
+        });
+
+      resource.applyXML(new FrogSocketClient.XMLOptions("<p/>", "//p", null, "start", "end", null, null), null,
+        async);
+      assertEquals(1, resumed.size());
+      Response response = (Response) resumed.get(0);
+      assertEquals(SERVICE_UNAVAILABLE.getStatusCode(), response.getStatus());
+      assertEquals("2", response.getHeaderString(HttpHeaders.RETRY_AFTER));
+    }
+  }
+
+  @Test
+  void xmlQuery() {
+    FrogResource.XMLQuery query = new FrogResource.XMLQuery();
+    query.xpath = "//tei:p";
+    query.startTag = "start";
+    query.endTag = "end";
+    query.namespaces = Collections.singletonList("tei=http://www.tei-c.org/ns/1.0");
+    FrogSocketClient.XMLOptions options = query.toOptions();
+    assertEquals("//tei:p", options.xpath);
+    assertEquals(Collections.singletonMap("tei", "http://www.tei-c.org/ns/1.0"), options.namespaces);
+    assertNull(options.xml);
+
+    query.namespaces = Collections.singletonList("http://www.tei-c.org/ns/1.0");
+    assertThrows(WebApplicationException.class, query::toOptions);
+    query.namespaces = null;
+    query.endTag = null;
+    assertThrows(WebApplicationException.class, query::toOptions);
+  }
+
+  @Test
+  void acceptsGzip() {
+    assertTrue(FrogResource.acceptsGzip("gzip"));
+    assertTrue(FrogResource.acceptsGzip("deflate, GZIP;q=0.5"));
+    assertFalse(FrogResource.acceptsGzip("gzip;q=0, identity"));
+    assertFalse(FrogResource.acceptsGzip("deflate"));
+    assertFalse(FrogResource.acceptsGzip(null));
   }
 }
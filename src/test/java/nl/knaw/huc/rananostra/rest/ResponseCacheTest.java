@@ -0,0 +1,85 @@
+package nl.knaw.huc.rananostra.rest;
+
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.huc.rananostra.FrogSocketClient;
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResponseCacheTest {
+  private static final ResponseCache CACHE =
+    new ResponseCache(10_000, FrogSocketClient.Tokenizer.OPENNLP, false, new MetricRegistry());
+
+  private static FrogSocketClient.XMLOptions options() {
+    return new FrogSocketClient.XMLOptions("<p>Jan</p>", "//p", null, "start", "end", null, null);
+  }
+
+  @Test
+  void key() {
+    FrogSocketClient.XMLOptions options = options();
+    String key = CACHE.key("json", options, options.xml);
+    assertEquals(key, CACHE.key("json", options(), "<p>Jan</p>"));
+    assertNotEquals(key, CACHE.key("xml", options, options.xml));
+    assertNotEquals(key, CACHE.key("json", options, "<p>Piet</p>"));
+
+    // Options that do not change the result do not change the key.
+    options.concurrency = 2;
+    options.deadlineMillis = 1000L;
+    assertEquals(key, CACHE.key("json", options, options.xml));
+
+    options.classAttr = "type";
+    assertNotEquals(key, CACHE.key("json", options, options.xml));
+
+    // Fields do not run into each other.
+    FrogSocketClient.XMLOptions a = options();
+    a.startTag = "ab";
+    a.endTag = "c";
+    FrogSocketClient.XMLOptions b = options();
+    b.startTag = "a";
+    b.endTag = "bc";
+    assertNotEquals(CACHE.key("json", a, a.xml), CACHE.key("json", b, b.xml));
+  }
+
+  @Test
+  void defaults() {
+    FrogSocketClient.XMLOptions options = options();
+    String key = CACHE.key("json", options, options.xml);
+
+    // An unset option is the same as its default.
+    options.tokenizer = FrogSocketClient.Tokenizer.OPENNLP;
+    options.splitSentences = false;
+    assertEquals(key, CACHE.key("json", options, options.xml));
+
+    // Other defaults give other results, so unset options get other keys.
+    ResponseCache rules = new ResponseCache(10_000, FrogSocketClient.Tokenizer.RULES, false, new MetricRegistry());
+    assertNotEquals(key, rules.key("json", options(), options.xml));
+    ResponseCache split = new ResponseCache(10_000, FrogSocketClient.Tokenizer.OPENNLP, true, new MetricRegistry());
+    assertNotEquals(key, split.key("json", options(), options.xml));
+  }
+
+  @Test
+  void matches() {
+    String key = CACHE.key("xml", options(), "<p/>".getBytes(UTF_8));
+    assertTrue(ResponseCache.matches("\"" + key + "\"", key));
+    assertTrue(ResponseCache.matches("\"abc\", W/\"" + key + "\"", key));
+    assertFalse(ResponseCache.matches("\"abc\"", key));
+    assertFalse(ResponseCache.matches(key, key)); // Not quoted.
+    assertFalse(ResponseCache.matches(null, key));
+  }
+
+  @Test
+  void byteBudget() {
+    ResponseCache cache = new ResponseCache(10_000, FrogSocketClient.Tokenizer.OPENNLP, false, new MetricRegistry());
+    cache.put("a", new byte[100]);
+    assertEquals(100, cache.get("a").length);
+    for (int i = 0; i < 100; i++) {
+      cache.put("x" + i, new byte[1000]);
+    }
+    assertNull(cache.get("a"));
+  }
+}